@@ -0,0 +1,55 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all the benchmarks at increasing thread counts, measuring throughput and
+ * allocation rate. The first argument, if present, is the regular expression of
+ * the benchmarks to run; the following ones are the thread counts to use.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class BenchmarkRunner {
+
+	/** The thread counts used when none is specified. **/
+	private static final int[] DEFAULT_THREADS = { 1, 4, 16, 64 };
+
+	public static void main(String args[]) throws RunnerException {
+		String include = args.length > 0 ? args[0] : ".*Benchmark";
+		int[] threadCounts = DEFAULT_THREADS;
+		if (args.length > 1) {
+			threadCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				threadCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+		for (int threads : threadCounts) {
+			Options options = new OptionsBuilder().include(include).threads(threads).forks(1).warmupIterations(3)
+					.measurementIterations(5).addProfiler(GCProfiler.class).resultFormat(ResultFormatType.JSON)
+					.result("target/jmh-result-" + threads + "-threads.json").build();
+			new Runner(options).run();
+		}
+	}
+}
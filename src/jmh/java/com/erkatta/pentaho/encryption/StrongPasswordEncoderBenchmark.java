@@ -0,0 +1,113 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.pentaho.di.core.encryption.KettleTwoWayPasswordEncoder;
+import org.pentaho.di.core.exception.KettleException;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.util.KeyPairGenerator;
+import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+
+/**
+ * Benchmarks of the {@link StrongPasswordEncoder} hot paths.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+@State(Scope.Benchmark)
+public class StrongPasswordEncoderBenchmark {
+
+	private static final String PLAIN_TEXT_PASSWORD = "justatestpassword";
+	private static final String KETTLE_OBFUSCATED_PASSWORD = "6a757374616e6f60d8eddcab0bd39780bb18bd63c99dbdde";
+
+	/** The directory holding the benchmark key pair. **/
+	private Path keyDirectory;
+	/** The password encoder to benchmark, shared by all the threads. **/
+	private StrongPasswordEncoder encoder;
+
+	private String encodedPassword;
+	private String legacyEncodedPassword;
+
+	/**
+	 * Writes a new key pair in a temporary directory and initializes the password
+	 * encoder with it.
+	 * 
+	 * @throws IOException     if the key files cannot be written.
+	 * @throws KettleException if the password encoder cannot be initialized.
+	 */
+	@Setup
+	public void setUp() throws IOException, KettleException {
+		keyDirectory = Files.createTempDirectory("spe-benchmark");
+		Base64EncodedKeyPair keyPair = new RsaCryptoUtil().generateKeyPair();
+		KeyPairGenerator.writeToFile(keyDirectory.resolve("public.key").toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(keyDirectory.resolve("private.key").toString(), keyPair.getPrivateKey());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PUBKEY_PATH", keyDirectory.toString() + "/");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PRIVKEY_PATH", keyDirectory.toString() + "/");
+		encoder = new StrongPasswordEncoder();
+		encoder.init();
+		encodedPassword = encoder.encode(PLAIN_TEXT_PASSWORD);
+		legacyEncodedPassword = KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + KETTLE_OBFUSCATED_PASSWORD;
+	}
+
+	/**
+	 * Removes the benchmark key pair.
+	 * 
+	 * @throws IOException if the key files cannot be deleted.
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(keyDirectory.resolve("public.key"));
+		Files.deleteIfExists(keyDirectory.resolve("private.key"));
+		Files.deleteIfExists(keyDirectory);
+	}
+
+	@Benchmark
+	public String encode() {
+		return encoder.encode(PLAIN_TEXT_PASSWORD);
+	}
+
+	@Benchmark
+	public String decode() {
+		return encoder.decode(encodedPassword, true);
+	}
+
+	@Benchmark
+	public String decodeLegacy() {
+		return encoder.decode(legacyEncodedPassword, true);
+	}
+
+	/**
+	 * Decodes a legacy password without the prefix, which goes through the failed
+	 * RSA decryption before falling back to the Kettle obfuscation.
+	 * 
+	 * @return the decoded password.
+	 */
+	@Benchmark
+	public String decodeLegacyFallback() {
+		return encoder.decode(KETTLE_OBFUSCATED_PASSWORD);
+	}
+}
@@ -0,0 +1,97 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+
+/**
+ * Benchmarks of the {@link RsaCryptoUtil} class. It lives in the same package
+ * of the utility to measure the key parsing without the parsed keys cache.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+@State(Scope.Benchmark)
+public class RsaCryptoUtilBenchmark {
+
+	private static final String PLAIN_TEXT = "justatestpassword";
+
+	/** The RSA cryptographic utility to benchmark, shared by all the threads. **/
+	private RsaCryptoUtil cryptoUtil;
+	/** The key pair used by the benchmarks. **/
+	private Base64EncodedKeyPair keyPair;
+
+	private byte[] plainBytes;
+	private byte[] encryptedBytes;
+	private String encryptedString;
+
+	/**
+	 * Generates the key pair and the encrypted data.
+	 */
+	@Setup
+	public void setUp() {
+		cryptoUtil = new RsaCryptoUtil();
+		keyPair = cryptoUtil.generateKeyPair();
+		plainBytes = PLAIN_TEXT.getBytes(StandardCharsets.UTF_8);
+		encryptedBytes = cryptoUtil.encrypt(plainBytes, keyPair.getPublicKey());
+		encryptedString = cryptoUtil.encrypt(PLAIN_TEXT, keyPair.getPublicKey());
+	}
+
+	@Benchmark
+	public byte[] encryptBytes() {
+		return cryptoUtil.encrypt(plainBytes, keyPair.getPublicKey());
+	}
+
+	@Benchmark
+	public String encryptString() {
+		return cryptoUtil.encrypt(PLAIN_TEXT, keyPair.getPublicKey());
+	}
+
+	@Benchmark
+	public byte[] decryptBytes() {
+		return cryptoUtil.decrypt(encryptedBytes, keyPair.getPrivateKey());
+	}
+
+	@Benchmark
+	public String decryptString() {
+		return cryptoUtil.decrypt(encryptedString, keyPair.getPrivateKey());
+	}
+
+	@Benchmark
+	public PublicKey parsePublicKey() {
+		return cryptoUtil.parsePublicKey(keyPair.getPublicKey());
+	}
+
+	@Benchmark
+	public PrivateKey parsePrivateKey() {
+		return cryptoUtil.parsePrivateKey(keyPair.getPrivateKey());
+	}
+
+	@Benchmark
+	public PrivateKey getCachedPrivateKey() {
+		return cryptoUtil.getPrivateKey(keyPair.getPrivateKey());
+	}
+}
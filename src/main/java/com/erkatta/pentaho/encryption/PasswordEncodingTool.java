@@ -0,0 +1,451 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * Command line tool that encrypts a stream of plain text passwords, read from
+ * the standard input, with the keys configured for a
+ * {@link StrongPasswordEncoder} and writes the encoded passwords to the
+ * standard output, so that thousands of passwords are encrypted by a single
+ * process instead of one process each.
+ * <p>
+ * Records are encrypted in parallel and written in the input order; only a
+ * bounded number of records is in flight at any time, so that the memory used
+ * does not depend on the size of the input.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public class PasswordEncodingTool {
+
+	/** The number of records in flight for each thread. **/
+	private static final int RECORDS_PER_THREAD = 64;
+	/** The default field of the JSON records that holds the password. **/
+	private static final String FIELD_DEFAULT = "password";
+
+	/**
+	 * The format of the records, one per line.
+	 */
+	public enum Format {
+		/** The whole line is the password. **/
+		LINES,
+		/** A key, an equal sign and the password, taken as is. **/
+		KEYVALUE,
+		/** Comma separated values, one of which is the password. **/
+		CSV,
+		/** A JSON object, one of whose string fields is the password. **/
+		JSONL
+	}
+
+	/** The encoder that encrypts the passwords. **/
+	private final StrongPasswordEncoder encoder;
+	/** The format of the records. **/
+	private final Format format;
+	/** The number of threads that encrypt the passwords. **/
+	private final int threads;
+	/** The column of the CSV records that holds the password, starting from 1, or 0 for the last one. **/
+	private final int column;
+	/** The field of the JSON records that holds the password. **/
+	private final String field;
+
+	/**
+	 * Creates a new {@link PasswordEncodingTool}.
+	 *
+	 * @param encoder the initialized encoder that encrypts the passwords.
+	 * @param format  the format of the records.
+	 * @param threads the number of threads that encrypt the passwords.
+	 * @param column  the column of the CSV records that holds the password,
+	 *                starting from 1, or 0 for the last one.
+	 * @param field   the field of the JSON records that holds the password.
+	 */
+	public PasswordEncodingTool(StrongPasswordEncoder encoder, Format format, int threads, int column, String field) {
+		this.encoder = encoder;
+		this.format = format;
+		this.threads = Math.max(1, threads);
+		this.column = column;
+		this.field = field;
+	}
+
+	public static void main(String args[]) throws IOException, KettleException {
+		Format format = Format.LINES;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int column = 0;
+		String field = FIELD_DEFAULT;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "-format":
+					format = Format.valueOf(args[++i].toUpperCase(Locale.ROOT));
+					break;
+				case "-threads":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "-column":
+					column = Integer.parseInt(args[++i]);
+					break;
+				case "-field":
+					field = args[++i];
+					break;
+				default:
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.err.println("Usage: PasswordEncodingTool [-format lines|keyvalue|csv|jsonl] [-threads <n>]"
+					+ " [-column <n>] [-field <name>] < passwords > encoded passwords");
+			System.exit(2);
+		}
+		KettleClientEnvironment.init();
+		// Encrypting needs the public key only
+		System.setProperty(StrongPasswordEncoder.LAZY_KEY, "Y");
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder();
+		encoder.init();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		try {
+			long records = new PasswordEncodingTool(encoder, format, threads, column, field).encode(reader, writer);
+			System.err.println("Encoded records:" + records);
+		} catch (RuntimeException e) {
+			writer.flush();
+			System.err.println(e.getMessage() + (e.getCause() == null ? "" : " " + e.getCause().getMessage()));
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Encrypts the passwords of all the records of a stream. Lines are written
+	 * with a line feed terminator, whatever their original one.
+	 *
+	 * @param reader the records with the plain text passwords, one per line.
+	 * @param writer the records with the encoded passwords, in the same order.
+	 * @return the number of records.
+	 * @throws IOException      if the records cannot be read or written.
+	 * @throws RuntimeException if a record cannot be encoded; the records before
+	 *                          it have been written.
+	 */
+	public long encode(BufferedReader reader, Writer writer) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Deque<Future<String>> inFlight = new ArrayDeque<>(threads * RECORDS_PER_THREAD);
+		long records = 0;
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String record = line;
+				long recordNumber = ++records;
+				inFlight.add(executor.submit(() -> encodeRecord(record, recordNumber)));
+				if (inFlight.size() >= threads * RECORDS_PER_THREAD) {
+					write(inFlight.poll(), writer);
+				}
+			}
+			while (!inFlight.isEmpty()) {
+				write(inFlight.poll(), writer);
+			}
+			writer.flush();
+		} finally {
+			executor.shutdownNow();
+		}
+		return records;
+	}
+
+	/**
+	 * Writes an encoded record, once it is ready.
+	 *
+	 * @param record the encoded record.
+	 * @param writer the writer.
+	 * @throws IOException if the record cannot be written.
+	 */
+	private static void write(Future<String> record, Writer writer) throws IOException {
+		try {
+			writer.write(record.get());
+			writer.write('\n');
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Encoding has been interrupted.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw (RuntimeException) e.getCause();
+		}
+	}
+
+	/**
+	 * Encrypts the password of a record.
+	 *
+	 * @param record       the record.
+	 * @param recordNumber the number of the record, starting from 1.
+	 * @return the record with the encoded password.
+	 * @throws RuntimeException if the record cannot be encoded.
+	 */
+	private String encodeRecord(String record, long recordNumber) {
+		try {
+			switch (format) {
+			case KEYVALUE:
+				return encodeKeyValue(record);
+			case CSV:
+				return encodeCsv(record);
+			case JSONL:
+				return encodeJson(record);
+			default:
+				return encoder.encode(record);
+			}
+		} catch (RuntimeException e) {
+			throw new RuntimeException("Cannot encode record " + recordNumber + ".", e);
+		}
+	}
+
+	/**
+	 * Encrypts the password of a key=value record. Blank lines and comments are
+	 * kept as they are.
+	 *
+	 * @param record the record.
+	 * @return the record with the encoded password.
+	 */
+	private String encodeKeyValue(String record) {
+		String trimmedRecord = record.trim();
+		if (trimmedRecord.isEmpty() || trimmedRecord.startsWith("#")) {
+			return record;
+		}
+		int separator = record.indexOf('=');
+		if (separator < 0) {
+			throw new IllegalArgumentException("Missing equal sign.");
+		}
+		return record.substring(0, separator + 1) + encoder.encode(record.substring(separator + 1));
+	}
+
+	/**
+	 * Encrypts the password of a CSV record. Quoted fields cannot span more than
+	 * one line.
+	 *
+	 * @param record the record.
+	 * @return the record with the encoded password.
+	 */
+	private String encodeCsv(String record) {
+		List<Integer> fieldStarts = new ArrayList<>();
+		int index = 0;
+		do {
+			fieldStarts.add(index);
+			index = skipCsvField(record, index) + 1;
+		} while (index <= record.length());
+		int passwordField = column == 0 ? fieldStarts.size() - 1 : column - 1;
+		if (passwordField >= fieldStarts.size()) {
+			throw new IllegalArgumentException("Missing column " + column + ".");
+		}
+		int start = fieldStarts.get(passwordField);
+		int end = passwordField + 1 < fieldStarts.size() ? fieldStarts.get(passwordField + 1) - 1 : record.length();
+		String password = record.substring(start, end);
+		if (password.startsWith("\"")) {
+			password = password.substring(1, password.lastIndexOf('"')).replace("\"\"", "\"");
+		}
+		String encodedPassword = encoder.encode(password);
+		if (encodedPassword.indexOf(',') >= 0 || encodedPassword.indexOf('"') >= 0) {
+			// A password with variables is not encrypted and may need quotes
+			encodedPassword = "\"" + encodedPassword.replace("\"", "\"\"") + "\"";
+		}
+		return record.substring(0, start) + encodedPassword + record.substring(end);
+	}
+
+	/**
+	 * Finds the end of a CSV field.
+	 *
+	 * @param record the record.
+	 * @param start  the index where the field starts.
+	 * @return the index of the comma after the field, or the length of the record.
+	 */
+	private static int skipCsvField(String record, int start) {
+		int index = start;
+		if (index < record.length() && record.charAt(index) == '"') {
+			index++;
+			while (true) {
+				if (index >= record.length()) {
+					throw new IllegalArgumentException("Unterminated quoted field.");
+				}
+				if (record.charAt(index) == '"') {
+					if (index + 1 < record.length() && record.charAt(index + 1) == '"') {
+						index += 2;
+						continue;
+					}
+					index++;
+					break;
+				}
+				index++;
+			}
+		}
+		int comma = record.indexOf(',', index);
+		return comma < 0 ? record.length() : comma;
+	}
+
+	/**
+	 * Encrypts the password of a JSON record, held by a string field of the
+	 * top level object.
+	 *
+	 * @param record the record.
+	 * @return the record with the encoded password.
+	 */
+	private String encodeJson(String record) {
+		int depth = 0;
+		int index = 0;
+		while (index < record.length()) {
+			char c = record.charAt(index);
+			if (c == '"') {
+				int end = skipJsonString(record, index);
+				int colon = skipWhitespace(record, end);
+				if (depth == 1 && colon < record.length() && record.charAt(colon) == ':'
+						&& field.equals(unescapeJson(record, index + 1, end - 1))) {
+					int start = skipWhitespace(record, colon + 1);
+					if (start >= record.length() || record.charAt(start) != '"') {
+						throw new IllegalArgumentException("The field " + field + " is not a string.");
+					}
+					end = skipJsonString(record, start);
+					String encodedPassword = encoder.encode(unescapeJson(record, start + 1, end - 1));
+					return record.substring(0, start) + quoteJson(encodedPassword) + record.substring(end);
+				}
+				index = end;
+				continue;
+			}
+			if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				depth--;
+			}
+			index++;
+		}
+		throw new IllegalArgumentException("Missing field " + field + ".");
+	}
+
+	/**
+	 * Finds the end of a JSON string.
+	 *
+	 * @param record the record.
+	 * @param start  the index of the opening quote.
+	 * @return the index after the closing quote.
+	 */
+	private static int skipJsonString(String record, int start) {
+		int index = start + 1;
+		while (index < record.length()) {
+			char c = record.charAt(index);
+			if (c == '"') {
+				return index + 1;
+			}
+			index += c == '\\' ? 2 : 1;
+		}
+		throw new IllegalArgumentException("Unterminated string.");
+	}
+
+	/**
+	 * Skips the whitespace characters.
+	 *
+	 * @param record the record.
+	 * @param start  the index of the first character to check.
+	 * @return the index of the first character that is not a whitespace.
+	 */
+	private static int skipWhitespace(String record, int start) {
+		int index = start;
+		while (index < record.length() && Character.isWhitespace(record.charAt(index))) {
+			index++;
+		}
+		return index;
+	}
+
+	/**
+	 * Decodes the content of a JSON string.
+	 *
+	 * @param record the record.
+	 * @param start  the index after the opening quote.
+	 * @param end    the index of the closing quote.
+	 * @return the decoded string.
+	 */
+	private static String unescapeJson(String record, int start, int end) {
+		StringBuilder value = new StringBuilder(end - start);
+		for (int index = start; index < end; index++) {
+			char c = record.charAt(index);
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			c = record.charAt(++index);
+			switch (c) {
+			case 'b':
+				value.append('\b');
+				break;
+			case 'f':
+				value.append('\f');
+				break;
+			case 'n':
+				value.append('\n');
+				break;
+			case 'r':
+				value.append('\r');
+				break;
+			case 't':
+				value.append('\t');
+				break;
+			case 'u':
+				if (index + 5 > end) {
+					throw new IllegalArgumentException("Invalid unicode escape.");
+				}
+				value.append((char) Integer.parseInt(record.substring(index + 1, index + 5), 16));
+				index += 4;
+				break;
+			default:
+				value.append(c);
+			}
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Encodes a string as JSON.
+	 *
+	 * @param value the string.
+	 * @return the JSON string, with quotes.
+	 */
+	private static String quoteJson(String value) {
+		StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+		for (int index = 0; index < value.length(); index++) {
+			char c = value.charAt(index);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+}
@@ -0,0 +1,416 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.pentaho.di.core.encryption.KettleTwoWayPasswordEncoder;
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * Command line tool that migrates all the encrypted passwords found in a
+ * directory tree (kettle.properties, shared.xml, transformations and jobs) to
+ * the encryption of a {@link StrongPasswordEncoder}, i.e. from the default
+ * Kettle obfuscation to RSA or from an old key pair to a new one.
+ * <p>
+ * Only the values of the properties files and the content of the
+ * <code>&lt;password&gt;</code> elements of the XML files are migrated, so that
+ * descriptions, notes and comments are never changed. Files are processed in
+ * parallel and streamed line by line, so that their size does not matter; a
+ * file is replaced atomically and only if at least one of its passwords has
+ * changed.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public class PasswordMigrationTool {
+
+	/** The extensions of the files that are migrated. **/
+	private static final List<String> FILE_EXTENSIONS = Arrays.asList(".properties", ".ktr", ".kjb", ".xml");
+	/** The name of the group that captures the encrypted password in the patterns. **/
+	private static final String PASSWORD_GROUP = "password";
+	/** The maximum number of failures listed in the report. **/
+	private static final int MAX_REPORTED_FAILURES = 100;
+
+	/** The encoder that decodes the old passwords and encodes the new ones. **/
+	private final StrongPasswordEncoder encoder;
+	/** The number of files processed in parallel. **/
+	private final int threads;
+	/** Whether files are only scanned and never written. **/
+	private final boolean dryRun;
+	/** The pattern that matches the encrypted passwords to migrate in the values of properties files. **/
+	private final Pattern propertiesPattern;
+	/** The pattern that matches the encrypted passwords to migrate in the password elements of XML files. **/
+	private final Pattern xmlPattern;
+
+	/**
+	 * Creates a new {@link PasswordMigrationTool}.
+	 *
+	 * @param encoder    the initialized encoder that decodes the old passwords and
+	 *                   encodes the new ones.
+	 * @param threads    the number of files processed in parallel.
+	 * @param legacyOnly whether only the passwords obfuscated by Kettle are
+	 *                   migrated.
+	 * @param dryRun     whether files are only scanned and never written.
+	 */
+	public PasswordMigrationTool(StrongPasswordEncoder encoder, int threads, boolean legacyOnly, boolean dryRun) {
+		this.encoder = encoder;
+		this.threads = Math.max(1, threads);
+		this.dryRun = dryRun;
+		// Kettle obfuscated passwords are hexadecimal, the ones of this plugin Base64
+		String password = Pattern.quote(KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX) + "[0-9a-fA-F]+";
+		if (!legacyOnly) {
+			String prefixes = Arrays.stream(encoder.getPrefixes())
+					.filter(prefix -> !prefix.equals(KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX))
+					.map(Pattern::quote).collect(Collectors.joining("|"));
+			password = "(?:" + prefixes + ")[A-Za-z0-9+/]+={0,2}|" + password;
+		}
+		// Only whole values are migrated, never a password-like text in comments, notes or descriptions
+		propertiesPattern = Pattern.compile("^\\s*[^#!\\s][^=:]*[=:]\\s*(?<" + PASSWORD_GROUP + ">" + password + ")\\s*$");
+		xmlPattern = Pattern.compile("<password>(?<" + PASSWORD_GROUP + ">" + password + ")</password>");
+	}
+
+	public static void main(String args[]) throws IOException, KettleException {
+		String directory = null;
+		String publicKeyFile = null;
+		String privateKeyFile = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean legacyOnly = false;
+		boolean dryRun = false;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-dir":
+				directory = args[++i];
+				break;
+			case "-newPublicKey":
+				publicKeyFile = args[++i];
+				break;
+			case "-oldPrivateKey":
+				privateKeyFile = args[++i];
+				break;
+			case "-threads":
+				threads = Integer.parseInt(args[++i]);
+				break;
+			case "-legacyOnly":
+				legacyOnly = true;
+				break;
+			case "-dryRun":
+				dryRun = true;
+				break;
+			default:
+				directory = null;
+				i = args.length;
+			}
+		}
+		if (directory == null || publicKeyFile == null || privateKeyFile == null) {
+			System.err.println("Usage: PasswordMigrationTool -dir <directory> -newPublicKey <public key file>"
+					+ " -oldPrivateKey <private key file> [-threads <n>] [-legacyOnly] [-dryRun]");
+			System.exit(2);
+		}
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder(publicKeyFile, privateKeyFile);
+		encoder.init();
+		Report report = new PasswordMigrationTool(encoder, threads, legacyOnly, dryRun).migrate(Paths.get(directory));
+		System.out.println(report);
+		System.exit(report.getFailedValues() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Migrates all the passwords found in the files of a directory tree.
+	 *
+	 * @param directory the root of the directory tree.
+	 * @return the migration report.
+	 * @throws IOException if the directory tree cannot be walked.
+	 */
+	public Report migrate(Path directory) throws IOException {
+		Report report = new Report();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try (Stream<Path> files = Files.walk(directory)) {
+			List<Future<?>> futures = new ArrayList<>();
+			files.filter(Files::isRegularFile).filter(PasswordMigrationTool::isMigratable)
+					.forEach(file -> futures.add(executor.submit(() -> migrate(file, report))));
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Migration has been interrupted.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Migration has failed.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		report.elapsedMillis = System.currentTimeMillis() - report.startMillis;
+		return report;
+	}
+
+	/**
+	 * Migrates all the passwords found in a file. The file is read and written as
+	 * ISO-8859-1, which maps every byte to a character and back, so that its
+	 * content is preserved whatever its actual encoding.
+	 *
+	 * @param file   the file to migrate.
+	 * @param report the migration report to update.
+	 */
+	private void migrate(Path file, Report report) {
+		report.scannedFiles.increment();
+		Path tempFile = null;
+		try {
+			if (!dryRun) {
+				tempFile = Files.createTempFile(file.toAbsolutePath().getParent(), "." + file.getFileName(), ".tmp");
+			}
+			boolean modified = false;
+			try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1);
+					Writer writer = dryRun ? null
+							: Files.newBufferedWriter(tempFile, StandardCharsets.ISO_8859_1)) {
+				StringBuilder line = new StringBuilder();
+				int lineNumber = 0;
+				while (readLine(reader, line)) {
+					lineNumber++;
+					String migratedLine = migrate(line.toString(), file, lineNumber, report);
+					modified |= migratedLine != null;
+					if (writer != null) {
+						writer.write(migratedLine != null ? migratedLine : line.toString());
+					}
+				}
+			}
+			if (modified && !dryRun) {
+				copyPermissions(file, tempFile);
+				Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				report.modifiedFiles.increment();
+			}
+		} catch (IOException | RuntimeException e) {
+			report.addFailure(file + ": " + e.getMessage());
+		} finally {
+			if (tempFile != null) {
+				try {
+					Files.deleteIfExists(tempFile);
+				} catch (IOException e) {
+					report.addFailure(tempFile + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Migrates the passwords found in a line: the value of a properties line or
+	 * the content of the password elements of an XML line.
+	 *
+	 * @param line       the line, including its terminator.
+	 * @param file       the file the line belongs to.
+	 * @param lineNumber the number of the line.
+	 * @param report     the migration report to update.
+	 * @return the migrated line or <code>null</code> if no password has been
+	 *         migrated.
+	 */
+	private String migrate(String line, Path file, int lineNumber, Report report) {
+		Matcher matcher = (isPropertiesFile(file) ? propertiesPattern : xmlPattern).matcher(line);
+		StringBuilder migratedLine = null;
+		int end = 0;
+		while (matcher.find()) {
+			String encodedPassword = matcher.group(PASSWORD_GROUP);
+			try {
+				String password = encoder.decode(encodedPassword, true);
+				String newEncodedPassword = encoder.encode(password);
+				if (newEncodedPassword.equals(password)) {
+					// The password contains variables and would be written in plain text
+					report.addFailure(file + ":" + lineNumber + ": password not encrypted because it uses variables");
+					continue;
+				}
+				if (migratedLine == null) {
+					migratedLine = new StringBuilder(line.length());
+				}
+				migratedLine.append(line, end, matcher.start(PASSWORD_GROUP)).append(newEncodedPassword);
+				end = matcher.end(PASSWORD_GROUP);
+				report.migratedValues.increment();
+			} catch (RuntimeException e) {
+				report.addFailure(file + ":" + lineNumber + ": " + e.getMessage());
+			}
+		}
+		if (migratedLine == null) {
+			return null;
+		}
+		return migratedLine.append(line, end, line.length()).toString();
+	}
+
+	/**
+	 * Reads a line, including its terminator.
+	 *
+	 * @param reader the reader.
+	 * @param line   the builder that receives the line.
+	 * @return <code>false</code> if the end of the stream has been reached.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	private static boolean readLine(Reader reader, StringBuilder line) throws IOException {
+		line.setLength(0);
+		int c;
+		while ((c = reader.read()) != -1) {
+			line.append((char) c);
+			if (c == '\n') {
+				break;
+			}
+		}
+		return line.length() > 0;
+	}
+
+	/**
+	 * Copies the POSIX permissions of a file to another one, if the file system
+	 * supports them.
+	 *
+	 * @param source the file to copy the permissions from.
+	 * @param target the file to copy the permissions to.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	private static void copyPermissions(Path source, Path target) throws IOException {
+		try {
+			Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+		} catch (UnsupportedOperationException e) {
+			// Not a POSIX file system, the default permissions are kept
+		}
+	}
+
+	/**
+	 * Checks whether a file is a properties file, whose values are migrated,
+	 * rather than an XML file, whose password elements are migrated.
+	 *
+	 * @param file the file.
+	 * @return <code>true</code> if the file is a properties file.
+	 */
+	private static boolean isPropertiesFile(Path file) {
+		return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".properties");
+	}
+
+	/**
+	 * Checks whether a file has one of the extensions that are migrated.
+	 *
+	 * @param file the file.
+	 * @return <code>true</code> if the file can be migrated.
+	 */
+	private static boolean isMigratable(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		return FILE_EXTENSIONS.stream().anyMatch(name::endsWith);
+	}
+
+	/**
+	 * The summary of a migration.
+	 */
+	public static final class Report {
+
+		/** The time the migration has started. **/
+		private final long startMillis = System.currentTimeMillis();
+		/** The time the migration took. **/
+		private long elapsedMillis;
+		/** The number of scanned files. **/
+		private final LongAdder scannedFiles = new LongAdder();
+		/** The number of modified files. **/
+		private final LongAdder modifiedFiles = new LongAdder();
+		/** The number of migrated passwords. **/
+		private final LongAdder migratedValues = new LongAdder();
+		/** The number of passwords that could not be migrated. **/
+		private final LongAdder failedValues = new LongAdder();
+		/** The first failures. **/
+		private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Records a failure.
+		 *
+		 * @param failure the failure description.
+		 */
+		private void addFailure(String failure) {
+			failedValues.increment();
+			if (failures.size() < MAX_REPORTED_FAILURES) {
+				failures.add(failure);
+			}
+		}
+
+		/**
+		 * Gets the number of scanned files.
+		 *
+		 * @return the number of scanned files.
+		 */
+		public long getScannedFiles() {
+			return scannedFiles.sum();
+		}
+
+		/**
+		 * Gets the number of modified files.
+		 *
+		 * @return the number of modified files.
+		 */
+		public long getModifiedFiles() {
+			return modifiedFiles.sum();
+		}
+
+		/**
+		 * Gets the number of migrated passwords.
+		 *
+		 * @return the number of migrated passwords.
+		 */
+		public long getMigratedValues() {
+			return migratedValues.sum();
+		}
+
+		/**
+		 * Gets the number of passwords or files that could not be migrated.
+		 *
+		 * @return the number of failures.
+		 */
+		public long getFailedValues() {
+			return failedValues.sum();
+		}
+
+		/**
+		 * Returns a string representation of the {@link Report}.
+		 *
+		 * @return a string representation of the {@link Report}.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append("Scanned files:").append(getScannedFiles()).append("\nModified files:")
+					.append(getModifiedFiles()).append("\nMigrated passwords:").append(getMigratedValues())
+					.append("\nFailures:").append(getFailedValues()).append("\nElapsed time (ms):")
+					.append(elapsedMillis);
+			for (String failure : failures) {
+				report.append("\n  ").append(failure);
+			}
+			return report.toString();
+		}
+	}
+}
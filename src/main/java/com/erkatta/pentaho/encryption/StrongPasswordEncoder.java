@@ -16,22 +16,77 @@ package com.erkatta.pentaho.encryption;
  * <http://www.gnu.org/licenses/lgpl-2.1.html>.
  */
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.encryption.KettleTwoWayPasswordEncoder;
 import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
 import org.pentaho.di.core.encryption.TwoWayPasswordEncoderPlugin;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.core.util.EnvUtil;
 import org.pentaho.di.core.util.StringUtil;
 
+import com.erkatta.pentaho.encryption.agent.DecryptionAgent;
+import com.erkatta.pentaho.encryption.agent.DecryptionAgentClient;
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.om.CryptoResult;
 import com.erkatta.pentaho.encryption.util.AsymmetricCryptoUtil;
+import com.erkatta.pentaho.encryption.util.Base64Codec;
+import com.erkatta.pentaho.encryption.util.BatchProcessor;
+import com.erkatta.pentaho.encryption.util.CiphertextHeader;
+import com.erkatta.pentaho.encryption.util.CryptoBuffers;
+import com.erkatta.pentaho.encryption.util.CryptoMetricsListener;
+import com.erkatta.pentaho.encryption.util.CryptoMetricsListener.DecodeFormat;
+import com.erkatta.pentaho.encryption.util.EcCryptoUtil;
+import com.erkatta.pentaho.encryption.util.EncodeCache;
+import com.erkatta.pentaho.encryption.util.EnvelopeCryptoUtil;
+import com.erkatta.pentaho.encryption.util.FileCryptoUtil;
+import com.erkatta.pentaho.encryption.util.KeyFileWatcher;
+import com.erkatta.pentaho.encryption.util.KeyRing;
+import com.erkatta.pentaho.encryption.util.ProviderCalibrator;
 import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+import com.erkatta.pentaho.encryption.util.SecretCache;
+import com.erkatta.pentaho.encryption.util.SingleFlight;
 
 /**
  * This class handles a stronger encryption of passwords than the default one
@@ -41,7 +96,7 @@ import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
  *
  */
 @TwoWayPasswordEncoderPlugin(id = "SPE", name = "StrongPasswordEncoder")
-public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
+public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface, Closeable {
 
 	/** The name of the system property that carries the public key file name. **/
 	private static final String PUBLIC_KEY_FILENAME_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_PUBKEY_FILENAME";
@@ -51,6 +106,48 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 	private static final String PUBLIC_KEY_PATH_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_PUBKEY_PATH";
 	/** The name of the system property that carries the private key file path. **/
 	private static final String PRIVATE_KEY_PATH_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_PRIVKEY_PATH";
+	/** The name of the system property that carries the maximum number of decrypted passwords to cache. **/
+	private static final String CACHE_SIZE_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_CACHE_SIZE";
+	/** The name of the system property that carries the time to live, in seconds, of a cached password. **/
+	private static final String CACHE_TTL_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_CACHE_TTL";
+	/** The name of the system property that keeps the cached passwords outside of the heap. **/
+	private static final String CACHE_OFF_HEAP_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_CACHE_OFF_HEAP";
+	/** The name of the system property that carries the maximum length of a password cached outside of the heap. **/
+	private static final String CACHE_OFF_HEAP_LENGTH_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_CACHE_OFF_HEAP_LENGTH";
+	/** The name of the system property that carries the maximum number of encrypted passwords to reuse. **/
+	private static final String ENCODE_CACHE_SIZE_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_ENCODE_CACHE_SIZE";
+	/** The time in milliseconds after which the decryption agent is considered down. **/
+	private static final int AGENT_TIMEOUT_MILLIS = 5000;
+	/** The name of the system property that enables the envelope encryption of new passwords. **/
+	private static final String ENVELOPE_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_ENVELOPE";
+	/** The name of the system property that carries the number of threads used by bulk operations. **/
+	private static final String PARALLELISM_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_PARALLELISM";
+	/** The name of the system property that carries the number of asynchronous decodes waiting for a thread. **/
+	private static final String ASYNC_QUEUE_SIZE_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_ASYNC_QUEUE_SIZE";
+	/** The name of the system property that enables the self-describing header of new encrypted passwords. **/
+	private static final String HEADER_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_HEADER";
+	/** The name of the system property that carries the path of the directory holding the retired key pairs. **/
+	private static final String KEYRING_PATH_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_KEYRING_PATH";
+	/** The name of the system property that carries the asymmetric algorithm, RSA or EC. **/
+	private static final String ALGORITHM_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_ALGORITHM";
+	/** The name of the system property that carries the security provider, or "auto" to pick the fastest one. **/
+	private static final String PROVIDER_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_PROVIDER";
+	/** The name of the system property that enables the loading of the keys on first use. **/
+	static final String LAZY_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_LAZY";
+	/** The name of the system property that enables the background warm-up at startup. **/
+	private static final String WARMUP_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_WARMUP";
+	/** The name of the system property that enables the decryption of the kettle.properties passwords at startup. **/
+	private static final String PRELOAD_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_PRELOAD";
+	/** The name of the system property that enables the decryption of the shared.xml passwords at startup. **/
+	private static final String PRELOAD_SHARED_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_PRELOAD_SHARED";
+	/** The name of the system property that sets the size in bytes of the chunks of the encrypted files. **/
+	private static final String FILE_CHUNK_SIZE_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_FILE_CHUNK_SIZE";
+	/** The name of the system property that enables the publication of the metrics through JMX. **/
+	private static final String JMX_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_JMX";
+	/** The name of the system property that carries the class name of an additional metrics listener. **/
+	private static final String METRICS_LISTENER_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_METRICS_LISTENER";
+	/** The name of the system property that enables the reload of the keys when the key files change. **/
+	private static final String WATCH_KEYS_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_WATCH_KEYS";
 
 	/** The default public key file name. **/
 	private static final String PUBLIC_KEY_FILENAME_DEFAUT = "public.key";
@@ -60,6 +157,48 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 	private static final String PUBLIC_KEY_PATH_DEFAUT = "./";
 	/** The default private key file path. **/
 	private static final String PRIVATE_KEY_PATH_DEFAULT = "./";
+	/** The default maximum number of decrypted passwords to cache, zero disables the cache. **/
+	private static final String CACHE_SIZE_DEFAULT = "0";
+	/** The default time to live, in seconds, of a cached password. **/
+	private static final String CACHE_TTL_DEFAULT = "300";
+	/** By default every encoding encrypts the password again. **/
+	private static final String ENCODE_CACHE_SIZE_DEFAULT = "0";
+	/** By default the cached passwords are kept on the heap. **/
+	private static final String CACHE_OFF_HEAP_DEFAULT = "N";
+	/** The default maximum length, in characters, of a password cached outside of the heap. **/
+	private static final String CACHE_OFF_HEAP_LENGTH_DEFAULT = "256";
+	/** The default number of asynchronous decodes waiting for a thread. **/
+	private static final String ASYNC_QUEUE_SIZE_DEFAULT = "1024";
+	/** By default new passwords are encrypted with RSA only. **/
+	private static final String ENVELOPE_DEFAULT = "N";
+	/** By default new encrypted passwords have a self-describing header. **/
+	private static final String HEADER_DEFAULT = "Y";
+	/** The default asymmetric algorithm. **/
+	private static final String ALGORITHM_DEFAULT = "RSA";
+	/** The provider setting that picks the fastest installed provider at startup. **/
+	private static final String PROVIDER_AUTO = "auto";
+	/** The number of measured round trips for each provider, when the fastest one is picked. **/
+	private static final int CALIBRATION_ROUND_TRIPS = 50;
+	/** By default both keys are loaded by {@link #init()}. **/
+	private static final String LAZY_DEFAULT = "N";
+	/** By default there is no warm-up. **/
+	private static final String WARMUP_DEFAULT = "N";
+	/** By default passwords are decrypted the first time they are used. **/
+	private static final String PRELOAD_DEFAULT = "N";
+	/** By default the metrics are not published. **/
+	private static final String JMX_DEFAULT = "N";
+	/** The domain of the JMX object names. **/
+	private static final String JMX_DOMAIN = "com.erkatta.pentaho.encryption";
+	/** The number of created encoders, used to give each MBean a unique name. **/
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+	/** By default the keys are loaded once, by {@link #init()}. **/
+	private static final String WATCH_KEYS_DEFAULT = "N";
+	/** The time, in milliseconds, the key files must stay unchanged before they are reloaded. **/
+	private static final long WATCH_QUIET_PERIOD_MILLIS = 500L;
+	/** The maximum number of passwords remembered as not decryptable. **/
+	private static final int MAX_UNDECRYPTABLE_PASSWORDS = 1024;
+	/** The source of the random data used to validate reloaded keys. **/
+	private static final SecureRandom RANDOM = new SecureRandom();
 
 	/**
 	 * The word that is put before a password to indicate an encrypted form. If this
@@ -67,8 +206,55 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 	 */
 	public static final String PASSWORD_ENCRYPTED_PREFIX = "SPEncrypted ";
 
+	/**
+	 * The word that is put before a password to indicate an envelope encrypted
+	 * form, where the password is encrypted by AES-GCM with a data key wrapped by
+	 * RSA.
+	 */
+	public static final String PASSWORD_ENVELOPE_PREFIX = "SPEnvelope ";
+
+	/** The pattern that matches the passwords encrypted by this encoder, with their prefix. **/
+	private static final Pattern ENCRYPTED_PASSWORD_PATTERN = Pattern.compile("(?<![A-Za-z])("
+			+ Pattern.quote(PASSWORD_ENCRYPTED_PREFIX) + "|" + Pattern.quote(PASSWORD_ENVELOPE_PREFIX)
+			+ ")[A-Za-z0-9+/]+={0,2}");
+
+	/** The asymmetric algorithm of the keys, as identified in {@link CiphertextHeader}. **/
+	private byte algorithm;
+	/** Whether the fastest security provider is picked by {@link #init()}. **/
+	private boolean calibrateProvider;
 	/** The cryptographic utility used to encode and decode passwords. **/
-	private AsymmetricCryptoUtil cryptoUtil;
+	private volatile AsymmetricCryptoUtil cryptoUtil;
+	/** The cryptographic utility used to encode and decode envelope encrypted passwords. **/
+	private volatile EnvelopeCryptoUtil envelopeCryptoUtil;
+	/**
+	 * The cryptographic utilities of every supported algorithm, used to decode
+	 * passwords encrypted with retired keys of another algorithm.
+	 */
+	private final Map<Byte, AsymmetricCryptoUtil> cryptoUtils = new ConcurrentHashMap<>();
+	/** The envelope cryptographic utilities of every supported algorithm. **/
+	private final Map<Byte, EnvelopeCryptoUtil> envelopeCryptoUtils = new ConcurrentHashMap<>();
+	/** The metrics published through JMX, <code>null</code> if they are disabled. **/
+	private StrongPasswordEncoderMetrics metrics;
+	/** The listener of the measurements, which does nothing if metrics are disabled. **/
+	private CryptoMetricsListener metricsListener = CryptoMetricsListener.NONE;
+	/** The name of the registered metrics MBean, <code>null</code> if it is not registered. **/
+	private ObjectName metricsName;
+	/** The log channel, created on first use. **/
+	private volatile LogChannelInterface log;
+	/** Whether new passwords are envelope encrypted. **/
+	private boolean useEnvelope;
+	/** Whether new encrypted passwords have a self-describing header. **/
+	private boolean useHeader;
+	/** The number of threads used by bulk operations. **/
+	private int parallelism;
+	/** The pool that runs bulk operations, created on first use. **/
+	private ForkJoinPool bulkPool;
+	/** The maximum number of asynchronous decodes waiting for a thread. **/
+	private int asyncQueueSize;
+	/** The executor that runs asynchronous decodes, created on first use. **/
+	private ThreadPoolExecutor asyncExecutor;
+	/** The utility that encrypts and decrypts files. **/
+	private FileCryptoUtil fileCryptoUtil;
 
 	/** The public key file name. **/
 	private String publicKeyFilename;
@@ -79,10 +265,40 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 	/** The private key file path. **/
 	private String privateKeyPath;
 
-	/** The public key in a Base64 encoded form. **/
-	private String publicKey = null;
-	/** The private key in a Base64 encoded form. **/
-	private String privateKey = null;
+	/** The path of the directory holding the retired key pairs, <code>null</code> if there is none. **/
+	private String keyRingPath;
+
+	/** The active key pair and the retired ones, <code>null</code> until they are loaded. **/
+	private volatile KeyRing keyRing = null;
+	/** Whether each key is loaded only when an operation first needs it. **/
+	private boolean lazy;
+	/** Whether a background thread warms up the cryptographic code paths at startup. **/
+	private boolean warmUp;
+	/** Whether the passwords of kettle.properties are decrypted into the cache at startup. **/
+	private boolean preload;
+	/** Whether the passwords of shared.xml are decrypted into the cache at startup. **/
+	private boolean preloadShared;
+	/** Whether the keys are reloaded when the key files change. **/
+	private boolean watchKeys;
+	/** The watcher of the key files, <code>null</code> until it is started. **/
+	private KeyFileWatcher keyFileWatcher;
+
+	/** The cache of the decrypted passwords, <code>null</code> if caching is disabled. **/
+	private SecretCache secretCache;
+	/** The cache of the encrypted passwords, <code>null</code> if caching is disabled. **/
+	private EncodeCache encodeCache;
+	/**
+	 * The decryptions in flight, indexed by the encrypted password and by the
+	 * cryptographic utility of its headerless form.
+	 */
+	private final SingleFlight<Entry<AsymmetricCryptoUtil, String>, String> decryptFlights = new SingleFlight<>();
+	/** The client of the decryption agent, <code>null</code> if passwords are decrypted in process. **/
+	private DecryptionAgentClient agentClient;
+	/**
+	 * The passwords without header that RSA has failed to decrypt, which are
+	 * directly handed to the default Kettle decoder next time.
+	 */
+	private final Set<String> undecryptablePasswords = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Creates a new instance of {@link StrongPasswordEncoder}
@@ -92,7 +308,81 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 		privateKeyFilename = EnvUtil.getSystemProperty(PRIVATE_KEY_FILENAME_KEY, PRIVATE_KEY_FILENAME_DEFAULT);
 		publicKeyPath = EnvUtil.getSystemProperty(PUBLIC_KEY_PATH_KEY, PUBLIC_KEY_PATH_DEFAUT);
 		privateKeyPath = EnvUtil.getSystemProperty(PRIVATE_KEY_PATH_KEY, PRIVATE_KEY_PATH_DEFAULT);
-		cryptoUtil = new RsaCryptoUtil();
+		keyRingPath = EnvUtil.getSystemProperty(KEYRING_PATH_KEY);
+		watchKeys = "Y".equalsIgnoreCase(EnvUtil.getSystemProperty(WATCH_KEYS_KEY, WATCH_KEYS_DEFAULT));
+		lazy = "Y".equalsIgnoreCase(EnvUtil.getSystemProperty(LAZY_KEY, LAZY_DEFAULT));
+		warmUp = "Y".equalsIgnoreCase(EnvUtil.getSystemProperty(WARMUP_KEY, WARMUP_DEFAULT));
+		preload = "Y".equalsIgnoreCase(EnvUtil.getSystemProperty(PRELOAD_KEY, PRELOAD_DEFAULT));
+		preloadShared = "Y".equalsIgnoreCase(EnvUtil.getSystemProperty(PRELOAD_SHARED_KEY, PRELOAD_DEFAULT));
+		String algorithmName = EnvUtil.getSystemProperty(ALGORITHM_KEY, ALGORITHM_DEFAULT);
+		if ("RSA".equalsIgnoreCase(algorithmName)) {
+			algorithm = CiphertextHeader.ALGORITHM_RSA;
+		} else if ("EC".equalsIgnoreCase(algorithmName)) {
+			algorithm = CiphertextHeader.ALGORITHM_EC;
+		} else {
+			throw new RuntimeException(
+					"Cannot create the password encoder: unsupported algorithm " + algorithmName + ".");
+		}
+		if ("Y".equalsIgnoreCase(EnvUtil.getSystemProperty(JMX_KEY, JMX_DEFAULT))) {
+			metrics = new StrongPasswordEncoderMetrics(this);
+			metricsListener = metrics;
+		}
+		String metricsListenerClass = EnvUtil.getSystemProperty(METRICS_LISTENER_KEY);
+		if (!Const.isEmpty(metricsListenerClass)) {
+			metricsListener = CryptoMetricsListener.combine(metricsListener, newMetricsListener(metricsListenerClass));
+		}
+		String providerName = EnvUtil.getSystemProperty(PROVIDER_KEY);
+		calibrateProvider = PROVIDER_AUTO.equalsIgnoreCase(providerName);
+		Provider provider = null;
+		if (!Const.isEmpty(providerName) && !calibrateProvider) {
+			provider = Security.getProvider(providerName);
+			if (provider == null) {
+				throw new RuntimeException("Cannot find the security provider " + providerName + ".");
+			}
+		}
+		// The utilities of the other algorithms are created if a password needs them
+		setCryptoUtil(algorithm, newCryptoUtil(algorithm, provider));
+		useEnvelope = "Y".equalsIgnoreCase(EnvUtil.getSystemProperty(ENVELOPE_KEY, ENVELOPE_DEFAULT));
+		useHeader = "Y".equalsIgnoreCase(EnvUtil.getSystemProperty(HEADER_KEY, HEADER_DEFAULT));
+		parallelism = Const.toInt(EnvUtil.getSystemProperty(PARALLELISM_KEY),
+				Runtime.getRuntime().availableProcessors());
+		asyncQueueSize = Math.max(1,
+				Const.toInt(EnvUtil.getSystemProperty(ASYNC_QUEUE_SIZE_KEY, ASYNC_QUEUE_SIZE_DEFAULT), 0));
+		fileCryptoUtil = new FileCryptoUtil(
+				Const.toInt(EnvUtil.getSystemProperty(FILE_CHUNK_SIZE_KEY), FileCryptoUtil.DEFAULT_CHUNK_SIZE),
+				parallelism);
+		int cacheSize = Const.toInt(EnvUtil.getSystemProperty(CACHE_SIZE_KEY, CACHE_SIZE_DEFAULT), 0);
+		if (cacheSize > 0) {
+			long cacheTtl = Const.toLong(EnvUtil.getSystemProperty(CACHE_TTL_KEY, CACHE_TTL_DEFAULT), 0L);
+			int offHeapLength = "Y".equalsIgnoreCase(EnvUtil.getSystemProperty(CACHE_OFF_HEAP_KEY, CACHE_OFF_HEAP_DEFAULT))
+					? Const.toInt(EnvUtil.getSystemProperty(CACHE_OFF_HEAP_LENGTH_KEY, CACHE_OFF_HEAP_LENGTH_DEFAULT), 0)
+					: 0;
+			secretCache = new SecretCache(cacheSize, cacheTtl, TimeUnit.SECONDS, offHeapLength);
+		}
+		int encodeCacheSize = Const.toInt(EnvUtil.getSystemProperty(ENCODE_CACHE_SIZE_KEY, ENCODE_CACHE_SIZE_DEFAULT), 0);
+		if (encodeCacheSize > 0) {
+			encodeCache = new EncodeCache(encodeCacheSize);
+		}
+		if ("Y".equalsIgnoreCase(EnvUtil.getSystemProperty(DecryptionAgent.AGENT_KEY, "N"))) {
+			agentClient = new DecryptionAgentClient(DecryptionAgent.getAgentFile(), AGENT_TIMEOUT_MILLIS);
+		}
+	}
+
+	/**
+	 * Creates a new instance of {@link StrongPasswordEncoder} that uses the
+	 * specified key files instead of the ones set in the environment.
+	 * 
+	 * @param publicKeyFile  the path of the public key file.
+	 * @param privateKeyFile the path of the private key file.
+	 */
+	public StrongPasswordEncoder(String publicKeyFile, String privateKeyFile) {
+		this();
+		Path publicKeyFilePath = Paths.get(publicKeyFile).toAbsolutePath();
+		publicKeyPath = publicKeyFilePath.getParent().toString() + File.separator;
+		publicKeyFilename = publicKeyFilePath.getFileName().toString();
+		Path privateKeyFilePath = Paths.get(privateKeyFile).toAbsolutePath();
+		privateKeyPath = privateKeyFilePath.getParent().toString() + File.separator;
+		privateKeyFilename = privateKeyFilePath.getFileName().toString();
 	}
 
 	/**
@@ -103,8 +393,501 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 	 */
 	@Override
 	public void init() throws KettleException {
-		publicKey = getPublicKeyValue();
-		privateKey = getPrivateKeyValue();
+		// With the agent the private key is read only if the agent is down
+		keyRing = lazy ? null : loadKeyRing(true, agentClient == null);
+		clearCaches();
+		if (calibrateProvider) {
+			calibrateProvider = false;
+			selectFastestProvider();
+		}
+		if (watchKeys) {
+			startKeyFileWatcher();
+		}
+		if (metrics != null) {
+			registerMetrics();
+		}
+		if (preload || preloadShared) {
+			preloadPasswords();
+		}
+		if (warmUp) {
+			Thread warmUpThread = new Thread(this::warmUp, "StrongPasswordEncoder warm-up");
+			warmUpThread.setDaemon(true);
+			warmUpThread.start();
+		}
+	}
+
+	/**
+	 * Releases the resources of the encoder: stops watching the key files, shuts
+	 * down the threads of the bulk and asynchronous operations, closes the
+	 * connections to the decryption agent, unregisters the metrics MBean and
+	 * forgets the keys held by the cryptographic utilities. The encoder must not
+	 * be used afterwards.
+	 */
+	@Override
+	public synchronized void close() {
+		unregisterMetrics();
+		clearCaches();
+		if (bulkPool != null) {
+			bulkPool.shutdown();
+			bulkPool = null;
+		}
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdown();
+			asyncExecutor = null;
+		}
+		if (agentClient != null) {
+			agentClient.close();
+		}
+		if (keyFileWatcher != null) {
+			try {
+				keyFileWatcher.close();
+			} catch (IOException e) {
+				getLog().logError("Cannot stop watching the key files.", e);
+			}
+			keyFileWatcher = null;
+		}
+	}
+
+	/**
+	 * Decrypts in parallel the passwords of kettle.properties and shared.xml into
+	 * the cache, so that running transformations do not pay for their first
+	 * decryption. Passwords that cannot be decrypted are left out.
+	 */
+	private void preloadPasswords() {
+		if (secretCache == null) {
+			getLog().logBasic("The passwords are not preloaded since the cache is disabled.");
+			return;
+		}
+		long start = System.nanoTime();
+		Set<String> encodedPasswords = new LinkedHashSet<>();
+		if (preload) {
+			findKettlePropertiesPasswords(Paths.get(Const.getKettleDirectory(), Const.KETTLE_PROPERTIES),
+					encodedPasswords);
+		}
+		if (preloadShared) {
+			String sharedObjectsFile = EnvUtil.getSystemProperty(Const.KETTLE_SHARED_OBJECTS);
+			findSharedObjectsPasswords(Const.isEmpty(sharedObjectsFile)
+					? Paths.get(Const.getKettleDirectory(), Const.SHARED_DATA_FILE)
+					: Paths.get(sharedObjectsFile), encodedPasswords);
+		}
+		long failures = decodeAll(encodedPasswords).stream().filter(result -> !result.isSuccessful()).count();
+		getLog().logBasic("Preloaded " + (encodedPasswords.size() - failures) + " passwords in "
+				+ (System.nanoTime() - start) / 1000000L + " ms.");
+		if (failures > 0) {
+			getLog().logBasic(failures + " passwords cannot be decrypted and have not been preloaded.");
+		}
+	}
+
+	/**
+	 * Finds the encrypted passwords among the values of a properties file.
+	 * 
+	 * @param file             the properties file, ignored if it does not exist.
+	 * @param encodedPasswords the collection that receives the encrypted
+	 *                         passwords, with their prefix.
+	 */
+	private void findKettlePropertiesPasswords(Path file, Collection<String> encodedPasswords) {
+		if (!Files.isRegularFile(file)) {
+			return;
+		}
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)) {
+			properties.load(reader);
+		} catch (IOException | IllegalArgumentException e) {
+			getLog().logError("Cannot read " + file + ", its passwords are not preloaded.", e);
+			return;
+		}
+		for (String value : properties.stringPropertyNames()) {
+			findPasswords(properties.getProperty(value), encodedPasswords);
+		}
+	}
+
+	/**
+	 * Finds the encrypted passwords in a shared objects file.
+	 * 
+	 * @param file             the shared objects file, ignored if it does not
+	 *                         exist.
+	 * @param encodedPasswords the collection that receives the encrypted
+	 *                         passwords, with their prefix.
+	 */
+	private void findSharedObjectsPasswords(Path file, Collection<String> encodedPasswords) {
+		if (!Files.isRegularFile(file)) {
+			return;
+		}
+		try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+			lines.forEach(line -> findPasswords(line, encodedPasswords));
+		} catch (IOException | UncheckedIOException e) {
+			getLog().logError("Cannot read " + file + ", its passwords are not preloaded.", e);
+		}
+	}
+
+	/**
+	 * Finds the passwords encrypted by this encoder in a text.
+	 * 
+	 * @param text             the text.
+	 * @param encodedPasswords the collection that receives the encrypted
+	 *                         passwords, with their prefix.
+	 */
+	private static void findPasswords(String text, Collection<String> encodedPasswords) {
+		Matcher matcher = ENCRYPTED_PASSWORD_PATTERN.matcher(text);
+		while (matcher.find()) {
+			encodedPasswords.add(matcher.group());
+		}
+	}
+
+	/**
+	 * Loads the keys from the key files.
+	 * 
+	 * @param publicKey  whether the public key is loaded.
+	 * @param privateKey whether the private key, and the retired ones, are loaded.
+	 * @return the loaded keys.
+	 */
+	private KeyRing loadKeyRing(boolean publicKey, boolean privateKey) {
+		return new KeyRing(publicKey ? getPublicKeyValue() : null, privateKey ? getPrivateKeyValue() : null,
+				privateKey ? getRetiredKeys() : Collections.emptyMap());
+	}
+
+	/**
+	 * Gets the keys, loading the ones an operation needs if they are not loaded
+	 * yet.
+	 * 
+	 * @param publicKey  whether the operation needs the public key.
+	 * @param privateKey whether the operation needs the private keys.
+	 * @return the keys.
+	 */
+	private KeyRing getKeyRing(boolean publicKey, boolean privateKey) {
+		KeyRing keys = keyRing;
+		if (keys == null || (publicKey && !keys.hasPublicKey()) || (privateKey && !keys.hasPrivateKey())) {
+			synchronized (this) {
+				keys = keyRing;
+				boolean loadPublicKey = publicKey || (keys != null && keys.hasPublicKey());
+				boolean loadPrivateKey = privateKey || (keys != null && keys.hasPrivateKey());
+				if (keys == null || loadPublicKey != keys.hasPublicKey() || loadPrivateKey != keys.hasPrivateKey()) {
+					keys = loadKeyRing(loadPublicKey, loadPrivateKey);
+					keyRing = keys;
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Runs a round trip through the cryptographic utilities, so that the security
+	 * providers are loaded and the code paths are compiled before the first real
+	 * password is decoded. In lazy mode the private key is loaded as well.
+	 */
+	private void warmUp() {
+		long start = System.nanoTime();
+		try {
+			KeyRing keys = getKeyRing(false, true);
+			String publicKey;
+			String privateKey;
+			if (keys.hasPublicKey()) {
+				publicKey = keys.getActivePublicKey();
+				privateKey = keys.getActivePrivateKey();
+			} else {
+				// Decrypt-only node, a throwaway key pair does the job
+				Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+				publicKey = keyPair.getPublicKey();
+				privateKey = keyPair.getPrivateKey();
+			}
+			byte[] probe = new byte[16];
+			RANDOM.nextBytes(probe);
+			for (AsymmetricCryptoUtil util : Arrays.asList(cryptoUtil, envelopeCryptoUtil)) {
+				util.decrypt(util.encrypt(probe, publicKey), privateKey);
+			}
+			getLog().logDetailed("Warm-up completed in " + (System.nanoTime() - start) / 1000000 + " ms.");
+		} catch (RuntimeException e) {
+			getLog().logError("Cannot warm up.", e);
+		}
+	}
+
+	/**
+	 * Reloads the keys from the key files. The new keys are validated before they
+	 * replace the current ones, which stay in use if the validation fails.
+	 * Decodes in progress complete with the keys they have started with.
+	 * 
+	 * @throws RuntimeException if the keys cannot be loaded or do not match.
+	 */
+	public void reloadKeys() {
+		KeyRing currentKeyRing = keyRing;
+		if (lazy && currentKeyRing == null) {
+			clearCaches();
+			return;
+		}
+		KeyRing newKeyRing = lazy ? loadKeyRing(currentKeyRing.hasPublicKey(), currentKeyRing.hasPrivateKey())
+				: loadKeyRing(true, true);
+		if (newKeyRing.hasPublicKey() && newKeyRing.hasPrivateKey()) {
+			byte[] probe = new byte[16];
+			RANDOM.nextBytes(probe);
+			if (!Arrays.equals(probe, cryptoUtil.decrypt(cryptoUtil.encrypt(probe, newKeyRing.getActivePublicKey()),
+					newKeyRing.getActivePrivateKey()))) {
+				throw new RuntimeException("Cannot reload keys: the public and private keys do not match.");
+			}
+		}
+		keyRing = newKeyRing;
+		clearCaches();
+	}
+
+	/**
+	 * Creates the cryptographic utility of an algorithm.
+	 * 
+	 * @param algorithm the algorithm, as identified in {@link CiphertextHeader}.
+	 * @param provider  the security provider, <code>null</code> for the default
+	 *                  one.
+	 * @return the cryptographic utility.
+	 */
+	private static AsymmetricCryptoUtil newCryptoUtil(byte algorithm, Provider provider) {
+		return algorithm == CiphertextHeader.ALGORITHM_EC ? new EcCryptoUtil(provider) : new RsaCryptoUtil(provider);
+	}
+
+	/**
+	 * Gets the cryptographic utility of an algorithm, creating it on first use.
+	 * 
+	 * @param utilAlgorithm the algorithm, as identified in
+	 *                      {@link CiphertextHeader}.
+	 * @param envelope      whether the envelope cryptographic utility is needed.
+	 * @return the cryptographic utility.
+	 * @throws RuntimeException if the algorithm is not supported.
+	 */
+	private AsymmetricCryptoUtil getCryptoUtil(byte utilAlgorithm, boolean envelope) {
+		if (utilAlgorithm != CiphertextHeader.ALGORITHM_RSA && utilAlgorithm != CiphertextHeader.ALGORITHM_EC) {
+			throw new RuntimeException("Cannot decrypt data: unsupported algorithm " + utilAlgorithm + ".");
+		}
+		AsymmetricCryptoUtil util = cryptoUtils.computeIfAbsent(utilAlgorithm,
+				key -> instrument(newCryptoUtil(key, null)));
+		return envelope ? envelopeCryptoUtils.computeIfAbsent(utilAlgorithm, key -> new EnvelopeCryptoUtil(util))
+				: util;
+	}
+
+	/**
+	 * Makes a cryptographic utility report its measurements to the metrics
+	 * listener.
+	 * 
+	 * @param util the cryptographic utility.
+	 * @return the same cryptographic utility.
+	 */
+	private AsymmetricCryptoUtil instrument(AsymmetricCryptoUtil util) {
+		if (util instanceof RsaCryptoUtil) {
+			((RsaCryptoUtil) util).setMetricsListener(metricsListener);
+		} else if (util instanceof EcCryptoUtil) {
+			((EcCryptoUtil) util).setMetricsListener(metricsListener);
+		}
+		return util;
+	}
+
+	/**
+	 * Sets the cryptographic utility of an algorithm, together with the matching
+	 * envelope cryptographic utility.
+	 * 
+	 * @param utilAlgorithm the algorithm, as identified in
+	 *                      {@link CiphertextHeader}.
+	 * @param util          the cryptographic utility.
+	 */
+	private void setCryptoUtil(byte utilAlgorithm, AsymmetricCryptoUtil util) {
+		instrument(util);
+		EnvelopeCryptoUtil envelopeUtil = new EnvelopeCryptoUtil(util);
+		cryptoUtils.put(utilAlgorithm, util);
+		envelopeCryptoUtils.put(utilAlgorithm, envelopeUtil);
+		if (utilAlgorithm == algorithm) {
+			cryptoUtil = util;
+			envelopeCryptoUtil = envelopeUtil;
+		}
+	}
+
+	/**
+	 * Measures the installed security providers with the active keys and uses the
+	 * fastest one that works. The timings and the choice are logged.
+	 */
+	private void selectFastestProvider() {
+		KeyRing keys = getKeyRing(true, true);
+		List<ProviderCalibrator.Timing> timings = new ProviderCalibrator(
+				provider -> newCryptoUtil(algorithm, provider), CALIBRATION_ROUND_TRIPS)
+						.calibrate(keys.getActivePublicKey(), keys.getActivePrivateKey());
+		for (ProviderCalibrator.Timing timing : timings) {
+			getLog().logDetailed("Security provider " + timing);
+		}
+		if (timings.isEmpty()) {
+			getLog().logError("Cannot find a working security provider, the default one is used.");
+			return;
+		}
+		setCryptoUtil(algorithm, timings.get(0).getCryptoUtil());
+		getLog().logBasic("Using the security provider " + timings.get(0));
+	}
+
+	/**
+	 * Creates a metrics listener.
+	 * 
+	 * @param className the class name of the listener, which must have a public
+	 *                  constructor without arguments.
+	 * @return the listener.
+	 */
+	private static CryptoMetricsListener newMetricsListener(String className) {
+		try {
+			return Class.forName(className, true, StrongPasswordEncoder.class.getClassLoader())
+					.asSubclass(CryptoMetricsListener.class).getConstructor().newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new RuntimeException("Cannot create the metrics listener " + className + ".", e);
+		}
+	}
+
+	/**
+	 * Registers the metrics MBean in the platform MBean server, unless it is
+	 * already registered.
+	 */
+	private synchronized void registerMetrics() {
+		if (metricsName != null) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(
+					JMX_DOMAIN + ":type=StrongPasswordEncoder,name=encoder-" + INSTANCES.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+			metricsName = name;
+		} catch (JMException e) {
+			getLog().logError("Cannot publish the metrics through JMX.", e);
+		}
+	}
+
+	/**
+	 * Unregisters the metrics MBean from the platform MBean server, if it is
+	 * registered.
+	 */
+	private synchronized void unregisterMetrics() {
+		if (metricsName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		} catch (JMException e) {
+			getLog().logError("Cannot unpublish the metrics from JMX.", e);
+		}
+		metricsName = null;
+	}
+
+	/**
+	 * Gets the metrics published through JMX.
+	 * 
+	 * @return the metrics or <code>null</code> if they are disabled.
+	 */
+	public StrongPasswordEncoderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the cryptographic utilities created so far.
+	 * 
+	 * @return the cryptographic utilities.
+	 */
+	Collection<AsymmetricCryptoUtil> getCryptoUtils() {
+		return cryptoUtils.values();
+	}
+
+	/**
+	 * Gets the envelope cryptographic utilities created so far.
+	 * 
+	 * @return the envelope cryptographic utilities.
+	 */
+	Collection<EnvelopeCryptoUtil> getEnvelopeCryptoUtils() {
+		return envelopeCryptoUtils.values();
+	}
+
+	/**
+	 * Gets the number of passwords remembered as not decryptable.
+	 * 
+	 * @return the number of passwords.
+	 */
+	int getUndecryptablePasswordCount() {
+		return undecryptablePasswords.size();
+	}
+
+	/**
+	 * Gets the log channel, creating it on first use.
+	 * 
+	 * @return the log channel.
+	 */
+	private LogChannelInterface getLog() {
+		if (log == null) {
+			log = new LogChannel("StrongPasswordEncoder");
+		}
+		return log;
+	}
+
+	/**
+	 * Clears the caches tied to the keys, including the parsed keys and the
+	 * initialized ciphers of the cryptographic utilities.
+	 */
+	private void clearCaches() {
+		for (AsymmetricCryptoUtil util : cryptoUtils.values()) {
+			util.clear();
+		}
+		for (EnvelopeCryptoUtil util : envelopeCryptoUtils.values()) {
+			util.clear();
+		}
+		undecryptablePasswords.clear();
+		if (secretCache != null) {
+			secretCache.clear();
+		}
+		if (encodeCache != null) {
+			encodeCache.clear();
+		}
+	}
+
+	/**
+	 * Starts watching the key files, unless the watcher is already running.
+	 */
+	private synchronized void startKeyFileWatcher() {
+		if (keyFileWatcher != null) {
+			return;
+		}
+		List<Path> paths = new ArrayList<>();
+		paths.add(Paths.get(publicKeyPath, publicKeyFilename));
+		paths.add(Paths.get(privateKeyPath, privateKeyFilename));
+		if (!Const.isEmpty(keyRingPath)) {
+			paths.add(Paths.get(keyRingPath));
+		}
+		LogChannelInterface log = getLog();
+		try {
+			keyFileWatcher = new KeyFileWatcher(paths, WATCH_QUIET_PERIOD_MILLIS, () -> {
+				try {
+					reloadKeys();
+					log.logBasic("Keys reloaded.");
+				} catch (RuntimeException e) {
+					log.logError("Cannot reload keys, the current ones are still used.", e);
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot watch the key files.", e);
+		}
+	}
+
+	/**
+	 * Gets the number of decodes that have shared the decryption of the same
+	 * password by another thread.
+	 * 
+	 * @return the number of coalesced decodes.
+	 */
+	public long getCoalescedDecodeCount() {
+		return decryptFlights.getSharedCount();
+	}
+
+	/**
+	 * Gets the cache of the decrypted passwords.
+	 * 
+	 * @return the cache of the decrypted passwords or <code>null</code> if caching
+	 *         is disabled.
+	 */
+	public SecretCache getSecretCache() {
+		return secretCache;
+	}
+
+	/**
+	 * Gets the cache of the encrypted passwords.
+	 * 
+	 * @return the cache of the encrypted passwords or <code>null</code> if caching
+	 *         is disabled.
+	 */
+	public EncodeCache getEncodeCache() {
+		return encodeCache;
 	}
 
 	/**
@@ -128,10 +911,15 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 	 */
 	@Override
 	public String encode(String rawPassword, boolean includePrefix) {
-		if (includePrefix) {
-			return encryptPasswordIfNotUsingVariablesInternal(rawPassword);
-		} else {
-			return encrypt(rawPassword);
+		long start = System.nanoTime();
+		try {
+			String encodedPassword = includePrefix ? encryptPasswordIfNotUsingVariablesInternal(rawPassword)
+					: encrypt(rawPassword);
+			metricsListener.onEncode(System.nanoTime() - start);
+			return encodedPassword;
+		} catch (RuntimeException e) {
+			metricsListener.onFailure();
+			throw e;
 		}
 	}
 
@@ -143,21 +931,67 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 	 */
 	@Override
 	public String decode(String encodedPassword) {
-		if (encodedPassword != null && encodedPassword.startsWith(PASSWORD_ENCRYPTED_PREFIX)) {
-			encodedPassword = encodedPassword.substring(PASSWORD_ENCRYPTED_PREFIX.length());
-		} else if (encodedPassword != null
-				&& encodedPassword.startsWith(KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX)) {
-			encodedPassword = encodedPassword.substring(KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX.length());
+		long start = System.nanoTime();
+		try {
+			if (needsPrivateKey(encodedPassword)) {
+				String decodedPassword = decodeWithAgent(DecryptionAgent.OPERATION_DECODE, encodedPassword);
+				if (decodedPassword != null) {
+					return decoded(DecodeFormat.AGENT, start, decodedPassword);
+				}
+			}
+			return decodeUnprefixed(encodedPassword, start);
+		} catch (RuntimeException e) {
+			metricsListener.onFailure();
+			throw e;
+		}
+	}
 
+	/**
+	 * Decodes a password which does NOT have a prefix attached, reporting its
+	 * format to the metrics listener.
+	 * 
+	 * @param encodedPassword The encoded password without a prefix
+	 * @param start           The time the decoding has started, as returned by
+	 *                        {@link System#nanoTime()}
+	 * @return The decoded password string
+	 */
+	private String decodeUnprefixed(String encodedPassword, long start) {
+		if (encodedPassword == null) {
+			return decoded(DecodeFormat.KETTLE, start, KettleTwoWayPasswordEncoder.decryptPassword(null));
 		}
-		try {
-			return decrypt(encodedPassword);
-		} catch (Exception e) {
-			// If the decription has failed fallback to the default KettleTwoWayPasswordEncoder. 
-			// Using the deprecated method to support default obfuscation without messing up
-			// with a new instance of Encr object.
-			return KettleTwoWayPasswordEncoder.decryptPassword(encodedPassword);
+		// The prefix is skipped, not cut off, so that the password is not copied
+		int offset = 0;
+		if (encodedPassword.startsWith(PASSWORD_ENVELOPE_PREFIX)) {
+			return decoded(DecodeFormat.ENVELOPE, start,
+					decrypt(encodedPassword, PASSWORD_ENVELOPE_PREFIX.length(), envelopeCryptoUtil));
+		} else if (encodedPassword.startsWith(PASSWORD_ENCRYPTED_PREFIX)) {
+			offset = PASSWORD_ENCRYPTED_PREFIX.length();
+		} else if (encodedPassword.startsWith(KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX)) {
+			offset = KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX.length();
+		}
+		switch (CiphertextHeader.detect(encodedPassword, offset, encodedPassword.length())) {
+		case HEADER:
+			return decoded(DecodeFormat.STRONG, start, decrypt(encodedPassword, offset, cryptoUtil));
+		case HEADERLESS:
+			String unprefixedPassword = encodedPassword.substring(offset);
+			if (!undecryptablePasswords.contains(unprefixedPassword)) {
+				try {
+					return decoded(DecodeFormat.STRONG, start, decryptUnprefixed(encodedPassword, offset));
+				} catch (Exception e) {
+					metricsListener.onFallback();
+					rememberUndecryptable(unprefixedPassword);
+				}
+			}
+			break;
+		default:
+			// Kettle obfuscated or unknown, not worth an RSA operation
+			break;
 		}
+		// Fallback to the default KettleTwoWayPasswordEncoder.
+		// Using the deprecated method to support default obfuscation without messing up
+		// with a new instance of Encr object.
+		return decoded(DecodeFormat.KETTLE, start,
+				KettleTwoWayPasswordEncoder.decryptPassword(encodedPassword.substring(offset)));
 	}
 
 	/**
@@ -175,21 +1009,213 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 			return null;
 		}
 
-		if (optionallyEncrypted) {
+		long start = System.nanoTime();
+		try {
+			if (!optionallyEncrypted || needsPrivateKey(encodedPassword)) {
+				String decodedPassword = decodeWithAgent(optionallyEncrypted
+						? DecryptionAgent.OPERATION_DECODE_OPTIONALLY_ENCRYPTED
+						: DecryptionAgent.OPERATION_DECODE_ENCRYPTED, encodedPassword);
+				if (decodedPassword != null) {
+					return decoded(DecodeFormat.AGENT, start, decodedPassword);
+				}
+			}
+			if (optionallyEncrypted) {
 
-			if (encodedPassword.startsWith(PASSWORD_ENCRYPTED_PREFIX)) {
-				encodedPassword = encodedPassword.substring(PASSWORD_ENCRYPTED_PREFIX.length());
-				return decrypt(encodedPassword);
-			} else if (encodedPassword.startsWith(KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX)) {
-				// Using the deprecated method to support default obfuscation without messing up
-				// with a new instance of Encr object.
-				return KettleTwoWayPasswordEncoder.decryptPasswordOptionallyEncrypted(encodedPassword);
+				if (encodedPassword.startsWith(PASSWORD_ENCRYPTED_PREFIX)) {
+					return decoded(DecodeFormat.STRONG, start,
+							decrypt(encodedPassword, PASSWORD_ENCRYPTED_PREFIX.length(), cryptoUtil));
+				} else if (encodedPassword.startsWith(PASSWORD_ENVELOPE_PREFIX)) {
+					return decoded(DecodeFormat.ENVELOPE, start,
+							decrypt(encodedPassword, PASSWORD_ENVELOPE_PREFIX.length(), envelopeCryptoUtil));
+				} else if (encodedPassword.startsWith(KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX)) {
+					// Using the deprecated method to support default obfuscation without messing up
+					// with a new instance of Encr object.
+					return decoded(DecodeFormat.KETTLE, start,
+							KettleTwoWayPasswordEncoder.decryptPasswordOptionallyEncrypted(encodedPassword));
+				} else {
+					return decoded(DecodeFormat.PLAINTEXT, start, encodedPassword);
+				}
 			} else {
-				return encodedPassword;
+				return decoded(DecodeFormat.STRONG, start, decryptUnprefixed(encodedPassword, 0));
 			}
-		} else {
-			return decrypt(encodedPassword);
+		} catch (RuntimeException e) {
+			metricsListener.onFailure();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks whether decoding a password needs the private key: such passwords
+	 * are sent to the decryption agent, if any.
+	 * 
+	 * @param encodedPassword The encoded password with or without a prefix
+	 * @return <code>true</code> if the password is encrypted by this plugin
+	 */
+	private boolean needsPrivateKey(String encodedPassword) {
+		if (agentClient == null || encodedPassword == null) {
+			return false;
+		}
+		if (encodedPassword.startsWith(PASSWORD_ENCRYPTED_PREFIX)
+				|| encodedPassword.startsWith(PASSWORD_ENVELOPE_PREFIX)) {
+			return true;
+		}
+		CiphertextHeader.Format format = CiphertextHeader.detect(encodedPassword);
+		return format == CiphertextHeader.Format.HEADER || format == CiphertextHeader.Format.HEADERLESS;
+	}
+
+	/**
+	 * Decodes a password with the decryption agent.
+	 * 
+	 * @param operation       The decoding operation of the agent
+	 * @param encodedPassword The encoded password
+	 * @return The decoded password string, or <code>null</code> if the agent is
+	 *         disabled or down and the password must be decoded in process
+	 */
+	private String decodeWithAgent(byte operation, String encodedPassword) {
+		if (agentClient == null || encodedPassword == null || !agentClient.isAvailable()) {
+			return null;
 		}
+		try {
+			CryptoResult<String> result = agentClient.decode(operation, encodedPassword);
+			if (!result.isSuccessful()) {
+				throw result.getError();
+			}
+			return result.getValue();
+		} catch (IOException e) {
+			agentUnavailable(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Reports that the decryption agent is down, so that passwords are decoded
+	 * in process for a while.
+	 * 
+	 * @param e the error that occurred contacting the agent.
+	 */
+	private void agentUnavailable(IOException e) {
+		metricsListener.onFallback();
+		getLog().logDetailed("The decryption agent is not available, decrypting in process: " + e);
+	}
+
+	/**
+	 * Reports a decoded password to the metrics listener.
+	 * 
+	 * @param format          the format of the password.
+	 * @param start           the time the decoding has started, as returned by
+	 *                        {@link System#nanoTime()}.
+	 * @param decodedPassword the decoded password.
+	 * @return the decoded password.
+	 */
+	private String decoded(DecodeFormat format, long start, String decodedPassword) {
+		metricsListener.onDecode(format, System.nanoTime() - start);
+		return decodedPassword;
+	}
+
+	/**
+	 * Encodes many raw passwords in parallel, including a prefix indicating the
+	 * type of encryption used.
+	 * 
+	 * @param rawPasswords The passwords to encode
+	 * @return The encoded password strings, in the same order as the input, with
+	 *         the error of every password that could not be encoded
+	 */
+	public List<CryptoResult<String>> encodeAll(Collection<String> rawPasswords) {
+		return BatchProcessor.process(rawPasswords, this::encode, getBulkPool());
+	}
+
+	/**
+	 * Decodes many passwords in parallel. Every password is optionally encrypted,
+	 * as indicated by its prefix.
+	 * 
+	 * @param encodedPasswords The encoded passwords with or without a prefix
+	 * @return The decoded password strings, in the same order as the input, with
+	 *         the error of every password that could not be decoded
+	 */
+	public List<CryptoResult<String>> decodeAll(Collection<String> encodedPasswords) {
+		List<String> agentPasswords = agentClient != null && agentClient.isAvailable()
+				? copyNonNull(encodedPasswords)
+				: null;
+		if (agentPasswords != null) {
+			long start = System.nanoTime();
+			try {
+				// A single round trip for all the passwords
+				List<CryptoResult<String>> results = agentClient
+						.decodeAll(DecryptionAgent.OPERATION_DECODE_OPTIONALLY_ENCRYPTED, agentPasswords);
+				long nanos = (System.nanoTime() - start) / Math.max(results.size(), 1);
+				for (int i = 0; i < results.size(); i++) {
+					metricsListener.onDecode(DecodeFormat.AGENT, nanos);
+				}
+				return results;
+			} catch (IOException e) {
+				agentUnavailable(e);
+			}
+		}
+		return BatchProcessor.process(encodedPasswords, encodedPassword -> decode(encodedPassword, true),
+				getBulkPool());
+	}
+
+	/**
+	 * Copies the passwords to send to the decryption agent, that cannot transfer
+	 * null values. The passwords are checked while copying, as some collections
+	 * reject the lookup of null.
+	 * 
+	 * @param passwords the passwords to copy.
+	 * @return the copied passwords, or null if any of them is null.
+	 */
+	private static List<String> copyNonNull(Collection<String> passwords) {
+		List<String> copy = new ArrayList<>(passwords.size());
+		for (String password : passwords) {
+			if (password == null) {
+				return null;
+			}
+			copy.add(password);
+		}
+		return copy;
+	}
+
+	/**
+	 * Decodes a password on a dedicated pool of {@link #PARALLELISM_KEY} threads,
+	 * so that the caller can go on with other work meanwhile. When
+	 * {@link #ASYNC_QUEUE_SIZE_KEY} decodes are already waiting, the password is
+	 * decoded by the calling thread instead.
+	 * 
+	 * @param encodedPassword     The encoded password with or without a prefix
+	 * @param optionallyEncrypted Set to true if the password is optionally
+	 *                            encrypted (indicated by a prefix).
+	 * @return The decoded password string, or the error of the decoding
+	 */
+	public CompletableFuture<String> decodeAsync(String encodedPassword, boolean optionallyEncrypted) {
+		return CompletableFuture.supplyAsync(() -> decode(encodedPassword, optionallyEncrypted), getAsyncExecutor());
+	}
+
+	/**
+	 * Encrypts a file of any size with the public key, using a constant amount of
+	 * memory and {@link #PARALLELISM_KEY} threads.
+	 * 
+	 * @param source The file to encrypt
+	 * @param target The encrypted file, replaced if it exists
+	 * @throws IOException if a file cannot be read or written
+	 */
+	public void encryptFile(Path source, Path target) throws IOException {
+		KeyRing keys = getKeyRing(true, false);
+		CiphertextHeader header = new CiphertextHeader(algorithm, CiphertextHeader.MODE_ENVELOPE,
+				keys.getActiveKeyId());
+		fileCryptoUtil.encrypt(source, target, header, cryptoUtil, keys.getActivePublicKey());
+	}
+
+	/**
+	 * Decrypts a file encrypted by {@link #encryptFile(Path, Path)}, with the
+	 * private key of the key pair that encrypted it.
+	 * 
+	 * @param source The file to decrypt
+	 * @param target The decrypted file, replaced if it exists
+	 * @throws IOException if a file cannot be read or written
+	 */
+	public void decryptFile(Path source, Path target) throws IOException {
+		KeyRing keys = getKeyRing(false, true);
+		fileCryptoUtil.decrypt(source, target, (header, wrappedKey) -> getCryptoUtil(header.getAlgorithm(), false)
+				.decrypt(wrappedKey, keys.getPrivateKey(header.getKeyId())));
 	}
 
 	/**
@@ -200,7 +1226,41 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 	 */
 	@Override
 	public String[] getPrefixes() {
-		return new String[] { PASSWORD_ENCRYPTED_PREFIX, KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX };
+		return new String[] { PASSWORD_ENCRYPTED_PREFIX, PASSWORD_ENVELOPE_PREFIX,
+				KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX };
+	}
+
+	/**
+	 * Gets the pool that runs bulk operations, creating it on first use.
+	 * 
+	 * @return the pool that runs bulk operations.
+	 */
+	private synchronized ForkJoinPool getBulkPool() {
+		if (bulkPool == null) {
+			bulkPool = new ForkJoinPool(Math.max(1, parallelism));
+		}
+		return bulkPool;
+	}
+
+	/**
+	 * Gets the executor that runs asynchronous decodes, creating it on first use.
+	 * Its threads are daemon threads that stop when they stay idle.
+	 * 
+	 * @return the executor that runs asynchronous decodes.
+	 */
+	private synchronized ThreadPoolExecutor getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			AtomicInteger threads = new AtomicInteger();
+			int poolSize = Math.max(1, parallelism);
+			asyncExecutor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(asyncQueueSize), runnable -> {
+						Thread thread = new Thread(runnable, "StrongPasswordEncoder async " + threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+			asyncExecutor.allowCoreThreadTimeOut(true);
+		}
+		return asyncExecutor;
 	}
 
 	/**
@@ -217,6 +1277,23 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 
 	}
 
+	/**
+	 * Gets the private keys of the retired key pairs.
+	 * 
+	 * @return the Base64 values of the retired private keys, indexed by the
+	 *         identifier of their key pair.
+	 */
+	private Map<Long, String> getRetiredKeys() {
+		if (Const.isEmpty(keyRingPath)) {
+			return Collections.emptyMap();
+		}
+		try {
+			return KeyRing.loadRetiredKeys(Paths.get(keyRingPath));
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot load the key ring.", e);
+		}
+	}
+
 	/**
 	 * Gets the Base64 value of the public key.
 	 * 
@@ -232,23 +1309,260 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 	}
 
 	/**
-	 * Decrypts an encrypted password.
+	 * Remembers a password that cannot be decrypted, so that no RSA operation is
+	 * wasted on it next time.
+	 * 
+	 * @param encodedPassword the password that cannot be decrypted.
+	 */
+	private void rememberUndecryptable(String encodedPassword) {
+		if (undecryptablePasswords.size() >= MAX_UNDECRYPTABLE_PASSWORDS) {
+			undecryptablePasswords.clear();
+		}
+		undecryptablePasswords.add(encodedPassword);
+	}
+
+	/**
+	 * Decrypts an encrypted password that has no prefix, which could be either RSA
+	 * or envelope encrypted.
 	 * 
 	 * @param encryptedPassword the password to decrypt.
+	 * @param offset            the index where the password starts, after its
+	 *                          prefix.
+	 * @return the password in plain text.
+	 */
+	private String decryptUnprefixed(String encryptedPassword, int offset) {
+		try {
+			return decrypt(encryptedPassword, offset, cryptoUtil);
+		} catch (RuntimeException e) {
+			if (!useEnvelope) {
+				throw e;
+			}
+			metricsListener.onFallback();
+			return decrypt(encryptedPassword, offset, envelopeCryptoUtil);
+		}
+	}
+
+	/**
+	 * Decrypts an encrypted password, or waits for the decryption of the same
+	 * password started by another thread.
+	 * 
+	 * @param encryptedPassword    the password to decrypt.
+	 * @param offset               the index where the password starts, after its
+	 *                             prefix.
+	 * @param headerlessCryptoUtil the cryptographic utility used if the password
+	 *                             has no header.
 	 * @return the password in plain text.
 	 */
-	private String decrypt(String encryptedPassword) {
-		return cryptoUtil.decrypt(encryptedPassword, privateKey);
+	private String decrypt(String encryptedPassword, int offset, AsymmetricCryptoUtil headerlessCryptoUtil) {
+		String unprefixedPassword = encryptedPassword.substring(offset);
+		String password = secretCache == null ? null : secretCache.get(unprefixedPassword);
+		if (password == null) {
+			// Concurrent decodes of the same password share one decryption
+			password = decryptFlights.execute(new SimpleImmutableEntry<>(headerlessCryptoUtil, unprefixedPassword),
+					() -> {
+						String decryptedPassword = decryptUncached(unprefixedPassword, 0, headerlessCryptoUtil);
+						if (secretCache != null) {
+							// Cached before the flight lands, so that later decodes find it
+							secretCache.put(unprefixedPassword, decryptedPassword);
+						}
+						return decryptedPassword;
+					});
+		}
+		return password;
 	}
 
 	/**
-	 * Encrypts a password.
+	 * Decrypts an encrypted password, choosing the cryptographic utility from its
+	 * header. The password is decoded and decrypted in the buffers of the current
+	 * thread, which are wiped afterwards.
+	 * 
+	 * @param encryptedPassword    the password to decrypt.
+	 * @param offset               the index where the password starts, after its
+	 *                             prefix.
+	 * @param headerlessCryptoUtil the cryptographic utility used if the password
+	 *                             has no header.
+	 * @return the password in plain text.
+	 */
+	private String decryptUncached(String encryptedPassword, int offset, AsymmetricCryptoUtil headerlessCryptoUtil) {
+		KeyRing keys = getKeyRing(false, true);
+		if (CiphertextHeader.detect(encryptedPassword, offset,
+				encryptedPassword.length()) != CiphertextHeader.Format.HEADER) {
+			return decryptHeaderless(encryptedPassword, offset, headerlessCryptoUtil, keys);
+		}
+		try {
+			return decryptWithHeader(encryptedPassword, offset, keys);
+		} catch (RuntimeException e) {
+			// One headerless password in 64^4 starts with the Base64 magic as well
+			try {
+				return decryptHeaderless(encryptedPassword, offset, headerlessCryptoUtil, keys);
+			} catch (RuntimeException headerlessFailure) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Decrypts an encrypted password without header, with the active private key
+	 * or else with the retired ones.
+	 * 
+	 * @param encryptedPassword    the password to decrypt.
+	 * @param offset               the index where the password starts, after its
+	 *                             prefix.
+	 * @param headerlessCryptoUtil the cryptographic utility of the password.
+	 * @param keys                 the keys.
+	 * @return the password in plain text.
+	 */
+	private String decryptHeaderless(String encryptedPassword, int offset, AsymmetricCryptoUtil headerlessCryptoUtil,
+			KeyRing keys) {
+		int end = encryptedPassword.length();
+		try {
+			// Not remembered in the encode cache: nothing proves that the active public key encrypted it
+			return CryptoBuffers.toStringAndWipe(
+					headerlessCryptoUtil.decryptToChars(encryptedPassword, offset, end, keys.getActivePrivateKey()));
+		} catch (RuntimeException e) {
+			// Headerless passwords predate EC, they may come from a retired RSA key pair
+			AsymmetricCryptoUtil retiredCryptoUtil = getCryptoUtil(CiphertextHeader.ALGORITHM_RSA,
+					headerlessCryptoUtil instanceof EnvelopeCryptoUtil);
+			return decryptWithRetiredKeys(keys,
+					privateKey -> retiredCryptoUtil.decryptToChars(encryptedPassword, offset, end, privateKey), e);
+		}
+	}
+
+	/**
+	 * Decrypts an encrypted password with header, with the cryptographic utility
+	 * and the private key it names. Passwords with a version 1 header, which does
+	 * not name the key pair, are tried with the retired private keys as well.
+	 * 
+	 * @param encryptedPassword the password to decrypt.
+	 * @param offset            the index where the password starts, after its
+	 *                          prefix.
+	 * @param keys              the keys.
+	 * @return the password in plain text.
+	 */
+	private String decryptWithHeader(String encryptedPassword, int offset, KeyRing keys) {
+		int end = encryptedPassword.length();
+		AsymmetricCryptoUtil headerCryptoUtil;
+		RuntimeException failure;
+		CryptoBuffers buffers = CryptoBuffers.get();
+		try {
+			ByteBuffer data = buffers.decodeBase64(encryptedPassword, offset, end);
+			CiphertextHeader header = CiphertextHeader.parse(data);
+			headerCryptoUtil = getCryptoUtil(header.getAlgorithm(), header.getMode() == CiphertextHeader.MODE_ENVELOPE);
+			String privateKey = keys.getPrivateKey(header.getKeyId());
+			try {
+				String password = CryptoBuffers.toStringAndWipe(headerCryptoUtil.decryptToChars(data, privateKey));
+				if (useHeader && header.getKeyId() == keys.getActiveKeyId() && header.getAlgorithm() == algorithm
+						&& header.getMode() == (useEnvelope ? CiphertextHeader.MODE_ENVELOPE
+								: CiphertextHeader.MODE_DIRECT)) {
+					rememberEncoded(password, encryptedPassword.substring(offset), keys);
+				}
+				return password;
+			} catch (RuntimeException e) {
+				if (header.getKeyId() != CiphertextHeader.NO_KEY_ID) {
+					throw e;
+				}
+				failure = e;
+			}
+		} finally {
+			buffers.wipe();
+		}
+		// A version 1 header does not identify the key pair, that may be a retired one
+		AsymmetricCryptoUtil versionOneCryptoUtil = headerCryptoUtil;
+		return decryptWithRetiredKeys(keys, privateKey -> {
+			CryptoBuffers retryBuffers = CryptoBuffers.get();
+			try {
+				ByteBuffer data = retryBuffers.decodeBase64(encryptedPassword, offset, end);
+				CiphertextHeader.parse(data);
+				return versionOneCryptoUtil.decryptToChars(data, privateKey);
+			} finally {
+				retryBuffers.wipe();
+			}
+		}, failure);
+	}
+
+	/**
+	 * Records a decrypted password in the encode cache, if any, when its encrypted
+	 * form is the one a new encoding would produce, so that saving the unchanged
+	 * password writes the same text it was read from, even after a restart. Only
+	 * passwords whose header names the active key pair are recorded: the active
+	 * private key may not match the active public key, as while migrating.
+	 * 
+	 * @param password          the password in plain text.
+	 * @param encryptedPassword the encrypted password, without prefix.
+	 * @param keys              the keys that decrypted the password.
+	 */
+	private void rememberEncoded(String password, String encryptedPassword, KeyRing keys) {
+		if (encodeCache != null && keys.hasPublicKey()) {
+			encodeCache.put(password, keys.getActiveKeyId(), encryptedPassword);
+		}
+	}
+
+	/**
+	 * Decrypts a password that does not identify its key pair with each retired
+	 * private key in turn, once the active private key has failed.
+	 * 
+	 * @param keys       the keys.
+	 * @param decryption the decryption of the password with a private key.
+	 * @param failure    the error of the decryption with the active private key.
+	 * @return the password in plain text.
+	 * @throws RuntimeException the error of the decryption with the active
+	 *                          private key, if no retired one works either.
+	 */
+	private String decryptWithRetiredKeys(KeyRing keys, Function<String, char[]> decryption,
+			RuntimeException failure) {
+		for (String privateKey : keys.getRetiredPrivateKeys()) {
+			try {
+				return CryptoBuffers.toStringAndWipe(decryption.apply(privateKey));
+			} catch (RuntimeException e) {
+				// Not the key pair of the password
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Encrypts a password, reusing its previous encrypted form if the encode cache
+	 * is enabled.
 	 * 
 	 * @param password the password to encrypt in plain text.
 	 * @return the encrypted password.
 	 */
 	private String encrypt(String password) {
-		return cryptoUtil.encrypt(password, publicKey);
+		KeyRing keys = getKeyRing(true, false);
+		if (encodeCache == null || password == null) {
+			return encrypt(password, keys);
+		}
+		return encodeCache.get(password, keys.getActiveKeyId(), () -> encrypt(password, keys));
+	}
+
+	/**
+	 * Encrypts a password. The password is encoded and encrypted in the buffers of
+	 * the current thread, which are wiped afterwards.
+	 * 
+	 * @param password the password to encrypt in plain text.
+	 * @param keys     the key ring that holds the active public key.
+	 * @return the encrypted password.
+	 */
+	private String encrypt(String password, KeyRing keys) {
+		AsymmetricCryptoUtil encryptionCryptoUtil = useEnvelope ? envelopeCryptoUtil : cryptoUtil;
+		String publicKey = keys.getActivePublicKey();
+		if (!useHeader) {
+			return encryptionCryptoUtil.encrypt(password, publicKey);
+		}
+		CiphertextHeader header = new CiphertextHeader(algorithm,
+				useEnvelope ? CiphertextHeader.MODE_ENVELOPE : CiphertextHeader.MODE_DIRECT, keys.getActiveKeyId());
+		CryptoBuffers buffers = CryptoBuffers.get();
+		try {
+			ByteBuffer data = buffers.encodeUtf8(password);
+			ByteBuffer output = buffers.output(
+					CiphertextHeader.LENGTH + encryptionCryptoUtil.getMaxEncryptedLength(data.remaining(), publicKey));
+			header.writeTo(output);
+			encryptionCryptoUtil.encrypt(data, output, publicKey);
+			output.flip();
+			return Base64Codec.encode(output);
+		} finally {
+			buffers.wipe();
+		}
 	}
 
 	/**
@@ -262,7 +1576,7 @@ public class StrongPasswordEncoder implements TwoWayPasswordEncoderInterface {
 		List<String> varList = new ArrayList<>();
 		StringUtil.getUsedVariables(password, varList, true);
 		if (varList.isEmpty()) {
-			encrPassword = PASSWORD_ENCRYPTED_PREFIX + encrypt(password);
+			encrPassword = (useEnvelope ? PASSWORD_ENVELOPE_PREFIX : PASSWORD_ENCRYPTED_PREFIX) + encrypt(password);
 		} else {
 			encrPassword = password;
 		}
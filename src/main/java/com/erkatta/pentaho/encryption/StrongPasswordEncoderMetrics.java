@@ -0,0 +1,328 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.erkatta.pentaho.encryption.util.AsymmetricCryptoUtil;
+import com.erkatta.pentaho.encryption.util.CryptoMetricsListener;
+import com.erkatta.pentaho.encryption.util.EcCryptoUtil;
+import com.erkatta.pentaho.encryption.util.EncodeCache;
+import com.erkatta.pentaho.encryption.util.EnvelopeCryptoUtil;
+import com.erkatta.pentaho.encryption.util.LatencyHistogram;
+import com.erkatta.pentaho.encryption.util.ParsedKeyCache;
+import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+import com.erkatta.pentaho.encryption.util.SecretCache;
+
+/**
+ * The metrics of a {@link StrongPasswordEncoder}: it receives the measurements
+ * as a {@link CryptoMetricsListener} and publishes them through JMX, together
+ * with the statistics of the encoder caches.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class StrongPasswordEncoderMetrics implements StrongPasswordEncoderMetricsMXBean, CryptoMetricsListener {
+
+	/** The encoder whose caches are inspected. **/
+	private final StrongPasswordEncoder encoder;
+
+	/** The number of encoded passwords. **/
+	private final LongAdder encodeCount = new LongAdder();
+	/** The number of decoded passwords, by format. **/
+	private final LongAdder[] decodeCounts = new LongAdder[DecodeFormat.values().length];
+	/** The number of fallbacks to another decoder. **/
+	private final LongAdder fallbackCount = new LongAdder();
+	/** The number of failures. **/
+	private final LongAdder failureCount = new LongAdder();
+
+	/** The latencies of the encodings. **/
+	private final LatencyHistogram encodeLatency = new LatencyHistogram();
+	/** The latencies of the decodings. **/
+	private final LatencyHistogram decodeLatency = new LatencyHistogram();
+	/** The latencies of the key parsing. **/
+	private final LatencyHistogram keyParseLatency = new LatencyHistogram();
+	/** The latencies of the cipher acquisitions. **/
+	private final LatencyHistogram cipherAcquireLatency = new LatencyHistogram();
+	/** The latencies of the asymmetric operations. **/
+	private final LatencyHistogram cipherOperationLatency = new LatencyHistogram();
+
+	/**
+	 * Creates the metrics of an encoder.
+	 * 
+	 * @param encoder the encoder whose caches are inspected.
+	 */
+	public StrongPasswordEncoderMetrics(StrongPasswordEncoder encoder) {
+		this.encoder = encoder;
+		for (int i = 0; i < decodeCounts.length; i++) {
+			decodeCounts[i] = new LongAdder();
+		}
+	}
+
+	@Override
+	public void onEncode(long nanos) {
+		encodeCount.increment();
+		encodeLatency.record(nanos);
+	}
+
+	@Override
+	public void onDecode(DecodeFormat format, long nanos) {
+		decodeCounts[format.ordinal()].increment();
+		decodeLatency.record(nanos);
+	}
+
+	@Override
+	public void onFallback() {
+		fallbackCount.increment();
+	}
+
+	@Override
+	public void onFailure() {
+		failureCount.increment();
+	}
+
+	@Override
+	public void onKeyParsed(long nanos) {
+		keyParseLatency.record(nanos);
+	}
+
+	@Override
+	public void onCipherAcquired(long nanos) {
+		cipherAcquireLatency.record(nanos);
+	}
+
+	@Override
+	public void onCipherOperation(long nanos) {
+		cipherOperationLatency.record(nanos);
+	}
+
+	@Override
+	public long getEncodeCount() {
+		return encodeCount.sum();
+	}
+
+	@Override
+	public long getDecodeCount() {
+		long count = 0;
+		for (LongAdder decodeCount : decodeCounts) {
+			count += decodeCount.sum();
+		}
+		return count;
+	}
+
+	@Override
+	public long getStrongDecodeCount() {
+		return decodeCounts[DecodeFormat.STRONG.ordinal()].sum();
+	}
+
+	@Override
+	public long getEnvelopeDecodeCount() {
+		return decodeCounts[DecodeFormat.ENVELOPE.ordinal()].sum();
+	}
+
+	@Override
+	public long getLegacyDecodeCount() {
+		return decodeCounts[DecodeFormat.KETTLE.ordinal()].sum();
+	}
+
+	@Override
+	public long getPlaintextDecodeCount() {
+		return decodeCounts[DecodeFormat.PLAINTEXT.ordinal()].sum();
+	}
+
+	@Override
+	public long getAgentDecodeCount() {
+		return decodeCounts[DecodeFormat.AGENT.ordinal()].sum();
+	}
+
+	@Override
+	public long getCoalescedDecodeCount() {
+		return encoder.getCoalescedDecodeCount();
+	}
+
+	@Override
+	public long getFallbackCount() {
+		return fallbackCount.sum();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return failureCount.sum();
+	}
+
+	@Override
+	public LatencySnapshot getEncodeLatency() {
+		return snapshot(encodeLatency);
+	}
+
+	@Override
+	public LatencySnapshot getDecodeLatency() {
+		return snapshot(decodeLatency);
+	}
+
+	@Override
+	public LatencySnapshot getKeyParseLatency() {
+		return snapshot(keyParseLatency);
+	}
+
+	@Override
+	public LatencySnapshot getCipherAcquireLatency() {
+		return snapshot(cipherAcquireLatency);
+	}
+
+	@Override
+	public LatencySnapshot getCipherOperationLatency() {
+		return snapshot(cipherOperationLatency);
+	}
+
+	@Override
+	public long getSecretCacheHitCount() {
+		SecretCache secretCache = encoder.getSecretCache();
+		return secretCache == null ? 0L : secretCache.getHitCount();
+	}
+
+	@Override
+	public long getSecretCacheMissCount() {
+		SecretCache secretCache = encoder.getSecretCache();
+		return secretCache == null ? 0L : secretCache.getMissCount();
+	}
+
+	@Override
+	public long getSecretCacheEvictionCount() {
+		SecretCache secretCache = encoder.getSecretCache();
+		return secretCache == null ? 0L : secretCache.getEvictionCount();
+	}
+
+	@Override
+	public int getSecretCacheSize() {
+		SecretCache secretCache = encoder.getSecretCache();
+		return secretCache == null ? 0 : secretCache.size();
+	}
+
+	@Override
+	public long getSecretCacheRejectionCount() {
+		SecretCache secretCache = encoder.getSecretCache();
+		return secretCache == null ? 0L : secretCache.getRejectionCount();
+	}
+
+	@Override
+	public int getSecretCacheOffHeapMemorySize() {
+		SecretCache secretCache = encoder.getSecretCache();
+		return secretCache == null ? 0 : secretCache.getOffHeapMemorySize();
+	}
+
+	@Override
+	public long getEncodeCacheHitCount() {
+		EncodeCache encodeCache = encoder.getEncodeCache();
+		return encodeCache == null ? 0L : encodeCache.getHitCount();
+	}
+
+	@Override
+	public long getEncodeCacheMissCount() {
+		EncodeCache encodeCache = encoder.getEncodeCache();
+		return encodeCache == null ? 0L : encodeCache.getMissCount();
+	}
+
+	@Override
+	public long getParsedKeyCacheHitCount() {
+		long count = 0;
+		for (ParsedKeyCache<?> cache : getParsedKeyCaches()) {
+			count += cache.getHitCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getParsedKeyCacheMissCount() {
+		long count = 0;
+		for (ParsedKeyCache<?> cache : getParsedKeyCaches()) {
+			count += cache.getMissCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getDataKeyCacheHitCount() {
+		long count = 0;
+		for (EnvelopeCryptoUtil util : encoder.getEnvelopeCryptoUtils()) {
+			count += util.getDataKeyHitCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getDataKeyCacheMissCount() {
+		long count = 0;
+		for (EnvelopeCryptoUtil util : encoder.getEnvelopeCryptoUtils()) {
+			count += util.getDataKeyMissCount();
+		}
+		return count;
+	}
+
+	@Override
+	public int getUndecryptablePasswordCount() {
+		return encoder.getUndecryptablePasswordCount();
+	}
+
+	@Override
+	public void reset() {
+		encodeCount.reset();
+		for (LongAdder decodeCount : decodeCounts) {
+			decodeCount.reset();
+		}
+		fallbackCount.reset();
+		failureCount.reset();
+		encodeLatency.reset();
+		decodeLatency.reset();
+		keyParseLatency.reset();
+		cipherAcquireLatency.reset();
+		cipherOperationLatency.reset();
+	}
+
+	/**
+	 * Gets the parsed key caches of the encoder cryptographic utilities.
+	 * 
+	 * @return the parsed key caches.
+	 */
+	private List<ParsedKeyCache<?>> getParsedKeyCaches() {
+		List<ParsedKeyCache<?>> caches = new ArrayList<>();
+		for (AsymmetricCryptoUtil util : encoder.getCryptoUtils()) {
+			if (util instanceof RsaCryptoUtil) {
+				caches.add(((RsaCryptoUtil) util).getPublicKeyCache());
+				caches.add(((RsaCryptoUtil) util).getPrivateKeyCache());
+			} else if (util instanceof EcCryptoUtil) {
+				caches.add(((EcCryptoUtil) util).getPublicKeyCache());
+				caches.add(((EcCryptoUtil) util).getPrivateKeyCache());
+			}
+		}
+		return caches;
+	}
+
+	/**
+	 * Takes a snapshot of a latency histogram.
+	 * 
+	 * @param histogram the histogram.
+	 * @return the snapshot, in microseconds.
+	 */
+	private static LatencySnapshot snapshot(LatencyHistogram histogram) {
+		return new LatencySnapshot(histogram.getCount(), histogram.getMeanNanos() / 1000,
+				histogram.getPercentileNanos(50) / 1000, histogram.getPercentileNanos(99) / 1000,
+				histogram.getMaxNanos() / 1000);
+	}
+}
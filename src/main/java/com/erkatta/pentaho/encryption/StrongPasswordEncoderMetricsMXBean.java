@@ -0,0 +1,323 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The management interface of the {@link StrongPasswordEncoder} metrics, published through JMX. Latencies are in
+ * microseconds.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public interface StrongPasswordEncoderMetricsMXBean {
+
+	/**
+	 * Gets the number of encoded passwords.
+	 * 
+	 * @return the number of encoded passwords.
+	 */
+	long getEncodeCount();
+
+	/**
+	 * Gets the number of decoded passwords.
+	 * 
+	 * @return the number of decoded passwords.
+	 */
+	long getDecodeCount();
+
+	/**
+	 * Gets the number of decoded passwords encrypted by this plugin with the
+	 * asymmetric algorithm ("SPEncrypted" prefix).
+	 * 
+	 * @return the number of decoded passwords.
+	 */
+	long getStrongDecodeCount();
+
+	/**
+	 * Gets the number of decoded passwords envelope encrypted by this plugin
+	 * ("SPEnvelope" prefix).
+	 * 
+	 * @return the number of decoded passwords.
+	 */
+	long getEnvelopeDecodeCount();
+
+	/**
+	 * Gets the number of decoded passwords obfuscated by the default Kettle
+	 * encoder ("Encrypted" prefix), which should be migrated.
+	 * 
+	 * @return the number of decoded passwords.
+	 */
+	long getLegacyDecodeCount();
+
+	/**
+	 * Gets the number of passwords without prefix passed through as they are.
+	 * 
+	 * @return the number of passwords passed through.
+	 */
+	long getPlaintextDecodeCount();
+
+	/**
+	 * Gets the number of passwords decoded by the decryption agent.
+	 * 
+	 * @return the number of passwords decoded by the agent.
+	 */
+	long getAgentDecodeCount();
+
+	/**
+	 * Gets the number of decodes that waited for the decryption of the same
+	 * password by another thread instead of decrypting it again.
+	 * 
+	 * @return the number of coalesced decodes.
+	 */
+	long getCoalescedDecodeCount();
+
+	/**
+	 * Gets the number of passwords that could not be decoded as expected and went
+	 * through another decoder.
+	 * 
+	 * @return the number of fallbacks.
+	 */
+	long getFallbackCount();
+
+	/**
+	 * Gets the number of passwords that could not be encoded or decoded.
+	 * 
+	 * @return the number of failures.
+	 */
+	long getFailureCount();
+
+	/**
+	 * Gets the latencies of the encodings.
+	 * 
+	 * @return the latencies.
+	 */
+	LatencySnapshot getEncodeLatency();
+
+	/**
+	 * Gets the latencies of the decodings, including the cached ones.
+	 * 
+	 * @return the latencies.
+	 */
+	LatencySnapshot getDecodeLatency();
+
+	/**
+	 * Gets the latencies of the key parsing.
+	 * 
+	 * @return the latencies.
+	 */
+	LatencySnapshot getKeyParseLatency();
+
+	/**
+	 * Gets the time spent making a cipher ready for an operation. Every thread
+	 * owns its cipher, so this is the initialization with the key rather than
+	 * the wait for a lock.
+	 * 
+	 * @return the latencies.
+	 */
+	LatencySnapshot getCipherAcquireLatency();
+
+	/**
+	 * Gets the latencies of the asymmetric operations.
+	 * 
+	 * @return the latencies.
+	 */
+	LatencySnapshot getCipherOperationLatency();
+
+	/**
+	 * Gets the number of decodings that found the password in the decrypted
+	 * passwords cache.
+	 * 
+	 * @return the number of cache hits, zero if the cache is disabled.
+	 */
+	long getSecretCacheHitCount();
+
+	/**
+	 * Gets the number of decodings that did not find the password in the
+	 * decrypted passwords cache.
+	 * 
+	 * @return the number of cache misses, zero if the cache is disabled.
+	 */
+	long getSecretCacheMissCount();
+
+	/**
+	 * Gets the number of passwords evicted from the decrypted passwords cache.
+	 * 
+	 * @return the number of evictions, zero if the cache is disabled.
+	 */
+	long getSecretCacheEvictionCount();
+
+	/**
+	 * Gets the number of passwords in the decrypted passwords cache.
+	 * 
+	 * @return the number of cached passwords, zero if the cache is disabled.
+	 */
+	int getSecretCacheSize();
+
+	/**
+	 * Gets the number of passwords not cached because they are too long for the
+	 * off-heap store.
+	 * 
+	 * @return the number of rejected passwords, zero if the cache is disabled.
+	 */
+	long getSecretCacheRejectionCount();
+
+	/**
+	 * Gets the memory allocated outside of the heap for the decrypted passwords
+	 * cache.
+	 * 
+	 * @return the size in bytes of the memory, zero if the cache is disabled or
+	 *         kept on the heap.
+	 */
+	int getSecretCacheOffHeapMemorySize();
+
+	/**
+	 * Gets the number of encodings that reused a previously encrypted password.
+	 * 
+	 * @return the number of cache hits, zero if the encode cache is disabled.
+	 */
+	long getEncodeCacheHitCount();
+
+	/**
+	 * Gets the number of encodings that encrypted the password.
+	 * 
+	 * @return the number of cache misses, zero if the encode cache is disabled.
+	 */
+	long getEncodeCacheMissCount();
+
+	/**
+	 * Gets the number of keys found already parsed.
+	 * 
+	 * @return the number of cache hits.
+	 */
+	long getParsedKeyCacheHitCount();
+
+	/**
+	 * Gets the number of keys that had to be parsed.
+	 * 
+	 * @return the number of cache misses.
+	 */
+	long getParsedKeyCacheMissCount();
+
+	/**
+	 * Gets the number of envelope decryptions that found the data key already
+	 * unwrapped.
+	 * 
+	 * @return the number of cache hits.
+	 */
+	long getDataKeyCacheHitCount();
+
+	/**
+	 * Gets the number of envelope decryptions that had to unwrap the data key.
+	 * 
+	 * @return the number of cache misses.
+	 */
+	long getDataKeyCacheMissCount();
+
+	/**
+	 * Gets the number of passwords remembered as not decryptable by this plugin.
+	 * 
+	 * @return the number of passwords.
+	 */
+	int getUndecryptablePasswordCount();
+
+	/**
+	 * Resets the counters and the latencies.
+	 */
+	void reset();
+
+	/**
+	 * A snapshot of a latency histogram.
+	 */
+	public static final class LatencySnapshot {
+
+		/** The number of recorded latencies. **/
+		private final long count;
+		/** The mean latency in microseconds. **/
+		private final long meanMicros;
+		/** The median latency in microseconds. **/
+		private final long p50Micros;
+		/** The 99th percentile of the latencies in microseconds. **/
+		private final long p99Micros;
+		/** The highest latency in microseconds. **/
+		private final long maxMicros;
+
+		/**
+		 * Creates a new snapshot.
+		 * 
+		 * @param count      the number of recorded latencies.
+		 * @param meanMicros the mean latency in microseconds.
+		 * @param p50Micros  the median latency in microseconds.
+		 * @param p99Micros  the 99th percentile of the latencies in microseconds.
+		 * @param maxMicros  the highest latency in microseconds.
+		 */
+		@ConstructorProperties({ "count", "meanMicros", "p50Micros", "p99Micros", "maxMicros" })
+		public LatencySnapshot(long count, long meanMicros, long p50Micros, long p99Micros, long maxMicros) {
+			this.count = count;
+			this.meanMicros = meanMicros;
+			this.p50Micros = p50Micros;
+			this.p99Micros = p99Micros;
+			this.maxMicros = maxMicros;
+		}
+
+		/**
+		 * Gets the number of recorded latencies.
+		 * 
+		 * @return the number of recorded latencies.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the mean latency.
+		 * 
+		 * @return the mean latency in microseconds.
+		 */
+		public long getMeanMicros() {
+			return meanMicros;
+		}
+
+		/**
+		 * Gets the median latency.
+		 * 
+		 * @return the median latency in microseconds.
+		 */
+		public long getP50Micros() {
+			return p50Micros;
+		}
+
+		/**
+		 * Gets the 99th percentile of the latencies.
+		 * 
+		 * @return the 99th percentile in microseconds.
+		 */
+		public long getP99Micros() {
+			return p99Micros;
+		}
+
+		/**
+		 * Gets the highest latency.
+		 * 
+		 * @return the highest latency in microseconds.
+		 */
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import org.pentaho.di.core.encryption.KettleTwoWayPasswordEncoder;
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderInterface;
+import org.pentaho.di.core.encryption.TwoWayPasswordEncoderPlugin;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.util.EnvUtil;
+import org.pentaho.di.core.util.StringUtil;
+
+import com.erkatta.pentaho.encryption.util.CryptoBuffers;
+import com.erkatta.pentaho.encryption.util.SymmetricCryptoUtil;
+
+/**
+ * This class encrypts passwords with AES-GCM and a master key, for the nodes
+ * that do not need the public key separation of {@link StrongPasswordEncoder}
+ * but decrypt many passwords: a decryption takes microseconds instead of the
+ * milliseconds of RSA.
+ * <p>
+ * Passwords encrypted by {@link StrongPasswordEncoder} and obfuscated by Kettle
+ * are still decrypted, with the key files of the {@link StrongPasswordEncoder},
+ * so that they can be migrated.
+ *
+ * @author Marco Cattarin
+ *
+ */
+@TwoWayPasswordEncoderPlugin(id = "SPS", name = "SymmetricPasswordEncoder")
+public class SymmetricPasswordEncoder implements TwoWayPasswordEncoderInterface {
+
+	/** The name of the system property that carries the master key file name. **/
+	private static final String MASTER_KEY_FILENAME_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_MASTER_KEY_FILENAME";
+	/** The name of the system property that carries the master key file path. **/
+	private static final String MASTER_KEY_PATH_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_MASTER_KEY_PATH";
+
+	/** The default master key file name. **/
+	private static final String MASTER_KEY_FILENAME_DEFAULT = "master.key";
+	/** The default master key file path. **/
+	private static final String MASTER_KEY_PATH_DEFAULT = "./";
+	/** The prefixes of the passwords decoded by the {@link StrongPasswordEncoder}. **/
+	private static final String[] LEGACY_PREFIXES = { StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX,
+			StrongPasswordEncoder.PASSWORD_ENVELOPE_PREFIX, KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX };
+	/** The first character of the encrypted passwords, the Base64 form of their version. **/
+	private static final char ENCRYPTED_PASSWORD_START = 'A';
+
+	/**
+	 * The word that is put before a password to indicate a symmetrically encrypted
+	 * form. If this word is not present, the password is considered to be NOT
+	 * encrypted.
+	 */
+	public static final String PASSWORD_SYMMETRIC_PREFIX = "SPSymmetric ";
+
+	/** The master key file name. **/
+	private String masterKeyFilename;
+	/** The master key file path. **/
+	private String masterKeyPath;
+
+	/** The cryptographic utility, <code>null</code> until {@link #init()}. **/
+	private volatile SymmetricCryptoUtil cryptoUtil;
+	/** The encoder of the passwords encrypted with RSA or EC, created on first use. **/
+	private StrongPasswordEncoder legacyEncoder;
+
+	/**
+	 * Creates a new instance of {@link SymmetricPasswordEncoder}
+	 */
+	public SymmetricPasswordEncoder() {
+		masterKeyFilename = EnvUtil.getSystemProperty(MASTER_KEY_FILENAME_KEY, MASTER_KEY_FILENAME_DEFAULT);
+		masterKeyPath = EnvUtil.getSystemProperty(MASTER_KEY_PATH_KEY, MASTER_KEY_PATH_DEFAULT);
+	}
+
+	/**
+	 * Creates a new instance of {@link SymmetricPasswordEncoder} that uses the
+	 * specified master key file instead of the one set in the environment.
+	 * 
+	 * @param masterKeyFile the path of the master key file.
+	 */
+	public SymmetricPasswordEncoder(String masterKeyFile) {
+		this();
+		masterKeyPath = "";
+		masterKeyFilename = masterKeyFile;
+	}
+
+	/**
+	 * Initializes the password encoder by loading the master key from the
+	 * environment (kettle.properties or system settings) and deriving the
+	 * encryption key.
+	 * 
+	 * @throws KettleException
+	 */
+	@Override
+	public void init() throws KettleException {
+		byte[] masterKey = null;
+		try {
+			byte[] encodedMasterKey = Files.readAllBytes(Paths.get(masterKeyPath + masterKeyFilename));
+			try {
+				masterKey = Base64.getMimeDecoder().decode(encodedMasterKey);
+			} finally {
+				Arrays.fill(encodedMasterKey, (byte) 0);
+			}
+			cryptoUtil = new SymmetricCryptoUtil(masterKey);
+		} catch (IOException | IllegalArgumentException e) {
+			throw new KettleException("Cannot load master key.", e);
+		} finally {
+			if (masterKey != null) {
+				Arrays.fill(masterKey, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a raw password, including a prefix indicating the type of
+	 * encryption used.
+	 * 
+	 * @param rawPassword The password to encode
+	 * @return The encoded password string
+	 */
+	@Override
+	public String encode(String rawPassword) {
+		return encode(rawPassword, true);
+	}
+
+	/**
+	 * Encodes a raw password. Passwords with variables are not encrypted when a
+	 * prefix is requested.
+	 * 
+	 * @param rawPassword   The password to encode
+	 * @param includePrefix true if a prefix needs to be included
+	 * @return The encoded password string
+	 */
+	@Override
+	public String encode(String rawPassword, boolean includePrefix) {
+		if (!includePrefix) {
+			return getCryptoUtil().encrypt(rawPassword);
+		}
+		List<String> varList = new ArrayList<>();
+		StringUtil.getUsedVariables(rawPassword, varList, true);
+		return varList.isEmpty() ? PASSWORD_SYMMETRIC_PREFIX + getCryptoUtil().encrypt(rawPassword) : rawPassword;
+	}
+
+	/**
+	 * Decodes a password which does NOT have a prefix attached.
+	 * 
+	 * @param encodedPassword The encoded password without a prefix
+	 * @return The decoded password string
+	 */
+	@Override
+	public String decode(String encodedPassword) {
+		if (encodedPassword == null) {
+			return KettleTwoWayPasswordEncoder.decryptPassword(null);
+		}
+		if (encodedPassword.startsWith(PASSWORD_SYMMETRIC_PREFIX)) {
+			return decrypt(encodedPassword, PASSWORD_SYMMETRIC_PREFIX.length());
+		}
+		if (!encodedPassword.isEmpty() && encodedPassword.charAt(0) == ENCRYPTED_PASSWORD_START) {
+			try {
+				return decrypt(encodedPassword, 0);
+			} catch (RuntimeException e) {
+				// Not encrypted with the master key, as one in 64 RSA encrypted passwords
+			}
+		}
+		// The strong password encoder falls back to the default Kettle decoder itself
+		return getLegacyEncoder().decode(encodedPassword);
+	}
+
+	/**
+	 * Decodes a password.
+	 * 
+	 * @param encodedPassword     The encoded password with or without a prefix
+	 * @param optionallyEncrypted Set to true if the password is optionally
+	 *                            encrypted (indicated by a prefix).
+	 * @return The decoded password string
+	 */
+	@Override
+	public String decode(String encodedPassword, boolean optionallyEncrypted) {
+		if (encodedPassword == null) {
+			return null;
+		}
+		if (!optionallyEncrypted) {
+			return decode(encodedPassword);
+		}
+		if (encodedPassword.startsWith(PASSWORD_SYMMETRIC_PREFIX)) {
+			return decrypt(encodedPassword, PASSWORD_SYMMETRIC_PREFIX.length());
+		}
+		for (String prefix : LEGACY_PREFIXES) {
+			if (encodedPassword.startsWith(prefix)) {
+				return getLegacyEncoder().decode(encodedPassword, true);
+			}
+		}
+		return encodedPassword;
+	}
+
+	/**
+	 * Returns the password prefixes supported by this password encoder.
+	 * 
+	 * @return The prefixes to the encoded passwords which this password encoder
+	 *         supports.
+	 */
+	@Override
+	public String[] getPrefixes() {
+		return new String[] { PASSWORD_SYMMETRIC_PREFIX, StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX,
+				StrongPasswordEncoder.PASSWORD_ENVELOPE_PREFIX, KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX };
+	}
+
+	/**
+	 * Decrypts a password encrypted with the master key.
+	 * 
+	 * @param encryptedPassword the password to decrypt.
+	 * @param offset            the index where the password starts, after its
+	 *                          prefix.
+	 * @return the password in plain text.
+	 */
+	private String decrypt(String encryptedPassword, int offset) {
+		return CryptoBuffers.toStringAndWipe(
+				getCryptoUtil().decryptToChars(encryptedPassword, offset, encryptedPassword.length()));
+	}
+
+	/**
+	 * Gets the cryptographic utility.
+	 * 
+	 * @return the cryptographic utility.
+	 * @throws IllegalStateException if the encoder has not been initialized.
+	 */
+	private SymmetricCryptoUtil getCryptoUtil() {
+		SymmetricCryptoUtil util = cryptoUtil;
+		if (util == null) {
+			throw new IllegalStateException("The password encoder has not been initialized.");
+		}
+		return util;
+	}
+
+	/**
+	 * Gets the encoder of the passwords encrypted with RSA or EC, creating it on
+	 * first use. It is not initialized, so that its key files are read only when
+	 * a password needs them.
+	 * 
+	 * @return the encoder of the passwords encrypted with RSA or EC.
+	 */
+	private synchronized StrongPasswordEncoder getLegacyEncoder() {
+		if (legacyEncoder == null) {
+			legacyEncoder = new StrongPasswordEncoder();
+		}
+		return legacyEncoder;
+	}
+}
@@ -0,0 +1,412 @@
+package com.erkatta.pentaho.encryption.agent;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.util.EnvUtil;
+
+import com.erkatta.pentaho.encryption.StrongPasswordEncoder;
+
+/**
+ * A long-running process, similar in spirit to ssh-agent, that decrypts
+ * passwords on behalf of short-lived Pan and Kitchen runs. It holds the parsed
+ * private key, a warm cache and a JIT-compiled decryption path, so that the
+ * runs neither read the private key nor pay its parsing and the loading of the
+ * security provider.
+ * <p>
+ * The agent listens on a loopback port only. When it starts it writes the
+ * agent file, readable only by its owner, that holds the port and a random
+ * token: a client must send the token before any request, so only the users
+ * that can read the agent file can use the agent. A client that does not send
+ * the token within a few seconds is disconnected, and the number of connected
+ * clients is bounded. See
+ * {@link DecryptionAgentClient} for the protocol.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class DecryptionAgent implements Closeable {
+
+	/** The name of the system property that enables the client mode of the encoder. **/
+	public static final String AGENT_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_AGENT";
+	/** The name of the system property that carries the path of the agent file. **/
+	public static final String AGENT_FILE_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_AGENT_FILE";
+	/** The name of the system property that carries the port of the agent. **/
+	public static final String AGENT_PORT_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_AGENT_PORT";
+	/** The default name of the agent file, in the Kettle directory. **/
+	public static final String AGENT_FILE_DEFAULT = "strong-password-encoder.agent";
+	/** By default the agent listens on any free port, written in the agent file. **/
+	private static final String AGENT_PORT_DEFAULT = "0";
+	/** The name of the system property that carries the maximum number of connected clients. **/
+	public static final String AGENT_MAX_CONNECTIONS_KEY = "KETTLE_STRONG_PASSWORD_ENCODER_AGENT_MAX_CONNECTIONS";
+	/** By default the agent serves up to 64 connections at the same time. **/
+	private static final String AGENT_MAX_CONNECTIONS_DEFAULT = "64";
+	/** The time in milliseconds a client has to send its token once connected. **/
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+	/** The number of decrypted passwords cached by the agent, unless configured. **/
+	private static final String AGENT_CACHE_SIZE_DEFAULT = "1000";
+
+	/** The first bytes sent by a client, "SPEA". **/
+	static final int MAGIC = 0x53504541;
+	/** The length in bytes of the token. **/
+	static final int TOKEN_LENGTH = 32;
+	/** The maximum length in bytes of a value. **/
+	static final int MAX_VALUE_LENGTH = 1 << 20;
+	/** The answer to a valid handshake. **/
+	static final byte STATUS_OK = 0;
+	/** The answer to a request that has failed. **/
+	static final byte STATUS_ERROR = 1;
+	/** Decodes a password without prefix, see {@link StrongPasswordEncoder#decode(String)}. **/
+	public static final byte OPERATION_DECODE = 1;
+	/** Decodes an optionally encrypted password, see {@link StrongPasswordEncoder#decode(String, boolean)}. **/
+	public static final byte OPERATION_DECODE_OPTIONALLY_ENCRYPTED = 2;
+	/** Decodes an encrypted password without prefix, see {@link StrongPasswordEncoder#decode(String, boolean)}. **/
+	public static final byte OPERATION_DECODE_ENCRYPTED = 3;
+
+	/** The encoder that decrypts the passwords. **/
+	private final StrongPasswordEncoder encoder;
+	/** The agent file. **/
+	private final Path agentFile;
+	/** The token that clients must send. **/
+	private final byte[] token = new byte[TOKEN_LENGTH];
+	/** The socket that accepts the clients. **/
+	private final ServerSocket serverSocket;
+	/** The maximum number of connected clients, further connections are closed at once. **/
+	private final int maxConnections;
+	/** The threads serving the clients, one per connection. **/
+	private final ThreadPoolExecutor connectionPool;
+	/** The sockets of the connected clients. **/
+	private final Set<Socket> clientSockets = ConcurrentHashMap.newKeySet();
+	/** The log channel. **/
+	private final LogChannelInterface log = new LogChannel("StrongPasswordEncoder agent");
+
+	/**
+	 * Creates a new agent, listening on a loopback port, and writes its agent
+	 * file.
+	 * 
+	 * @param encoder   the initialized encoder that decrypts the passwords.
+	 * @param port      the port, 0 for any free port.
+	 * @param agentFile the agent file, replaced if it exists.
+	 * @throws IOException if the port cannot be bound or the agent file cannot be
+	 *                     written.
+	 */
+	public DecryptionAgent(StrongPasswordEncoder encoder, int port, Path agentFile) throws IOException {
+		this.encoder = encoder;
+		this.agentFile = agentFile;
+		this.maxConnections = Math.max(1,
+				Const.toInt(EnvUtil.getSystemProperty(AGENT_MAX_CONNECTIONS_KEY, AGENT_MAX_CONNECTIONS_DEFAULT), 64));
+		this.connectionPool = new ThreadPoolExecutor(0, maxConnections, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, "StrongPasswordEncoder agent connection");
+					thread.setDaemon(true);
+					return thread;
+				});
+		new SecureRandom().nextBytes(token);
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			writeAgentFile();
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts the agent, configured by the usual system properties, and serves
+	 * the clients until the process is stopped.
+	 * 
+	 * @param args not used.
+	 * @throws KettleException if the encoder cannot be initialized.
+	 * @throws IOException     if the agent cannot be started.
+	 */
+	public static void main(String args[]) throws KettleException, IOException {
+		KettleClientEnvironment.init();
+		// The agent decrypts by itself, and keeps the passwords it has decrypted
+		System.setProperty(AGENT_KEY, "N");
+		if (System.getProperty("KETTLE_STRONG_PASSWORD_ENCODER_CACHE_SIZE") == null) {
+			System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_CACHE_SIZE", AGENT_CACHE_SIZE_DEFAULT);
+		}
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder();
+		encoder.init();
+		DecryptionAgent agent = new DecryptionAgent(encoder,
+				Const.toInt(EnvUtil.getSystemProperty(AGENT_PORT_KEY, AGENT_PORT_DEFAULT), 0), getAgentFile());
+		Runtime.getRuntime().addShutdownHook(new Thread(agent::close, "StrongPasswordEncoder agent shutdown"));
+		agent.run();
+	}
+
+	/**
+	 * Gets the agent file set in the environment.
+	 * 
+	 * @return the path of the agent file.
+	 */
+	public static Path getAgentFile() {
+		String agentFile = EnvUtil.getSystemProperty(AGENT_FILE_KEY);
+		return agentFile != null ? Paths.get(agentFile) : Paths.get(Const.getKettleDirectory(), AGENT_FILE_DEFAULT);
+	}
+
+	/**
+	 * Starts accepting the clients in a background thread.
+	 */
+	public void start() {
+		Thread thread = new Thread(this::run, "StrongPasswordEncoder agent");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Accepts the clients until the agent is closed.
+	 */
+	public void run() {
+		log.logBasic("Listening on port " + getPort() + ", agent file " + agentFile + ".");
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				if (clientSockets.size() >= maxConnections) {
+					log.logError("Rejected a client, " + maxConnections + " clients are already connected.");
+					closeQuietly(socket);
+					continue;
+				}
+				clientSockets.add(socket);
+				try {
+					connectionPool.execute(() -> serve(socket));
+				} catch (RejectedExecutionException e) {
+					// A thread of a client that has just disconnected is still busy
+					log.logError("Rejected a client, " + maxConnections + " clients are already connected.");
+					clientSockets.remove(socket);
+					closeQuietly(socket);
+				}
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					log.logError("Cannot accept a client.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the port the agent listens on.
+	 * 
+	 * @return the port.
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops the agent, disconnecting the clients and deleting the agent file.
+	 */
+	@Override
+	public void close() {
+		try {
+			serverSocket.close();
+			Files.deleteIfExists(agentFile);
+		} catch (IOException e) {
+			log.logError("Cannot stop the agent cleanly.", e);
+		}
+		for (Socket socket : clientSockets) {
+			closeQuietly(socket);
+		}
+		connectionPool.shutdownNow();
+	}
+
+	/**
+	 * Serves a client: checks its token, which must come within a few seconds,
+	 * then answers its requests in order until it disconnects. Answers are
+	 * flushed when no more request is waiting, so that pipelined requests get
+	 * their answers in a single write.
+	 * 
+	 * @param socket the socket of the client.
+	 */
+	private void serve(Socket socket) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			if (!checkHandshake(in)) {
+				log.logError("Rejected a client with a wrong token.");
+				return;
+			}
+			// The clients keep their connections open, idle, between the decodings
+			socket.setSoTimeout(0);
+			out.writeByte(STATUS_OK);
+			out.flush();
+			while (true) {
+				byte operation = in.readByte();
+				byte[] value = readValue(in);
+				String encodedPassword = new String(value, StandardCharsets.UTF_8);
+				try {
+					writeValue(out, STATUS_OK, decode(operation, encodedPassword));
+				} catch (RuntimeException e) {
+					writeValue(out, STATUS_ERROR, String.valueOf(e.getMessage()));
+				}
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			log.logError("Rejected a client that has not sent its token in time.");
+		} catch (SocketException | EOFException e) {
+			// The client has disconnected
+		} catch (IOException e) {
+			log.logError("Cannot serve a client.", e);
+		} finally {
+			clientSockets.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * Decodes a password with the encoder.
+	 * 
+	 * @param operation       the decoding operation.
+	 * @param encodedPassword the encoded password.
+	 * @return the decoded password.
+	 */
+	private String decode(byte operation, String encodedPassword) {
+		switch (operation) {
+		case OPERATION_DECODE:
+			return encoder.decode(encodedPassword);
+		case OPERATION_DECODE_OPTIONALLY_ENCRYPTED:
+			return encoder.decode(encodedPassword, true);
+		case OPERATION_DECODE_ENCRYPTED:
+			return encoder.decode(encodedPassword, false);
+		default:
+			throw new RuntimeException("Cannot decode password: unknown operation " + operation + ".");
+		}
+	}
+
+	/**
+	 * Reads and checks the handshake of a client.
+	 * 
+	 * @param in the stream of the client.
+	 * @return <code>true</code> if the client has sent the right token.
+	 * @throws IOException if the handshake cannot be read.
+	 */
+	private boolean checkHandshake(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			return false;
+		}
+		byte[] clientToken = new byte[TOKEN_LENGTH];
+		in.readFully(clientToken);
+		return MessageDigest.isEqual(token, clientToken);
+	}
+
+	/**
+	 * Writes the agent file, made of the port and of the Base64 encoded token,
+	 * readable only by its owner where the file system allows it.
+	 * 
+	 * @throws IOException if the agent file cannot be written.
+	 */
+	private void writeAgentFile() throws IOException {
+		Path directory = agentFile.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		Path temporaryFile;
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			temporaryFile = Files.createTempFile(directory, ".agent", null,
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			temporaryFile = Files.createTempFile(directory, ".agent", null);
+		}
+		Files.write(temporaryFile, (getPort() + "\n" + Base64.getEncoder().encodeToString(token) + "\n")
+				.getBytes(StandardCharsets.US_ASCII));
+		Files.move(temporaryFile, agentFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a value, made of its length and of its UTF-8 bytes.
+	 * 
+	 * @param in the stream.
+	 * @return the bytes of the value.
+	 * @throws IOException if the value cannot be read or is too long.
+	 */
+	static byte[] readValue(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_VALUE_LENGTH) {
+			throw new IOException("Invalid value length " + length + ".");
+		}
+		byte[] value = new byte[length];
+		in.readFully(value);
+		return value;
+	}
+
+	/**
+	 * Writes a value preceded by a status or an operation, wiping its bytes
+	 * afterwards.
+	 * 
+	 * @param out    the stream.
+	 * @param header the status or the operation.
+	 * @param value  the value.
+	 * @throws IOException if the value cannot be written.
+	 */
+	static void writeValue(DataOutputStream out, byte header, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		try {
+			out.writeByte(header);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} finally {
+			Arrays.fill(bytes, (byte) 0);
+		}
+	}
+
+	/**
+	 * Closes a socket, ignoring errors.
+	 * 
+	 * @param socket the socket.
+	 */
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing to do, the socket is being discarded
+		}
+	}
+}
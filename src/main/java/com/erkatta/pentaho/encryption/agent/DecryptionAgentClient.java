@@ -0,0 +1,308 @@
+package com.erkatta.pentaho.encryption.agent;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import com.erkatta.pentaho.encryption.om.CryptoResult;
+
+/**
+ * The client of a {@link DecryptionAgent}. The client connects to the port
+ * written in the agent file and sends the token found there; the connection
+ * is then kept open and every request is made of the decoding operation and of
+ * the encoded password, answered by a status and the decoded password or the
+ * error message. Many passwords are sent in windows of bounded size: the
+ * requests of a window are sent in a single write, without waiting for the
+ * answers, which are read in the same order before the next window is sent,
+ * so that neither side blocks on a full socket buffer.
+ * <p>
+ * The connections are kept in a small pool, so that the threads decoding at
+ * the same time don't wait for each other behind a single connection. When
+ * the agent cannot be reached the client reports it as unavailable for a few
+ * seconds, so that the callers decrypt by themselves without trying to connect
+ * for every password.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class DecryptionAgentClient implements Closeable {
+
+	/** The time after which an unavailable agent is tried again. **/
+	private static final long RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+	/** The maximum number of requests sent before reading their answers. **/
+	private static final int WINDOW_SIZE = 64;
+	/** The maximum number of characters of the passwords sent before reading their answers. **/
+	private static final int WINDOW_LENGTH = 16 * 1024;
+	/** The maximum number of idle connections kept open. **/
+	private static final int MAX_IDLE_CONNECTIONS = 4;
+
+	/** The agent file. **/
+	private final Path agentFile;
+	/** The timeout in milliseconds of the connection and of every answer. **/
+	private final int timeoutMillis;
+	/** The idle connections to the agent, the most recently used first. **/
+	private final BlockingDeque<Connection> idleConnections = new LinkedBlockingDeque<>(MAX_IDLE_CONNECTIONS);
+
+	/** The time, as returned by {@link System#nanoTime()}, before which the agent is not tried again. **/
+	private volatile long unavailableUntil;
+	/** Whether the client has been closed. **/
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new client. The agent is contacted by the first request.
+	 * 
+	 * @param agentFile     the agent file.
+	 * @param timeoutMillis the timeout in milliseconds of the connection and of
+	 *                      every answer.
+	 */
+	public DecryptionAgentClient(Path agentFile, int timeoutMillis) {
+		this.agentFile = agentFile;
+		this.timeoutMillis = timeoutMillis;
+		this.unavailableUntil = System.nanoTime();
+	}
+
+	/**
+	 * Checks whether the agent is worth trying: it has not failed recently.
+	 * 
+	 * @return <code>true</code> if the agent can be tried.
+	 */
+	public boolean isAvailable() {
+		return System.nanoTime() - unavailableUntil >= 0;
+	}
+
+	/**
+	 * Decodes a password with the agent.
+	 * 
+	 * @param operation       the decoding operation, one of the
+	 *                        <code>OPERATION_</code> constants of
+	 *                        {@link DecryptionAgent}.
+	 * @param encodedPassword the encoded password.
+	 * @return the decoded password, or the error of the agent.
+	 * @throws IOException if the agent cannot be reached.
+	 */
+	public CryptoResult<String> decode(byte operation, String encodedPassword) throws IOException {
+		return decodeAll(operation, Arrays.asList(encodedPassword)).get(0);
+	}
+
+	/**
+	 * Decodes many passwords with the agent, sending them in windows of bounded
+	 * size and reading the answers of each window before sending the next one.
+	 * 
+	 * @param operation        the decoding operation, one of the
+	 *                         <code>OPERATION_</code> constants of
+	 *                         {@link DecryptionAgent}.
+	 * @param encodedPasswords the encoded passwords.
+	 * @return the decoded passwords in the same order, or the error of the agent
+	 *         for each of them.
+	 * @throws IOException if the agent cannot be reached.
+	 */
+	public List<CryptoResult<String>> decodeAll(byte operation, List<String> encodedPasswords) throws IOException {
+		Connection connection = null;
+		try {
+			connection = borrowConnection();
+			List<CryptoResult<String>> results = new ArrayList<>(encodedPasswords.size());
+			int sent = 0;
+			while (sent < encodedPasswords.size()) {
+				int windowEnd = sent;
+				int windowLength = 0;
+				do {
+					String encodedPassword = encodedPasswords.get(windowEnd++);
+					DecryptionAgent.writeValue(connection.out, operation, encodedPassword);
+					windowLength += encodedPassword.length();
+				} while (windowEnd < encodedPasswords.size() && windowEnd - sent < WINDOW_SIZE
+						&& windowLength < WINDOW_LENGTH);
+				connection.out.flush();
+				for (; sent < windowEnd; sent++) {
+					results.add(readAnswer(connection.in));
+				}
+			}
+			releaseConnection(connection);
+			return results;
+		} catch (IOException e) {
+			unavailableUntil = System.nanoTime() + RETRY_DELAY_NANOS;
+			if (connection != null) {
+				connection.close();
+			}
+			// The other connections are likely broken as well
+			closeIdleConnections();
+			throw e;
+		}
+	}
+
+	/**
+	 * Disconnects from the agent. The connections in use are closed when their
+	 * requests are answered.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		closeIdleConnections();
+	}
+
+	/**
+	 * Reads the answer to a request.
+	 * 
+	 * @param in the stream of the answers.
+	 * @return the decoded password, or the error of the agent.
+	 * @throws IOException if the answer cannot be read.
+	 */
+	private static CryptoResult<String> readAnswer(DataInputStream in) throws IOException {
+		byte status = in.readByte();
+		byte[] value = DecryptionAgent.readValue(in);
+		try {
+			String text = new String(value, StandardCharsets.UTF_8);
+			return status == DecryptionAgent.STATUS_OK ? CryptoResult.success(text)
+					: CryptoResult.failure(new RuntimeException("Cannot decode password: " + text));
+		} finally {
+			Arrays.fill(value, (byte) 0);
+		}
+	}
+
+	/**
+	 * Takes an idle connection from the pool, or connects to the agent if there
+	 * is none.
+	 * 
+	 * @return the connection.
+	 * @throws IOException if the client is closed, the agent file cannot be read
+	 *                     or the agent cannot be reached or rejects the token.
+	 */
+	private Connection borrowConnection() throws IOException {
+		if (closed) {
+			throw new IOException("The agent client is closed.");
+		}
+		Connection connection = idleConnections.pollFirst();
+		return connection != null ? connection : connect();
+	}
+
+	/**
+	 * Puts a connection whose answers have all been read back in the pool, or
+	 * closes it if the pool is full or the client is closed.
+	 * 
+	 * @param connection the connection.
+	 */
+	private void releaseConnection(Connection connection) {
+		if (closed || !idleConnections.offerFirst(connection)) {
+			connection.close();
+		} else if (closed) {
+			// Closed meanwhile, the connection may have missed it
+			closeIdleConnections();
+		}
+	}
+
+	/**
+	 * Closes the idle connections.
+	 */
+	private void closeIdleConnections() {
+		Connection connection;
+		while ((connection = idleConnections.pollFirst()) != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Connects to the agent and sends the token.
+	 * 
+	 * @return the new connection.
+	 * @throws IOException if the agent file cannot be read or the agent cannot
+	 *                     be reached or rejects the token.
+	 */
+	private Connection connect() throws IOException {
+		List<String> lines = Files.readAllLines(agentFile, StandardCharsets.US_ASCII);
+		if (lines.size() < 2) {
+			throw new IOException("Invalid agent file " + agentFile + ".");
+		}
+		int port;
+		byte[] token;
+		try {
+			port = Integer.parseInt(lines.get(0).trim());
+			token = Base64.getDecoder().decode(lines.get(1).trim());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid agent file " + agentFile + ".", e);
+		}
+		Socket newSocket = new Socket();
+		try {
+			newSocket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), timeoutMillis);
+			newSocket.setSoTimeout(timeoutMillis);
+			newSocket.setTcpNoDelay(true);
+			Connection connection = new Connection(newSocket);
+			connection.out.writeInt(DecryptionAgent.MAGIC);
+			connection.out.write(token);
+			connection.out.flush();
+			if (connection.in.readByte() != DecryptionAgent.STATUS_OK) {
+				throw new IOException("The agent has rejected the token.");
+			}
+			return connection;
+		} catch (IOException e) {
+			newSocket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * A connection to the agent, used by one thread at a time.
+	 */
+	private static final class Connection {
+
+		/** The socket of the connection. **/
+		private final Socket socket;
+		/** The stream of the requests. **/
+		private final DataOutputStream out;
+		/** The stream of the answers. **/
+		private final DataInputStream in;
+
+		/**
+		 * Creates a new connection on a connected socket.
+		 * 
+		 * @param socket the connected socket.
+		 * @throws IOException if the streams of the socket cannot be opened.
+		 */
+		private Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		}
+
+		/**
+		 * Closes the connection.
+		 */
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing to do, the connection is being discarded
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.erkatta.pentaho.encryption.job;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.pentaho.di.cluster.SlaveServer;
+import org.pentaho.di.core.Result;
+import org.pentaho.di.core.annotations.JobEntry;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.job.entry.JobEntryBase;
+import org.pentaho.di.job.entry.JobEntryInterface;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import com.erkatta.pentaho.encryption.StrongPasswordEncoder;
+
+/**
+ * A job entry that encrypts or decrypts a file with the key pair configured for
+ * the {@link StrongPasswordEncoder}. Files of any size are processed in chunks,
+ * in parallel and with a constant amount of memory.
+ *
+ * @author Marco Cattarin
+ *
+ */
+@JobEntry(id = "StrongFileEncryption", name = "Strong file encryption",
+		description = "Encrypts or decrypts a file with the key pair of the strong password encoder",
+		categoryDescription = "i18n:org.pentaho.di.job:JobCategory.Category.FileEncryption")
+public class JobEntryStrongFileEncryption extends JobEntryBase implements Cloneable, JobEntryInterface {
+
+	/** The tag of the file to encrypt or decrypt. **/
+	private static final String SOURCE_FILENAME_TAG = "source_filename";
+	/** The tag of the resulting file. **/
+	private static final String TARGET_FILENAME_TAG = "target_filename";
+	/** The tag of the operation. **/
+	private static final String DECRYPT_TAG = "decrypt";
+
+	/** The encoder that holds the key pair, shared by all the job entries. **/
+	private static StrongPasswordEncoder encoder;
+
+	/** The file to encrypt or decrypt, which can contain variables. **/
+	private String sourceFilename;
+	/** The resulting file, which can contain variables. **/
+	private String targetFilename;
+	/** Whether the file is decrypted instead of encrypted. **/
+	private boolean decrypt;
+
+	/**
+	 * Creates a new job entry.
+	 *
+	 * @param name the name of the job entry.
+	 */
+	public JobEntryStrongFileEncryption(String name) {
+		super(name, "");
+	}
+
+	/**
+	 * Creates a new job entry.
+	 */
+	public JobEntryStrongFileEncryption() {
+		this("");
+	}
+
+	/**
+	 * Encrypts or decrypts the file.
+	 *
+	 * @param previousResult the result of the previous job entry.
+	 * @param nr             the number of the job entry.
+	 * @return the result, successful if the file has been processed.
+	 */
+	@Override
+	public Result execute(Result previousResult, int nr) {
+		Result result = previousResult;
+		result.setResult(false);
+		Path source = Paths.get(environmentSubstitute(sourceFilename));
+		Path target = Paths.get(environmentSubstitute(targetFilename));
+		try {
+			long start = System.nanoTime();
+			if (decrypt) {
+				getEncoder().decryptFile(source, target);
+			} else {
+				getEncoder().encryptFile(source, target);
+			}
+			logBasic((decrypt ? "Decrypted " : "Encrypted ") + source + " to " + target + " in "
+					+ (System.nanoTime() - start) / 1000000L + " ms.");
+			result.setResult(true);
+		} catch (IOException | RuntimeException | KettleException e) {
+			logError("Cannot " + (decrypt ? "decrypt " : "encrypt ") + source + ".", e);
+			result.setNrErrors(1);
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the encoder that holds the key pair, creating it on first use.
+	 *
+	 * @return the encoder.
+	 * @throws KettleException in case of errors during the encoder
+	 *                         initialization.
+	 */
+	private static synchronized StrongPasswordEncoder getEncoder() throws KettleException {
+		if (encoder == null) {
+			StrongPasswordEncoder newEncoder = new StrongPasswordEncoder();
+			newEncoder.init();
+			encoder = newEncoder;
+		}
+		return encoder;
+	}
+
+	@Override
+	public String getXML() {
+		StringBuilder xml = new StringBuilder(super.getXML());
+		xml.append("      ").append(XMLHandler.addTagValue(SOURCE_FILENAME_TAG, sourceFilename));
+		xml.append("      ").append(XMLHandler.addTagValue(TARGET_FILENAME_TAG, targetFilename));
+		xml.append("      ").append(XMLHandler.addTagValue(DECRYPT_TAG, decrypt));
+		return xml.toString();
+	}
+
+	@Override
+	public void loadXML(Node entrynode, List<DatabaseMeta> databases, List<SlaveServer> slaveServers,
+			Repository rep, IMetaStore metaStore) throws KettleXMLException {
+		super.loadXML(entrynode, databases, slaveServers);
+		sourceFilename = XMLHandler.getTagValue(entrynode, SOURCE_FILENAME_TAG);
+		targetFilename = XMLHandler.getTagValue(entrynode, TARGET_FILENAME_TAG);
+		decrypt = "Y".equalsIgnoreCase(XMLHandler.getTagValue(entrynode, DECRYPT_TAG));
+	}
+
+	@Override
+	public void loadRep(Repository rep, IMetaStore metaStore, ObjectId idJobentry, List<DatabaseMeta> databases,
+			List<SlaveServer> slaveServers) throws KettleException {
+		sourceFilename = rep.getJobEntryAttributeString(idJobentry, SOURCE_FILENAME_TAG);
+		targetFilename = rep.getJobEntryAttributeString(idJobentry, TARGET_FILENAME_TAG);
+		decrypt = rep.getJobEntryAttributeBoolean(idJobentry, DECRYPT_TAG);
+	}
+
+	@Override
+	public void saveRep(Repository rep, IMetaStore metaStore, ObjectId idJob) throws KettleException {
+		rep.saveJobEntryAttribute(idJob, getObjectId(), SOURCE_FILENAME_TAG, sourceFilename);
+		rep.saveJobEntryAttribute(idJob, getObjectId(), TARGET_FILENAME_TAG, targetFilename);
+		rep.saveJobEntryAttribute(idJob, getObjectId(), DECRYPT_TAG, decrypt);
+	}
+
+	@Override
+	public boolean evaluates() {
+		return true;
+	}
+
+	@Override
+	public boolean isUnconditional() {
+		return false;
+	}
+
+	@Override
+	public Object clone() {
+		return super.clone();
+	}
+
+	/**
+	 * Gets the file to encrypt or decrypt.
+	 *
+	 * @return the file name, which can contain variables.
+	 */
+	public String getSourceFilename() {
+		return sourceFilename;
+	}
+
+	/**
+	 * Sets the file to encrypt or decrypt.
+	 *
+	 * @param sourceFilename the file name, which can contain variables.
+	 */
+	public void setSourceFilename(String sourceFilename) {
+		this.sourceFilename = sourceFilename;
+	}
+
+	/**
+	 * Gets the resulting file.
+	 *
+	 * @return the file name, which can contain variables.
+	 */
+	public String getTargetFilename() {
+		return targetFilename;
+	}
+
+	/**
+	 * Sets the resulting file.
+	 *
+	 * @param targetFilename the file name, which can contain variables.
+	 */
+	public void setTargetFilename(String targetFilename) {
+		this.targetFilename = targetFilename;
+	}
+
+	/**
+	 * Checks whether the file is decrypted instead of encrypted.
+	 *
+	 * @return <code>true</code> if the file is decrypted.
+	 */
+	public boolean isDecrypt() {
+		return decrypt;
+	}
+
+	/**
+	 * Sets whether the file is decrypted instead of encrypted.
+	 *
+	 * @param decrypt <code>true</code> to decrypt the file.
+	 */
+	public void setDecrypt(boolean decrypt) {
+		this.decrypt = decrypt;
+	}
+}
@@ -0,0 +1,109 @@
+package com.erkatta.pentaho.encryption.om;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+/**
+ * This class holds the outcome of the encryption or decryption of a single item of a batch: either the resulting value
+ * or the error that prevented the item from being processed.
+ * 
+ * @author Marco Cattarin
+ *
+ * @param <T> the type of the resulting value.
+ */
+public final class CryptoResult<T> {
+
+	/** The resulting value, <code>null</code> if the item has failed. **/
+	private final T value;
+	/** The error, <code>null</code> if the item has succeeded. **/
+	private final RuntimeException error;
+
+	/**
+	 * Initialize a new {@link CryptoResult}
+	 * 
+	 * @param value the resulting value.
+	 * @param error the error.
+	 */
+	private CryptoResult(T value, RuntimeException error) {
+		this.value = value;
+		this.error = error;
+	}
+
+	/**
+	 * Creates the result of a successful item.
+	 * 
+	 * @param <T>   the type of the resulting value.
+	 * @param value the resulting value.
+	 * @return the result.
+	 */
+	public static <T> CryptoResult<T> success(T value) {
+		return new CryptoResult<>(value, null);
+	}
+
+	/**
+	 * Creates the result of a failed item.
+	 * 
+	 * @param <T>   the type of the resulting value.
+	 * @param error the error that prevented the item from being processed.
+	 * @return the result.
+	 */
+	public static <T> CryptoResult<T> failure(RuntimeException error) {
+		return new CryptoResult<>(null, error);
+	}
+
+	/**
+	 * Checks whether the item has been processed successfully.
+	 * 
+	 * @return <code>true</code> if the item has been processed successfully.
+	 */
+	public boolean isSuccessful() {
+		return error == null;
+	}
+
+	/**
+	 * Gets the resulting value.
+	 * 
+	 * @return the resulting value.
+	 * @throws RuntimeException the error of the item, if it has failed.
+	 */
+	public T getValue() {
+		if (error != null) {
+			throw error;
+		}
+		return value;
+	}
+
+	/**
+	 * Gets the error that prevented the item from being processed.
+	 * 
+	 * @return the error or <code>null</code> if the item has been processed
+	 *         successfully.
+	 */
+	public RuntimeException getError() {
+		return error;
+	}
+
+	/**
+	 * Returns a string representation of the {@link CryptoResult}, which never
+	 * includes the resulting value.
+	 * 
+	 * @return a string representation of the {@link CryptoResult}.
+	 */
+	@Override
+	public String toString() {
+		return isSuccessful() ? "Success" : "Failure:" + error.getMessage();
+	}
+}
@@ -16,7 +16,16 @@ package com.erkatta.pentaho.encryption.util;
  * <http://www.gnu.org/licenses/lgpl-2.1.html>.
  */
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
 import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.om.CryptoResult;
 
 /**
  * A generic interface that represent a cryptographic utility that relies on asymmetric keys cryptography.
@@ -62,10 +71,176 @@ public interface AsymmetricCryptoUtil {
 	 */
     public String decrypt(String data, String privateKey);
     
+	/**
+	 * Encrypts the remaining bytes of a buffer into another buffer. The default implementation copies the data into
+	 * arrays; implementations override it to work directly on the buffers.
+	 * 
+	 * @param data the data to encrypt, which is consumed.
+	 * @param output the buffer that receives the encrypted data at its position; it must have at least
+	 *            {@link #getMaxEncryptedLength(int, String)} bytes remaining.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the number of bytes written to the output buffer.
+	 */
+    public default int encrypt(ByteBuffer data, ByteBuffer output, String publicKey) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        try {
+            byte[] encrypted = encrypt(bytes, publicKey);
+            output.put(encrypted);
+            return encrypted.length;
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+	/**
+	 * Decrypts the remaining bytes of a buffer into another buffer. The default implementation copies the data into
+	 * arrays; implementations override it to work directly on the buffers.
+	 * 
+	 * @param data the data to decrypt, which is consumed.
+	 * @param output the buffer that receives the decrypted data at its position; it must have at least as many bytes
+	 *            remaining as the data to decrypt.
+	 * @param privateKey the private key to use to decode the data as Base64 encoded string.
+	 * @return the number of bytes written to the output buffer.
+	 */
+    public default int decrypt(ByteBuffer data, ByteBuffer output, String privateKey) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        byte[] decrypted = decrypt(bytes, privateKey);
+        try {
+            output.put(decrypted);
+            return decrypted.length;
+        } finally {
+            Arrays.fill(decrypted, (byte) 0);
+        }
+    }
+
+	/**
+	 * Gets the maximum length of the encrypted form of data.
+	 * 
+	 * @param length the length in bytes of the data to encrypt.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the maximum length in bytes of the encrypted data.
+	 */
+    public int getMaxEncryptedLength(int length, String publicKey);
+
+	/**
+	 * Encrypts characters, without creating intermediate strings or arrays.
+	 * 
+	 * @param data the data to encrypt as characters, which the caller can wipe afterwards.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the encrypted data as Base64 string.
+	 */
+    public default String encrypt(char[] data, String publicKey) {
+        CryptoBuffers buffers = CryptoBuffers.get();
+        try {
+            ByteBuffer input = buffers.encodeUtf8(CharBuffer.wrap(data));
+            ByteBuffer output = buffers.output(getMaxEncryptedLength(input.remaining(), publicKey));
+            encrypt(input, output, publicKey);
+            output.flip();
+            return Base64Codec.encode(output);
+        } finally {
+            buffers.wipe();
+        }
+    }
+
+	/**
+	 * Decrypts a range of Base64 characters, such as an encrypted password after its prefix, without creating
+	 * intermediate strings or arrays.
+	 * 
+	 * @param data the data to decrypt as Base64 characters.
+	 * @param start the index of the first character of the data.
+	 * @param end the index after the last character of the data.
+	 * @param privateKey the private key to use to decode the data as Base64 encoded string.
+	 * @return the decrypted data as characters, which the caller should wipe once used.
+	 */
+    public default char[] decryptToChars(CharSequence data, int start, int end, String privateKey) {
+        CryptoBuffers buffers = CryptoBuffers.get();
+        try {
+            return decryptToChars(buffers.decodeBase64(data, start, end), privateKey);
+        } finally {
+            buffers.wipe();
+        }
+    }
+
+	/**
+	 * Decrypts the remaining bytes of a buffer, without creating intermediate arrays.
+	 * 
+	 * @param data the data to decrypt, which is consumed.
+	 * @param privateKey the private key to use to decode the data as Base64 encoded string.
+	 * @return the decrypted data as characters, which the caller should wipe once used.
+	 */
+    public default char[] decryptToChars(ByteBuffer data, String privateKey) {
+        CryptoBuffers buffers = CryptoBuffers.get();
+        try {
+            ByteBuffer output = buffers.output(data.remaining());
+            decrypt(data, output, privateKey);
+            output.flip();
+            return buffers.decodeUtf8(output);
+        } finally {
+            buffers.wipe();
+        }
+    }
+
+    /**
+	 * Encrypts a batch of data in parallel, using the common fork-join pool.
+	 * 
+	 * @param data the data to encrypt as strings.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the encrypted data as strings, in the same order as the input, with the error of every item that has failed.
+	 */
+    public default List<CryptoResult<String>> encryptAll(Collection<String> data, String publicKey) {
+        return encryptAll(data, publicKey, ForkJoinPool.commonPool());
+    }
+
+    /**
+	 * Encrypts a batch of data in parallel.
+	 * 
+	 * @param data the data to encrypt as strings.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @param executor the executor that spreads the work.
+	 * @return the encrypted data as strings, in the same order as the input, with the error of every item that has failed.
+	 */
+    public default List<CryptoResult<String>> encryptAll(Collection<String> data, String publicKey,
+            ExecutorService executor) {
+        return BatchProcessor.process(data, item -> encrypt(item, publicKey), executor);
+    }
+
+    /**
+	 * Decrypts a batch of data in parallel, using the common fork-join pool.
+	 * 
+	 * @param data the data to decrypt as strings.
+	 * @param privateKey the private key to use to decode the data as Base64 encoded string.
+	 * @return the decrypted data as strings, in the same order as the input, with the error of every item that has failed.
+	 */
+    public default List<CryptoResult<String>> decryptAll(Collection<String> data, String privateKey) {
+        return decryptAll(data, privateKey, ForkJoinPool.commonPool());
+    }
+
+    /**
+	 * Decrypts a batch of data in parallel.
+	 * 
+	 * @param data the data to decrypt as strings.
+	 * @param privateKey the private key to use to decode the data as Base64 encoded string.
+	 * @param executor the executor that spreads the work.
+	 * @return the decrypted data as strings, in the same order as the input, with the error of every item that has failed.
+	 */
+    public default List<CryptoResult<String>> decryptAll(Collection<String> data, String privateKey,
+            ExecutorService executor) {
+        return BatchProcessor.process(data, item -> decrypt(item, privateKey), executor);
+    }
+
     /**
      * Generates a (public,private) key pair.
      * 
      * @return a pair of Base64 encoded keys.
      */
     public Base64EncodedKeyPair generateKeyPair();
+
+    /**
+     * Forgets the keys kept by the utility, parsed or held by initialized ciphers, so that keys that have been
+     * replaced do not stay in memory. The default implementation keeps no key.
+     */
+    public default void clear() {
+    }
 }
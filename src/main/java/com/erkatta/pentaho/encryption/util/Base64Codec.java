@@ -0,0 +1,152 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A Base64 codec that works on a range of characters and on buffers, so that an encrypted password is decoded
+ * without first cutting off its prefix and converting it to bytes. It accepts exactly what the basic decoder of
+ * {@link java.util.Base64} accepts: the standard alphabet, with optional padding and without line separators.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class Base64Codec {
+
+	/** The characters of the standard alphabet. **/
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+	/** The value of every character, -1 for the characters outside the alphabet. **/
+	private static final int[] VALUES = new int[128];
+
+	static {
+		Arrays.fill(VALUES, -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			VALUES[ALPHABET[i]] = i;
+		}
+	}
+
+	/**
+	 * This class cannot be instantiated.
+	 */
+	private Base64Codec() {
+	}
+
+	/**
+	 * Gets the maximum number of bytes decoded from a number of characters.
+	 *
+	 * @param length the number of characters.
+	 * @return the maximum number of decoded bytes.
+	 */
+	public static int getMaxDecodedLength(int length) {
+		return (length + 3) / 4 * 3;
+	}
+
+	/**
+	 * Decodes a range of characters.
+	 *
+	 * @param data   the characters to decode.
+	 * @param start  the index of the first character.
+	 * @param end    the index after the last character.
+	 * @param output the buffer that receives the decoded bytes, at its position; it must have at least
+	 *               {@link #getMaxDecodedLength(int)} bytes remaining.
+	 * @throws IllegalArgumentException if the characters are not valid Base64.
+	 */
+	public static void decode(CharSequence data, int start, int end, ByteBuffer output) {
+		int bits = 0;
+		int count = 0;
+		int i = start;
+		while (i < end) {
+			char c = data.charAt(i);
+			if (c == '=') {
+				break;
+			}
+			int value = c < VALUES.length ? VALUES[c] : -1;
+			if (value < 0) {
+				throw new IllegalArgumentException("Illegal base64 character " + Integer.toHexString(c));
+			}
+			bits = bits << 6 | value;
+			if (++count == 4) {
+				output.put((byte) (bits >> 16)).put((byte) (bits >> 8)).put((byte) bits);
+				bits = 0;
+				count = 0;
+			}
+			i++;
+		}
+		if (count == 1) {
+			throw new IllegalArgumentException("Last unit does not have enough valid bits");
+		}
+		int padding = end - i;
+		if (padding > 0 && (count == 0 || padding != 4 - count || !isPadding(data, i, end))) {
+			throw new IllegalArgumentException("Input byte array has incorrect ending byte at " + (i - start));
+		}
+		if (count == 2) {
+			output.put((byte) (bits >> 4));
+		} else if (count == 3) {
+			output.put((byte) (bits >> 10)).put((byte) (bits >> 2));
+		}
+	}
+
+	/**
+	 * Encodes the remaining bytes of a buffer, which is consumed.
+	 *
+	 * @param data the bytes to encode.
+	 * @return the encoded bytes, with padding.
+	 */
+	public static String encode(ByteBuffer data) {
+		char[] encoded = new char[(data.remaining() + 2) / 3 * 4];
+		int i = 0;
+		while (data.remaining() >= 3) {
+			int bits = (data.get() & 0xFF) << 16 | (data.get() & 0xFF) << 8 | (data.get() & 0xFF);
+			encoded[i++] = ALPHABET[bits >>> 18];
+			encoded[i++] = ALPHABET[bits >>> 12 & 0x3F];
+			encoded[i++] = ALPHABET[bits >>> 6 & 0x3F];
+			encoded[i++] = ALPHABET[bits & 0x3F];
+		}
+		if (data.hasRemaining()) {
+			int bits = (data.get() & 0xFF) << 16;
+			boolean twoBytes = data.hasRemaining();
+			if (twoBytes) {
+				bits |= (data.get() & 0xFF) << 8;
+			}
+			encoded[i++] = ALPHABET[bits >>> 18];
+			encoded[i++] = ALPHABET[bits >>> 12 & 0x3F];
+			encoded[i++] = twoBytes ? ALPHABET[bits >>> 6 & 0x3F] : '=';
+			encoded[i] = '=';
+		}
+		return new String(encoded);
+	}
+
+	/**
+	 * Checks whether a range of characters is made only of padding characters.
+	 *
+	 * @param data  the characters.
+	 * @param start the index of the first character.
+	 * @param end   the index after the last character.
+	 * @return <code>true</code> if all the characters are padding characters.
+	 */
+	private static boolean isPadding(CharSequence data, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (data.charAt(i) != '=') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
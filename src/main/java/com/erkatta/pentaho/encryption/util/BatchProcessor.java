@@ -0,0 +1,90 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import com.erkatta.pentaho.encryption.om.CryptoResult;
+
+/**
+ * Utility class that processes a batch of items in parallel, collecting the results in the input order.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public final class BatchProcessor {
+
+	/**
+	 * This class cannot be instantiated.
+	 */
+	private BatchProcessor() {
+	}
+
+	/**
+	 * Applies a function to every item of a batch, spreading the work over an executor.
+	 * 
+	 * @param <T>      the type of the items.
+	 * @param <R>      the type of the results.
+	 * @param items    the items to process.
+	 * @param function the function to apply to every item.
+	 * @param executor the executor that runs the function.
+	 * @return the results, in the same order as the items; an item that has failed has a result that carries the error.
+	 */
+	public static <T, R> List<CryptoResult<R>> process(Collection<? extends T> items, Function<? super T, R> function,
+			ExecutorService executor) {
+		List<Future<CryptoResult<R>>> futures = new ArrayList<>(items.size());
+		for (T item : items) {
+			futures.add(executor.submit(() -> apply(item, function)));
+		}
+		List<CryptoResult<R>> results = new ArrayList<>(items.size());
+		for (Future<CryptoResult<R>> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				results.add(CryptoResult.failure(new RuntimeException("Cannot process item.", e.getCause())));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				futures.forEach(f -> f.cancel(true));
+				throw new RuntimeException("Batch processing has been interrupted.", e);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Applies a function to a single item, capturing its error.
+	 * 
+	 * @param <T>      the type of the item.
+	 * @param <R>      the type of the result.
+	 * @param item     the item to process.
+	 * @param function the function to apply.
+	 * @return the result.
+	 */
+	private static <T, R> CryptoResult<R> apply(T item, Function<? super T, R> function) {
+		try {
+			return CryptoResult.success(function.apply(item));
+		} catch (RuntimeException e) {
+			return CryptoResult.failure(e);
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * The header that makes encrypted data self-describing. It is put in front of the encrypted data before the Base64
+ * encoding and is made of:
+ * <ul>
+ * <li>the magic bytes "SPE", which are always encoded as "U1BF" in Base64;</li>
+ * <li>the format version (1 byte);</li>
+ * <li>the asymmetric algorithm (1 byte);</li>
+ * <li>the encryption mode, direct or envelope (1 byte);</li>
+ * <li>the identifier of the key pair, see {@link KeyRing#getKeyId(String)} (8 bytes, since version 2).</li>
+ * </ul>
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class CiphertextHeader {
+
+	/** The magic bytes that start every header. **/
+	private static final byte[] MAGIC = { 'S', 'P', 'E' };
+	/** The Base64 encoded form of the magic bytes. **/
+	public static final String BASE64_MAGIC = "U1BF";
+	/** The current format version. **/
+	public static final byte VERSION = 2;
+	/** The first format version, without key identifier. **/
+	private static final byte VERSION_1 = 1;
+	/** The length in bytes of a version 1 header. **/
+	private static final int LENGTH_V1 = MAGIC.length + 3;
+	/** The length in bytes of the current version header. **/
+	public static final int LENGTH = LENGTH_V1 + 8;
+
+	/** The key identifier of the headers that do not carry one. **/
+	public static final long NO_KEY_ID = 0L;
+
+	/** The RSA algorithm. **/
+	public static final byte ALGORITHM_RSA = 1;
+	/** The ECIES algorithm, see {@link EcCryptoUtil}. **/
+	public static final byte ALGORITHM_EC = 2;
+
+	/** The data is directly encrypted with the asymmetric algorithm. **/
+	public static final byte MODE_DIRECT = 0;
+	/** The data is encrypted with a data key wrapped by the asymmetric algorithm, see {@link EnvelopeCryptoUtil}. **/
+	public static final byte MODE_ENVELOPE = 1;
+
+	/**
+	 * The formats of an encrypted password, without its prefix.
+	 */
+	public enum Format {
+		/** Base64 encoded data that starts with a {@link CiphertextHeader}. **/
+		HEADER,
+		/** Hexadecimal data obfuscated by the default Kettle password encoder. **/
+		KETTLE_OBFUSCATED,
+		/** Base64 encoded data without header, produced before headers were introduced. **/
+		HEADERLESS,
+		/** Anything else. **/
+		UNKNOWN
+	}
+
+	/** The asymmetric algorithm. **/
+	private final byte algorithm;
+	/** The encryption mode. **/
+	private final byte mode;
+	/** The identifier of the key pair. **/
+	private final long keyId;
+	/** The length in bytes of the header. **/
+	private final int length;
+
+	/**
+	 * Creates a new header.
+	 *
+	 * @param algorithm the asymmetric algorithm.
+	 * @param mode      the encryption mode.
+	 * @param keyId     the identifier of the key pair.
+	 */
+	public CiphertextHeader(byte algorithm, byte mode, long keyId) {
+		this(algorithm, mode, keyId, LENGTH);
+	}
+
+	/**
+	 * Creates a new header.
+	 *
+	 * @param algorithm the asymmetric algorithm.
+	 * @param mode      the encryption mode.
+	 * @param keyId     the identifier of the key pair.
+	 * @param length    the length in bytes of the header.
+	 */
+	private CiphertextHeader(byte algorithm, byte mode, long keyId, int length) {
+		this.algorithm = algorithm;
+		this.mode = mode;
+		this.keyId = keyId;
+		this.length = length;
+	}
+
+	/**
+	 * Detects the format of an encrypted password without decoding it.
+	 *
+	 * @param encoded the encrypted password, without its prefix.
+	 * @return the format of the encrypted password.
+	 */
+	public static Format detect(String encoded) {
+		return encoded == null ? Format.UNKNOWN : detect(encoded, 0, encoded.length());
+	}
+
+	/**
+	 * Detects the format of an encrypted password without decoding it or cutting off its prefix.
+	 *
+	 * @param encoded the characters that contain the encrypted password.
+	 * @param start   the index of the first character after the prefix.
+	 * @param end     the index after the last character.
+	 * @return the format of the encrypted password.
+	 */
+	public static Format detect(CharSequence encoded, int start, int end) {
+		if (start >= end) {
+			return Format.UNKNOWN;
+		}
+		if (startsWithMagic(encoded, start, end)) {
+			return Format.HEADER;
+		}
+		boolean hexadecimal = true;
+		for (int i = start; i < end; i++) {
+			char c = encoded.charAt(i);
+			if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')) {
+				continue;
+			}
+			hexadecimal = false;
+			boolean padding = c == '=' && i >= end - 2;
+			if (!padding && !(c >= 'A' && c <= 'Z') && !(c >= 'g' && c <= 'z') && c != '+' && c != '/') {
+				return Format.UNKNOWN;
+			}
+		}
+		if (hexadecimal) {
+			return Format.KETTLE_OBFUSCATED;
+		}
+		return (end - start) % 4 == 0 ? Format.HEADERLESS : Format.UNKNOWN;
+	}
+
+	/**
+	 * Checks whether a range of characters starts with the Base64 encoded magic bytes.
+	 *
+	 * @param encoded the characters.
+	 * @param start   the index of the first character.
+	 * @param end     the index after the last character.
+	 * @return <code>true</code> if the characters start with {@link #BASE64_MAGIC}.
+	 */
+	private static boolean startsWithMagic(CharSequence encoded, int start, int end) {
+		if (end - start < BASE64_MAGIC.length()) {
+			return false;
+		}
+		for (int i = 0; i < BASE64_MAGIC.length(); i++) {
+			if (encoded.charAt(start + i) != BASE64_MAGIC.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the header at the beginning of the decoded data.
+	 *
+	 * @param data the decoded data.
+	 * @return the header.
+	 * @throws RuntimeException if the data does not start with a supported header.
+	 */
+	public static CiphertextHeader parse(byte[] data) {
+		return parse(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Parses the header at the position of a buffer, which is moved to where the encrypted data starts.
+	 *
+	 * @param data the decoded data.
+	 * @return the header.
+	 * @throws RuntimeException if the data does not start with a supported header.
+	 */
+	public static CiphertextHeader parse(ByteBuffer data) {
+		int start = data.position();
+		if (data.remaining() < LENGTH_V1 || data.get(start) != MAGIC[0] || data.get(start + 1) != MAGIC[1]
+				|| data.get(start + 2) != MAGIC[2]) {
+			throw new RuntimeException("Cannot decrypt data: missing header.");
+		}
+		byte version = data.get(start + 3);
+		if (version == VERSION_1) {
+			data.position(start + LENGTH_V1);
+			return new CiphertextHeader(data.get(start + 4), data.get(start + 5), NO_KEY_ID, LENGTH_V1);
+		}
+		if (version != VERSION || data.remaining() < LENGTH) {
+			throw new RuntimeException("Cannot decrypt data: unsupported format version " + version + ".");
+		}
+		data.position(start + LENGTH);
+		return new CiphertextHeader(data.get(start + 4), data.get(start + 5), data.getLong(start + LENGTH_V1),
+				LENGTH);
+	}
+
+	/**
+	 * Puts the header in front of encrypted data.
+	 *
+	 * @param payload the encrypted data.
+	 * @return the header followed by the encrypted data.
+	 */
+	public byte[] wrap(byte[] payload) {
+		ByteBuffer wrapped = ByteBuffer.allocate(LENGTH + payload.length);
+		writeTo(wrapped);
+		return wrapped.put(payload).array();
+	}
+
+	/**
+	 * Writes the header at the position of a buffer, in the current format version.
+	 *
+	 * @param output the buffer, with at least {@link #LENGTH} bytes remaining.
+	 */
+	public void writeTo(ByteBuffer output) {
+		output.put(MAGIC).put(VERSION).put(algorithm).put(mode).putLong(keyId);
+	}
+
+	/**
+	 * Gets the asymmetric algorithm.
+	 *
+	 * @return the asymmetric algorithm.
+	 */
+	public byte getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Gets the encryption mode.
+	 *
+	 * @return the encryption mode.
+	 */
+	public byte getMode() {
+		return mode;
+	}
+
+	/**
+	 * Gets the identifier of the key pair.
+	 *
+	 * @return the identifier of the key pair or {@link #NO_KEY_ID}.
+	 */
+	public long getKeyId() {
+		return keyId;
+	}
+
+	/**
+	 * Gets the length in bytes of the header, which is where the encrypted data
+	 * starts.
+	 *
+	 * @return the length in bytes of the header.
+	 */
+	public int getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,207 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The scratch buffers of a thread, reused by every encryption and decryption so that the intermediate copies of a
+ * password (its Base64 decoded form, its encrypted and decrypted bytes) are not allocated each time. The buffers hold
+ * secrets, so they are wiped by {@link #wipe()} as soon as an operation completes; buffers larger than
+ * {@link #MAX_RETAINED_SIZE} are not kept.
+ * <p>
+ * An operation acquires the input and output buffers once: code that runs while they are in use, such as an
+ * implementation of {@link AsymmetricCryptoUtil#decrypt(ByteBuffer, ByteBuffer, String)}, must not use them.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class CryptoBuffers {
+
+	/** The maximum size in bytes, or characters, of the buffers kept between operations. **/
+	public static final int MAX_RETAINED_SIZE = 1 << 16;
+	/** The initial size in bytes, or characters, of the buffers. **/
+	private static final int INITIAL_SIZE = 1 << 10;
+
+	/** The buffers of every thread. **/
+	private static final ThreadLocal<CryptoBuffers> BUFFERS = ThreadLocal.withInitial(CryptoBuffers::new);
+
+	/** The UTF-8 decoder, which replaces malformed input as {@link String#String(byte[], java.nio.charset.Charset)}. **/
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	/** The UTF-8 encoder, which replaces malformed input as {@link String#getBytes(java.nio.charset.Charset)}. **/
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/** The buffer that holds the input of an operation. **/
+	private ByteBuffer input = ByteBuffer.allocate(INITIAL_SIZE);
+	/** The buffer that holds the output of an operation. **/
+	private ByteBuffer output = ByteBuffer.allocate(INITIAL_SIZE);
+	/** The buffer that holds decoded characters. **/
+	private CharBuffer chars = CharBuffer.allocate(INITIAL_SIZE);
+
+	/**
+	 * The buffers are obtained through {@link #get()}.
+	 */
+	private CryptoBuffers() {
+	}
+
+	/**
+	 * Gets the buffers of the current thread.
+	 *
+	 * @return the buffers.
+	 */
+	public static CryptoBuffers get() {
+		return BUFFERS.get();
+	}
+
+	/**
+	 * Converts characters to a string and wipes them.
+	 *
+	 * @param data the characters.
+	 * @return the string.
+	 */
+	public static String toStringAndWipe(char[] data) {
+		try {
+			return new String(data);
+		} finally {
+			Arrays.fill(data, '\0');
+		}
+	}
+
+	/**
+	 * Decodes a range of Base64 characters into the input buffer.
+	 *
+	 * @param data  the characters to decode.
+	 * @param start the index of the first character.
+	 * @param end   the index after the last character.
+	 * @return the input buffer, ready to be read.
+	 * @throws IllegalArgumentException if the characters are not valid Base64.
+	 */
+	public ByteBuffer decodeBase64(CharSequence data, int start, int end) {
+		input = clear(input, Base64Codec.getMaxDecodedLength(end - start));
+		Base64Codec.decode(data, start, end, input);
+		input.flip();
+		return input;
+	}
+
+	/**
+	 * Encodes characters as UTF-8 into the input buffer.
+	 *
+	 * @param data the characters to encode.
+	 * @return the input buffer, ready to be read.
+	 */
+	public ByteBuffer encodeUtf8(CharSequence data) {
+		input = clear(input, (int) (data.length() * encoder.maxBytesPerChar()));
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(data), input, true);
+		encoder.flush(input);
+		input.flip();
+		return input;
+	}
+
+	/**
+	 * Gets the output buffer.
+	 *
+	 * @param length the minimum number of bytes that can be written.
+	 * @return the output buffer, empty.
+	 */
+	public ByteBuffer output(int length) {
+		output = clear(output, length);
+		return output;
+	}
+
+	/**
+	 * Decodes UTF-8 bytes into new characters, owned by the caller.
+	 *
+	 * @param data the bytes to decode, which are consumed.
+	 * @return the decoded characters.
+	 */
+	public char[] decodeUtf8(ByteBuffer data) {
+		chars = clear(chars, (int) (data.remaining() * decoder.maxCharsPerByte()));
+		decoder.reset();
+		decoder.decode(data, chars, true);
+		decoder.flush(chars);
+		chars.flip();
+		char[] decoded = new char[chars.remaining()];
+		chars.get(decoded);
+		return decoded;
+	}
+
+	/**
+	 * Wipes the content of all the buffers, and drops the buffers that have grown too large.
+	 */
+	public void wipe() {
+		input = wipe(input);
+		output = wipe(output);
+		Arrays.fill(chars.array(), 0, Math.max(chars.position(), chars.limit()), '\0');
+		chars = chars.capacity() > MAX_RETAINED_SIZE ? CharBuffer.allocate(INITIAL_SIZE) : chars;
+		chars.clear().limit(0);
+	}
+
+	/**
+	 * Wipes the content of a byte buffer.
+	 *
+	 * @param buffer the buffer.
+	 * @return the wiped buffer, or a new one if it has grown too large.
+	 */
+	private static ByteBuffer wipe(ByteBuffer buffer) {
+		Arrays.fill(buffer.array(), 0, Math.max(buffer.position(), buffer.limit()), (byte) 0);
+		ByteBuffer wiped = buffer.capacity() > MAX_RETAINED_SIZE ? ByteBuffer.allocate(INITIAL_SIZE) : buffer;
+		// An empty limit marks the buffer as clean, so that it is not wiped again until it is used
+		wiped.clear().limit(0);
+		return wiped;
+	}
+
+	/**
+	 * Clears a byte buffer, growing it if needed.
+	 *
+	 * @param buffer the buffer.
+	 * @param length the minimum number of bytes that can be written.
+	 * @return the cleared buffer, or a new one if it was too small.
+	 */
+	private static ByteBuffer clear(ByteBuffer buffer, int length) {
+		if (buffer.capacity() < length) {
+			Arrays.fill(buffer.array(), (byte) 0);
+			return ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Clears a character buffer, growing it if needed.
+	 *
+	 * @param buffer the buffer.
+	 * @param length the minimum number of characters that can be written.
+	 * @return the cleared buffer, or a new one if it was too small.
+	 */
+	private static CharBuffer clear(CharBuffer buffer, int length) {
+		if (buffer.capacity() < length) {
+			Arrays.fill(buffer.array(), '\0');
+			return CharBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+		}
+		buffer.clear();
+		return buffer;
+	}
+}
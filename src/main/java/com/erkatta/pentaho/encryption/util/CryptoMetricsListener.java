@@ -0,0 +1,161 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+/**
+ * Receives the measurements of the password encoder and of the cryptographic utilities, to publish them to a
+ * monitoring system. All the methods do nothing by default, an implementation overrides the ones it needs. They are
+ * called on the hot paths by many threads at once, so they must be thread-safe and fast.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public interface CryptoMetricsListener {
+
+	/** The listener that ignores all the measurements. **/
+	CryptoMetricsListener NONE = new CryptoMetricsListener() {
+	};
+
+	/**
+	 * The formats of the decoded passwords.
+	 */
+	enum DecodeFormat {
+		/** Passwords encrypted by this plugin with the asymmetric algorithm. **/
+		STRONG,
+		/** Passwords envelope encrypted by this plugin. **/
+		ENVELOPE,
+		/** Passwords obfuscated by the default Kettle encoder. **/
+		KETTLE,
+		/** Passwords without prefix, passed through as they are. **/
+		PLAINTEXT,
+		/** Passwords decoded by the decryption agent. **/
+		AGENT
+	}
+
+	/**
+	 * Called when a password has been encoded.
+	 *
+	 * @param nanos the time spent in nanoseconds.
+	 */
+	default void onEncode(long nanos) {
+	}
+
+	/**
+	 * Called when a password has been decoded.
+	 *
+	 * @param format the format of the password.
+	 * @param nanos  the time spent in nanoseconds.
+	 */
+	default void onDecode(DecodeFormat format, long nanos) {
+	}
+
+	/**
+	 * Called when a password could not be decoded as expected and another decoder has been tried.
+	 */
+	default void onFallback() {
+	}
+
+	/**
+	 * Called when a password could not be encoded or decoded.
+	 */
+	default void onFailure() {
+	}
+
+	/**
+	 * Called when a key has been parsed from its Base64 form.
+	 *
+	 * @param nanos the time spent in nanoseconds.
+	 */
+	default void onKeyParsed(long nanos) {
+	}
+
+	/**
+	 * Called when a cipher has been made ready for an operation, including its initialization with the key.
+	 *
+	 * @param nanos the time spent in nanoseconds.
+	 */
+	default void onCipherAcquired(long nanos) {
+	}
+
+	/**
+	 * Called when an asymmetric operation has been completed.
+	 *
+	 * @param nanos the time spent in nanoseconds.
+	 */
+	default void onCipherOperation(long nanos) {
+	}
+
+	/**
+	 * Creates a listener that forwards every measurement to two listeners.
+	 *
+	 * @param first  the first listener.
+	 * @param second the second listener.
+	 * @return the combined listener.
+	 */
+	static CryptoMetricsListener combine(CryptoMetricsListener first, CryptoMetricsListener second) {
+		if (first == NONE) {
+			return second;
+		}
+		if (second == NONE) {
+			return first;
+		}
+		return new CryptoMetricsListener() {
+
+			@Override
+			public void onEncode(long nanos) {
+				first.onEncode(nanos);
+				second.onEncode(nanos);
+			}
+
+			@Override
+			public void onDecode(DecodeFormat format, long nanos) {
+				first.onDecode(format, nanos);
+				second.onDecode(format, nanos);
+			}
+
+			@Override
+			public void onFallback() {
+				first.onFallback();
+				second.onFallback();
+			}
+
+			@Override
+			public void onFailure() {
+				first.onFailure();
+				second.onFailure();
+			}
+
+			@Override
+			public void onKeyParsed(long nanos) {
+				first.onKeyParsed(nanos);
+				second.onKeyParsed(nanos);
+			}
+
+			@Override
+			public void onCipherAcquired(long nanos) {
+				first.onCipherAcquired(nanos);
+				second.onCipherAcquired(nanos);
+			}
+
+			@Override
+			public void onCipherOperation(long nanos) {
+				first.onCipherOperation(nanos);
+				second.onCipherOperation(nanos);
+			}
+		};
+	}
+}
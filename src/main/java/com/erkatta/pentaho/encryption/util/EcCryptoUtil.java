@@ -0,0 +1,439 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+
+/**
+ * The cryptographic utility class based on ECIES {@link https://en.wikipedia.org/wiki/Integrated_Encryption_Scheme}
+ * over the P-256 curve. Every value is encrypted with AES-GCM, using a key derived from the ECDH agreement between an
+ * ephemeral key pair and the recipient public key. The encrypted data is made of:
+ * <ul>
+ * <li>the uncompressed ephemeral public point (65 bytes);</li>
+ * <li>the AES-GCM initialization vector (12 bytes);</li>
+ * <li>the AES-GCM encrypted data, including the authentication tag.</li>
+ * </ul>
+ * Only the providers built in the JDK are used.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class EcCryptoUtil implements AsymmetricCryptoUtil {
+
+	/** The name of the curve. **/
+	private static final String CURVE = "secp256r1";
+	/** The size in bytes of a coordinate of a point of the curve. **/
+	private static final int COORDINATE_LENGTH = 32;
+	/** The size in bytes of an uncompressed point. **/
+	private static final int POINT_LENGTH = 1 + 2 * COORDINATE_LENGTH;
+	/** The first byte of an uncompressed point. **/
+	private static final byte UNCOMPRESSED_POINT = 4;
+	/** The transformation used to encrypt data with the derived key. **/
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	/** The size in bytes of the derived AES keys. **/
+	private static final int AES_KEY_LENGTH = 16;
+	/** The size in bytes of the initialization vectors. **/
+	private static final int IV_LENGTH = 12;
+	/** The size in bits of the authentication tags. **/
+	private static final int TAG_LENGTH = 128;
+
+	/** The key factory used to convert keys into key specifications. **/
+	private final KeyFactory ecKeyFactory;
+	/** The parameters of the curve. **/
+	private final ECParameterSpec curveParameters;
+
+	/** The source of the initialization vectors. **/
+	private final SecureRandom random = new SecureRandom();
+
+	/** The security provider of the key agreements, <code>null</code> for the default one. **/
+	private final Provider provider;
+
+	/** The cryptographic engines, one set for each thread, so that threads never wait for each other. **/
+	private final ThreadLocal<Engines> engines;
+
+	/** The cache of the already parsed public keys. **/
+	private final ParsedKeyCache<PublicKey> publicKeyCache = new ParsedKeyCache<>();
+	/** The cache of the already parsed private keys. **/
+	private final ParsedKeyCache<PrivateKey> privateKeyCache = new ParsedKeyCache<>();
+
+	/** The listener of the key parsing and cipher measurements. **/
+	private volatile CryptoMetricsListener metricsListener = CryptoMetricsListener.NONE;
+
+	/**
+	 * Instantiates a new EC crypto utility.
+	 */
+	public EcCryptoUtil() {
+		this(null);
+	}
+
+	/**
+	 * Instantiates a new EC crypto utility whose key agreements come from a specific security provider. The other
+	 * engines come from the default providers.
+	 *
+	 * @param provider the security provider of the key agreements, <code>null</code> for the default one.
+	 */
+	public EcCryptoUtil(Provider provider) {
+		this.provider = provider;
+		// Fails fast if the key agreement is not supported.
+		new Engines(provider);
+		engines = ThreadLocal.withInitial(() -> new Engines(provider));
+		try {
+			ecKeyFactory = KeyFactory.getInstance("EC");
+			AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+			parameters.init(new ECGenParameterSpec(CURVE));
+			curveParameters = parameters.getParameterSpec(ECParameterSpec.class);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot create a new instance of CryptoUtil.", e);
+		}
+	}
+
+	/**
+	 * Encrypts data.
+	 *
+	 * @param data      the data to encrypt as byte array.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the encrypted data as byte array.
+	 */
+	@Override
+	public byte[] encrypt(byte[] data, String publicKey) {
+		long start = System.nanoTime();
+		Engines engines = this.engines.get();
+		PublicKey recipientKey = getPublicKey(publicKey);
+		long acquired = System.nanoTime();
+		metricsListener.onCipherAcquired(acquired - start);
+		try {
+			KeyPair ephemeralKeyPair = engines.keyPairGenerator.generateKeyPair();
+			byte[] ephemeralPoint = encodePoint(((ECPublicKey) ephemeralKeyPair.getPublic()).getW());
+			SecretKeySpec key = deriveKey(engines, ephemeralKeyPair.getPrivate(), recipientKey, ephemeralPoint);
+			byte[] iv = new byte[IV_LENGTH];
+			random.nextBytes(iv);
+			engines.cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+			ByteBuffer output = ByteBuffer
+					.allocate(POINT_LENGTH + IV_LENGTH + engines.cipher.getOutputSize(data.length));
+			output.put(ephemeralPoint).put(iv);
+			engines.cipher.doFinal(ByteBuffer.wrap(data), output);
+			metricsListener.onCipherOperation(System.nanoTime() - acquired);
+			return output.array();
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot encrypt data.", e);
+		}
+	}
+
+	/**
+	 * Encrypts data.
+	 *
+	 * @param data      the data to encrypt as string.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the encrypted data as string.
+	 */
+	@Override
+	public String encrypt(String data, String publicKey) {
+		char[] chars = data.toCharArray();
+		try {
+			return encrypt(chars, publicKey);
+		} finally {
+			Arrays.fill(chars, '\0');
+		}
+	}
+
+	/**
+	 * Gets the maximum length of the encrypted form of data.
+	 *
+	 * @param length    the length in bytes of the data to encrypt.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the maximum length in bytes of the encrypted data.
+	 */
+	@Override
+	public int getMaxEncryptedLength(int length, String publicKey) {
+		return POINT_LENGTH + IV_LENGTH + length + TAG_LENGTH / 8;
+	}
+
+	/**
+	 * Decrypts data.
+	 *
+	 * @param data       the data to decrypt as byte array.
+	 * @param privateKey the private key to use to decode the data as Base64 encoded string.
+	 * @return the decrypted data as byte array.
+	 */
+	@Override
+	public byte[] decrypt(byte[] data, String privateKey) {
+		if (data.length < POINT_LENGTH + IV_LENGTH) {
+			throw new RuntimeException("Cannot decrypt data: truncated data.");
+		}
+		long start = System.nanoTime();
+		Engines engines = this.engines.get();
+		PrivateKey recipientKey = getPrivateKey(privateKey);
+		long acquired = System.nanoTime();
+		metricsListener.onCipherAcquired(acquired - start);
+		try {
+			byte[] ephemeralPoint = Arrays.copyOf(data, POINT_LENGTH);
+			PublicKey ephemeralKey = ecKeyFactory
+					.generatePublic(new ECPublicKeySpec(decodePoint(ephemeralPoint), curveParameters));
+			SecretKeySpec key = deriveKey(engines, recipientKey, ephemeralKey, ephemeralPoint);
+			engines.cipher.init(Cipher.DECRYPT_MODE, key,
+					new GCMParameterSpec(TAG_LENGTH, data, POINT_LENGTH, IV_LENGTH));
+			int offset = POINT_LENGTH + IV_LENGTH;
+			byte[] result = engines.cipher.doFinal(data, offset, data.length - offset);
+			metricsListener.onCipherOperation(System.nanoTime() - acquired);
+			return result;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot decrypt data.", e);
+		}
+	}
+
+	/**
+	 * Decrypts data.
+	 *
+	 * @param data       the data to decrypt as string.
+	 * @param privateKey the private key to use to decode the data as Base64 encoded string.
+	 * @return the decrypted data as string.
+	 */
+	@Override
+	public String decrypt(String data, String privateKey) {
+		return CryptoBuffers.toStringAndWipe(decryptToChars(data, 0, data.length(), privateKey));
+	}
+
+	/**
+	 * Generates a (public,private) key pair on the P-256 curve.
+	 *
+	 * @return a pair of Base64 encoded keys.
+	 */
+	@Override
+	public Base64EncodedKeyPair generateKeyPair() {
+		return new Base64EncodedKeyPair(engines.get().keyPairGenerator.generateKeyPair());
+	}
+
+	/**
+	 * Gets the security provider of the key agreements.
+	 *
+	 * @return the security provider of the key agreements, <code>null</code> for the default one.
+	 */
+	public Provider getProvider() {
+		return provider;
+	}
+
+	/**
+	 * Sets the listener of the key parsing and cipher measurements.
+	 *
+	 * @param metricsListener the listener.
+	 */
+	public void setMetricsListener(CryptoMetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	/**
+	 * Gets the cache of the already parsed public keys.
+	 *
+	 * @return the public keys cache.
+	 */
+	public ParsedKeyCache<PublicKey> getPublicKeyCache() {
+		return publicKeyCache;
+	}
+
+	/**
+	 * Gets the cache of the already parsed private keys.
+	 *
+	 * @return the private keys cache.
+	 */
+	public ParsedKeyCache<PrivateKey> getPrivateKeyCache() {
+		return privateKeyCache;
+	}
+
+	/**
+	 * Gets a {@link PublicKey} from its Base64 encoded form, parsing it only the first time it is used.
+	 *
+	 * @param base64PublicKey the public key encoded as Base64 string.
+	 * @return the public key as {@link PublicKey}.
+	 */
+	private PublicKey getPublicKey(String base64PublicKey) {
+		return publicKeyCache.get(base64PublicKey, key -> {
+			long start = System.nanoTime();
+			try {
+				return ecKeyFactory.generatePublic(
+						new X509EncodedKeySpec(Base64.getDecoder().decode(key.getBytes(StandardCharsets.UTF_8))));
+			} catch (InvalidKeySpecException e) {
+				throw new RuntimeException("Cannot generate the public key.", e);
+			} finally {
+				metricsListener.onKeyParsed(System.nanoTime() - start);
+			}
+		});
+	}
+
+	/**
+	 * Gets a {@link PrivateKey} from its Base64 encoded form, parsing it only the first time it is used.
+	 *
+	 * @param base64PrivateKey the private key encoded as Base64 string.
+	 * @return the private key as {@link PrivateKey}.
+	 */
+	private PrivateKey getPrivateKey(String base64PrivateKey) {
+		return privateKeyCache.get(base64PrivateKey, key -> {
+			long start = System.nanoTime();
+			try {
+				PrivateKey privateKey = ecKeyFactory.generatePrivate(
+						new PKCS8EncodedKeySpec(Base64.getDecoder().decode(key.getBytes(StandardCharsets.UTF_8))));
+				if (!(privateKey instanceof ECPrivateKey) || !((ECPrivateKey) privateKey).getParams().getCurve()
+						.equals(curveParameters.getCurve())) {
+					throw new InvalidKeySpecException("The private key is not on the " + CURVE + " curve.");
+				}
+				return privateKey;
+			} catch (InvalidKeySpecException e) {
+				throw new RuntimeException("Cannot generate the private key.", e);
+			} finally {
+				metricsListener.onKeyParsed(System.nanoTime() - start);
+			}
+		});
+	}
+
+	/**
+	 * Derives the AES key from the ECDH agreement, hashing the shared secret together with the ephemeral public point.
+	 *
+	 * @param engines        the cryptographic engines of the current thread.
+	 * @param privateKey     the private key of one party.
+	 * @param publicKey      the public key of the other party.
+	 * @param ephemeralPoint the encoded ephemeral public point.
+	 * @return the AES key.
+	 * @throws GeneralSecurityException if the key agreement fails.
+	 */
+	private static SecretKeySpec deriveKey(Engines engines, PrivateKey privateKey, PublicKey publicKey,
+			byte[] ephemeralPoint) throws GeneralSecurityException {
+		engines.keyAgreement.init(privateKey);
+		engines.keyAgreement.doPhase(publicKey, true);
+		byte[] sharedSecret = engines.keyAgreement.generateSecret();
+		engines.digest.update(sharedSecret);
+		engines.digest.update(ephemeralPoint);
+		byte[] digest = engines.digest.digest();
+		Arrays.fill(sharedSecret, (byte) 0);
+		SecretKeySpec key = new SecretKeySpec(digest, 0, AES_KEY_LENGTH, "AES");
+		Arrays.fill(digest, (byte) 0);
+		return key;
+	}
+
+	/**
+	 * Encodes a point in the uncompressed form.
+	 *
+	 * @param point the point.
+	 * @return the encoded point.
+	 */
+	private static byte[] encodePoint(ECPoint point) {
+		byte[] encoded = new byte[POINT_LENGTH];
+		encoded[0] = UNCOMPRESSED_POINT;
+		writeCoordinate(point.getAffineX(), encoded, 1);
+		writeCoordinate(point.getAffineY(), encoded, 1 + COORDINATE_LENGTH);
+		return encoded;
+	}
+
+	/**
+	 * Writes a coordinate as a fixed length unsigned big endian number.
+	 *
+	 * @param coordinate the coordinate.
+	 * @param output     the output array.
+	 * @param offset     the offset in the output array.
+	 */
+	private static void writeCoordinate(BigInteger coordinate, byte[] output, int offset) {
+		byte[] bytes = coordinate.toByteArray();
+		int length = Math.min(bytes.length, COORDINATE_LENGTH);
+		System.arraycopy(bytes, bytes.length - length, output, offset + COORDINATE_LENGTH - length, length);
+	}
+
+	/**
+	 * Decodes an uncompressed point, checking that it lies on the curve.
+	 *
+	 * @param encoded the encoded point.
+	 * @return the point.
+	 * @throws InvalidKeySpecException if the point is not valid.
+	 */
+	private ECPoint decodePoint(byte[] encoded) throws InvalidKeySpecException {
+		if (encoded[0] != UNCOMPRESSED_POINT) {
+			throw new InvalidKeySpecException("Unsupported point encoding.");
+		}
+		BigInteger x = new BigInteger(1, Arrays.copyOfRange(encoded, 1, 1 + COORDINATE_LENGTH));
+		BigInteger y = new BigInteger(1, Arrays.copyOfRange(encoded, 1 + COORDINATE_LENGTH, POINT_LENGTH));
+		EllipticCurve curve = curveParameters.getCurve();
+		BigInteger p = ((ECFieldFp) curve.getField()).getP();
+		if (x.compareTo(p) >= 0 || y.compareTo(p) >= 0
+				|| !y.multiply(y).subtract(x.pow(3).add(curve.getA().multiply(x)).add(curve.getB())).mod(p)
+						.equals(BigInteger.ZERO)) {
+			throw new InvalidKeySpecException("The point is not on the " + CURVE + " curve.");
+		}
+		return new ECPoint(x, y);
+	}
+
+	/**
+	 * The cryptographic engines owned by a single thread.
+	 */
+	private static final class Engines {
+
+		/** The generator of the ephemeral key pairs. **/
+		private final KeyPairGenerator keyPairGenerator;
+		/** The ECDH key agreement. **/
+		private final KeyAgreement keyAgreement;
+		/** The digest used to derive the AES keys. **/
+		private final MessageDigest digest;
+		/** The AES-GCM cipher. **/
+		private final Cipher cipher;
+
+		/**
+		 * Creates the engines.
+		 *
+		 * @param provider the security provider of the key agreement, <code>null</code> for the default one.
+		 */
+		private Engines(Provider provider) {
+			try {
+				keyPairGenerator = KeyPairGenerator.getInstance("EC");
+				keyPairGenerator.initialize(new ECGenParameterSpec(CURVE));
+				keyAgreement = provider == null ? KeyAgreement.getInstance("ECDH")
+						: KeyAgreement.getInstance("ECDH", provider);
+				digest = MessageDigest.getInstance("SHA-256");
+				cipher = Cipher.getInstance(TRANSFORMATION);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("Cannot create the cryptographic engines.", e);
+			}
+		}
+	}
+}
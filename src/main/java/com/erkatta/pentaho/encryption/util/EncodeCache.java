@@ -0,0 +1,202 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A bounded cache of the encrypted form of passwords, so that encoding an unchanged password again returns the same
+ * encrypted password instead of a new, randomized one. Entries are indexed by an HMAC of the password and of the
+ * identifier of the key pair that encrypted it, computed with a random key that never leaves the process: the
+ * passwords themselves are not kept, and an entry is never returned once the active key pair has changed. The least
+ * recently used entry is evicted when the cache is full. Passwords decrypted with the active key pair can be recorded
+ * as well, so that a password loaded from a file is saved again exactly as it was read.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class EncodeCache {
+
+	/** The algorithm of the keyed hash of the passwords. **/
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	/** The length in bytes of the key of the keyed hash. **/
+	private static final int MAC_KEY_LENGTH = 32;
+
+	/** The maximum number of encrypted passwords kept in the cache. **/
+	private final int maxEntries;
+	/** The key of the keyed hash, random for every cache. **/
+	private final SecretKeySpec macKey;
+	/** The keyed hash of every thread, since {@link Mac} is not thread safe. **/
+	private final ThreadLocal<Mac> macs;
+
+	/** The encrypted passwords in access order, indexed by the keyed hash of the password. **/
+	private final LinkedHashMap<ByteBuffer, String> entries;
+
+	/** The number of encodings that found the encrypted password. **/
+	private final LongAdder hits = new LongAdder();
+	/** The number of encodings that did not find the encrypted password. **/
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Creates a new {@link EncodeCache}.
+	 *
+	 * @param maxEntries the maximum number of encrypted passwords kept in the cache.
+	 */
+	public EncodeCache(int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("The cache size must be greater than zero.");
+		}
+		this.maxEntries = maxEntries;
+		byte[] key = new byte[MAC_KEY_LENGTH];
+		new SecureRandom().nextBytes(key);
+		this.macKey = new SecretKeySpec(key, MAC_ALGORITHM);
+		this.macs = ThreadLocal.withInitial(this::newMac);
+		this.entries = new LinkedHashMap<ByteBuffer, String>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, String> eldest) {
+				return size() > EncodeCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the encrypted form of a password, encrypting and caching it if it is not cached yet.
+	 *
+	 * @param password  the password in plain text.
+	 * @param keyId     the identifier of the active key pair.
+	 * @param encryptor the function that encrypts the password.
+	 * @return the encrypted password.
+	 */
+	public String get(String password, long keyId, Supplier<String> encryptor) {
+		ByteBuffer hash = hash(password, keyId);
+		String encrypted;
+		synchronized (entries) {
+			encrypted = entries.get(hash);
+		}
+		if (encrypted != null) {
+			hits.increment();
+			return encrypted;
+		}
+		misses.increment();
+		encrypted = encryptor.get();
+		synchronized (entries) {
+			// Another thread may have encrypted the same password meanwhile: keep a single encrypted form
+			String previous = entries.putIfAbsent(hash, encrypted);
+			return previous != null ? previous : encrypted;
+		}
+	}
+
+	/**
+	 * Records the encrypted form of a password, replacing the cached one if any, so that encoding the password again
+	 * returns it.
+	 *
+	 * @param password  the password in plain text.
+	 * @param keyId     the identifier of the key pair that encrypted the password.
+	 * @param encrypted the encrypted password.
+	 */
+	public void put(String password, long keyId, String encrypted) {
+		ByteBuffer hash = hash(password, keyId);
+		synchronized (entries) {
+			entries.put(hash, encrypted);
+		}
+	}
+
+	/**
+	 * Removes all the encrypted passwords.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Gets the number of cached encrypted passwords.
+	 *
+	 * @return the number of cached encrypted passwords.
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Gets the number of encodings that found the encrypted password.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Gets the number of encodings that did not find the encrypted password.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Computes the keyed hash of a password and of a key pair identifier.
+	 *
+	 * @param password the password in plain text.
+	 * @param keyId    the identifier of the key pair.
+	 * @return the keyed hash.
+	 */
+	private ByteBuffer hash(String password, long keyId) {
+		Mac mac = macs.get();
+		mac.update(ByteBuffer.allocate(Long.BYTES).putLong(0, keyId));
+		byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+		try {
+			return ByteBuffer.wrap(mac.doFinal(bytes));
+		} finally {
+			Arrays.fill(bytes, (byte) 0);
+		}
+	}
+
+	/**
+	 * Creates the keyed hash of a thread.
+	 *
+	 * @return the keyed hash.
+	 */
+	private Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(macKey);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot create the keyed hash of the encode cache.", e);
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+
+/**
+ * A cryptographic utility that implements envelope encryption: data is encrypted with a random AES-GCM data key, and
+ * the data key is wrapped with an asymmetric key by another {@link AsymmetricCryptoUtil}. This removes the size limit
+ * of the asymmetric algorithms and, since the same data key is used for many values and unwrapped data keys are
+ * cached, most of the values are encrypted and decrypted at AES speed.
+ * <p>
+ * The encrypted data is made of:
+ * <ul>
+ * <li>the format version (1 byte);</li>
+ * <li>the length of the wrapped data key (2 bytes);</li>
+ * <li>the wrapped data key;</li>
+ * <li>the AES-GCM initialization vector (12 bytes);</li>
+ * <li>the AES-GCM encrypted data, including the authentication tag.</li>
+ * </ul>
+ * The version and the wrapped data key are authenticated as additional data.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class EnvelopeCryptoUtil implements AsymmetricCryptoUtil {
+
+	/** The version of the envelope format. **/
+	public static final byte VERSION = 1;
+
+	/** The transformation used to encrypt data with the data key. **/
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	/** The size in bits of the data keys. **/
+	private static final int DATA_KEY_SIZE = 128;
+	/** The size in bytes of the initialization vectors. **/
+	private static final int IV_LENGTH = 12;
+	/** The size in bits of the authentication tags. **/
+	private static final int TAG_LENGTH = 128;
+	/** The number of values encrypted with the same data key before a new one is generated. **/
+	private static final long MAX_DATA_KEY_USAGES = 1L << 24;
+	/** The maximum number of data keys kept in each cache, caches are cleared when this limit is exceeded. **/
+	private static final int MAX_CACHED_DATA_KEYS = 256;
+
+	/** The utility used to wrap and unwrap the data keys. **/
+	private final AsymmetricCryptoUtil keyWrapper;
+
+	/** The source of the data keys and of the initialization vectors. **/
+	private final SecureRandom random = new SecureRandom();
+
+	/** The AES ciphers, one for each thread. **/
+	private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(EnvelopeCryptoUtil::newCipher);
+
+	/** The data keys used to encrypt, indexed by the public key that wraps them. **/
+	private final ConcurrentMap<String, DataKey> encryptionKeys = new ConcurrentHashMap<>();
+	/** The already unwrapped data keys, indexed by their wrapped form and by the private key that unwrapped them. **/
+	private final ConcurrentMap<WrappedKey, SecretKey> decryptionKeys = new ConcurrentHashMap<>();
+
+	/** The number of decryptions that found the data key already unwrapped. **/
+	private final LongAdder dataKeyHits = new LongAdder();
+	/** The number of decryptions that had to unwrap the data key. **/
+	private final LongAdder dataKeyMisses = new LongAdder();
+
+	/**
+	 * Instantiates a new envelope crypto utility.
+	 *
+	 * @param keyWrapper the utility used to wrap and unwrap the data keys.
+	 */
+	public EnvelopeCryptoUtil(AsymmetricCryptoUtil keyWrapper) {
+		this.keyWrapper = keyWrapper;
+	}
+
+	/**
+	 * Encrypts data.
+	 *
+	 * @param data      the data to encrypt as byte array.
+	 * @param publicKey the public key used to wrap the data key as Base64 encoded string.
+	 * @return the encrypted data as byte array.
+	 */
+	@Override
+	public byte[] encrypt(byte[] data, String publicKey) {
+		ByteBuffer output = ByteBuffer.allocate(getMaxEncryptedLength(data.length, publicKey));
+		int length = encrypt(ByteBuffer.wrap(data), output, publicKey);
+		return length == output.capacity() ? output.array() : Arrays.copyOf(output.array(), length);
+	}
+
+	/**
+	 * Encrypts the remaining bytes of a buffer into another buffer.
+	 *
+	 * @param data      the data to encrypt, which is consumed.
+	 * @param output    the buffer that receives the encrypted data at its position.
+	 * @param publicKey the public key used to wrap the data key as Base64 encoded string.
+	 * @return the number of bytes written to the output buffer.
+	 */
+	@Override
+	public int encrypt(ByteBuffer data, ByteBuffer output, String publicKey) {
+		DataKey dataKey = getEncryptionKey(publicKey);
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		try {
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.ENCRYPT_MODE, dataKey.key, new GCMParameterSpec(TAG_LENGTH, iv));
+			cipher.updateAAD(dataKey.header);
+			output.put(dataKey.header).put(iv);
+			return dataKey.header.length + IV_LENGTH + cipher.doFinal(data, output);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot encrypt data.", e);
+		}
+	}
+
+	/**
+	 * Gets the maximum length of the encrypted form of data.
+	 *
+	 * @param length    the length in bytes of the data to encrypt.
+	 * @param publicKey the public key used to wrap the data key as Base64 encoded string.
+	 * @return the maximum length in bytes of the encrypted data.
+	 */
+	@Override
+	public int getMaxEncryptedLength(int length, String publicKey) {
+		return 3 + keyWrapper.getMaxEncryptedLength(DATA_KEY_SIZE / 8, publicKey) + IV_LENGTH + length
+				+ TAG_LENGTH / 8;
+	}
+
+	/**
+	 * Encrypts data.
+	 *
+	 * @param data      the data to encrypt as string.
+	 * @param publicKey the public key used to wrap the data key as Base64 encoded string.
+	 * @return the encrypted data as string.
+	 */
+	@Override
+	public String encrypt(String data, String publicKey) {
+		char[] chars = data.toCharArray();
+		try {
+			return encrypt(chars, publicKey);
+		} finally {
+			Arrays.fill(chars, '\0');
+		}
+	}
+
+	/**
+	 * Decrypts data.
+	 *
+	 * @param data       the data to decrypt as byte array.
+	 * @param privateKey the private key used to unwrap the data key as Base64 encoded string.
+	 * @return the decrypted data as byte array.
+	 */
+	@Override
+	public byte[] decrypt(byte[] data, String privateKey) {
+		ByteBuffer output = ByteBuffer.allocate(data.length);
+		int length = decrypt(ByteBuffer.wrap(data), output, privateKey);
+		return Arrays.copyOf(output.array(), length);
+	}
+
+	/**
+	 * Decrypts the remaining bytes of a buffer into another buffer.
+	 *
+	 * @param data       the data to decrypt, which is consumed.
+	 * @param output     the buffer that receives the decrypted data at its position.
+	 * @param privateKey the private key used to unwrap the data key as Base64 encoded string.
+	 * @return the number of bytes written to the output buffer.
+	 */
+	@Override
+	public int decrypt(ByteBuffer data, ByteBuffer output, String privateKey) {
+		ByteBuffer header = data.duplicate();
+		if (data.remaining() < 3 || data.get() != VERSION) {
+			throw new RuntimeException("Cannot decrypt data: unsupported envelope format.");
+		}
+		int wrappedKeyLength = data.getShort() & 0xFFFF;
+		if (data.remaining() < wrappedKeyLength + IV_LENGTH) {
+			throw new RuntimeException("Cannot decrypt data: truncated envelope.");
+		}
+		ByteBuffer wrappedKey = data.slice();
+		wrappedKey.limit(wrappedKeyLength);
+		SecretKey dataKey = getDecryptionKey(wrappedKey, privateKey);
+		data.position(data.position() + wrappedKeyLength);
+		header.limit(data.position());
+		byte[] iv = new byte[IV_LENGTH];
+		data.get(iv);
+		try {
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(TAG_LENGTH, iv));
+			cipher.updateAAD(header);
+			return cipher.doFinal(data, output);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot decrypt data.", e);
+		}
+	}
+
+	/**
+	 * Decrypts data.
+	 *
+	 * @param data       the data to decrypt as string.
+	 * @param privateKey the private key used to unwrap the data key as Base64 encoded string.
+	 * @return the decrypted data as string.
+	 */
+	@Override
+	public String decrypt(String data, String privateKey) {
+		return CryptoBuffers.toStringAndWipe(decryptToChars(data, 0, data.length(), privateKey));
+	}
+
+	/**
+	 * Generates a (public,private) key pair using the key wrapping utility.
+	 *
+	 * @return a pair of Base64 encoded keys.
+	 */
+	@Override
+	public Base64EncodedKeyPair generateKeyPair() {
+		return keyWrapper.generateKeyPair();
+	}
+
+	/**
+	 * Forgets all the data keys, new values will be encrypted with new data keys.
+	 */
+	@Override
+	public void clear() {
+		encryptionKeys.clear();
+		decryptionKeys.clear();
+	}
+
+	/**
+	 * Gets the number of decryptions that found the data key already unwrapped.
+	 *
+	 * @return the number of data key cache hits.
+	 */
+	public long getDataKeyHitCount() {
+		return dataKeyHits.sum();
+	}
+
+	/**
+	 * Gets the number of decryptions that had to unwrap the data key.
+	 *
+	 * @return the number of data key cache misses.
+	 */
+	public long getDataKeyMissCount() {
+		return dataKeyMisses.sum();
+	}
+
+	/**
+	 * Gets the data key used to encrypt new values, generating a new one if needed.
+	 *
+	 * @param publicKey the public key used to wrap the data key as Base64 encoded string.
+	 * @return the data key.
+	 */
+	private DataKey getEncryptionKey(String publicKey) {
+		DataKey dataKey = encryptionKeys.get(publicKey);
+		if (dataKey == null || dataKey.usages.incrementAndGet() > MAX_DATA_KEY_USAGES) {
+			if (encryptionKeys.size() >= MAX_CACHED_DATA_KEYS) {
+				encryptionKeys.clear();
+			}
+			DataKey newDataKey = newDataKey(publicKey);
+			newDataKey.usages.incrementAndGet();
+			// Another thread may have replaced the key in the meantime, both keys are valid.
+			encryptionKeys.put(publicKey, newDataKey);
+			dataKey = newDataKey;
+		}
+		return dataKey;
+	}
+
+	/**
+	 * Gets an unwrapped data key, unwrapping it only if it is not already cached.
+	 *
+	 * @param wrappedKey the wrapped data key.
+	 * @param privateKey the private key used to unwrap the data key as Base64 encoded string.
+	 * @return the data key.
+	 */
+	private SecretKey getDecryptionKey(ByteBuffer wrappedKey, String privateKey) {
+		// A data key is reused only with the private key that has unwrapped it, any other one must fail as usual
+		SecretKey dataKey = decryptionKeys.get(new WrappedKey(wrappedKey, privateKey));
+		if (dataKey != null) {
+			dataKeyHits.increment();
+			return dataKey;
+		}
+		dataKeyMisses.increment();
+		byte[] wrappedKeyBytes = new byte[wrappedKey.remaining()];
+		wrappedKey.duplicate().get(wrappedKeyBytes);
+		dataKey = new SecretKeySpec(keyWrapper.decrypt(wrappedKeyBytes, privateKey), "AES");
+		if (decryptionKeys.size() >= MAX_CACHED_DATA_KEYS) {
+			decryptionKeys.clear();
+		}
+		decryptionKeys.put(new WrappedKey(ByteBuffer.wrap(wrappedKeyBytes), privateKey), dataKey);
+		return dataKey;
+	}
+
+	/**
+	 * Generates a new data key and wraps it.
+	 *
+	 * @param publicKey the public key used to wrap the data key as Base64 encoded string.
+	 * @return the new data key.
+	 */
+	private DataKey newDataKey(String publicKey) {
+		try {
+			KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+			keyGenerator.init(DATA_KEY_SIZE, random);
+			SecretKey key = keyGenerator.generateKey();
+			byte[] wrappedKey = keyWrapper.encrypt(key.getEncoded(), publicKey);
+			byte[] header = ByteBuffer.allocate(3 + wrappedKey.length).put(VERSION)
+					.putShort((short) wrappedKey.length).put(wrappedKey).array();
+			return new DataKey(key, header);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot generate a data key.", e);
+		}
+	}
+
+	/**
+	 * Creates a new AES cipher.
+	 *
+	 * @return the new cipher.
+	 */
+	private static Cipher newCipher() {
+		try {
+			return Cipher.getInstance(TRANSFORMATION);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot create a new cipher.", e);
+		}
+	}
+
+	/**
+	 * A data key used to encrypt new values.
+	 */
+	private static final class DataKey {
+
+		/** The data key. **/
+		private final SecretKey key;
+		/** The envelope header, made of the format version and the wrapped data key. **/
+		private final byte[] header;
+		/** The number of values encrypted with this data key. **/
+		private final AtomicLong usages = new AtomicLong();
+
+		/**
+		 * Creates a new data key.
+		 *
+		 * @param key    the data key.
+		 * @param header the envelope header.
+		 */
+		private DataKey(SecretKey key, byte[] header) {
+			this.key = key;
+			this.header = header;
+		}
+	}
+
+	/**
+	 * A wrapped data key together with the private key that unwraps it, the index of the unwrapped data keys.
+	 */
+	private static final class WrappedKey {
+
+		/** The wrapped data key. **/
+		private final ByteBuffer wrappedKey;
+		/** The private key that unwraps the data key as Base64 encoded string. **/
+		private final String privateKey;
+
+		/**
+		 * Creates a new index of an unwrapped data key.
+		 *
+		 * @param wrappedKey the wrapped data key.
+		 * @param privateKey the private key that unwraps the data key as Base64 encoded string.
+		 */
+		private WrappedKey(ByteBuffer wrappedKey, String privateKey) {
+			this.wrappedKey = wrappedKey;
+			this.privateKey = privateKey;
+		}
+
+		/**
+		 * Returns the hash code of the {@link WrappedKey}.
+		 *
+		 * @return the hash code of the wrapped data key and of the private key.
+		 */
+		@Override
+		public int hashCode() {
+			return 31 * wrappedKey.hashCode() + privateKey.hashCode();
+		}
+
+		/**
+		 * Checks whether another object is the same wrapped data key unwrapped with the same private key.
+		 *
+		 * @param obj the other object.
+		 * @return <code>true</code> if both the wrapped data keys and the private keys are equal.
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof WrappedKey)) {
+				return false;
+			}
+			WrappedKey other = (WrappedKey) obj;
+			return wrappedKey.equals(other.wrappedKey) && privateKey.equals(other.privateKey);
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A cryptographic utility that encrypts and decrypts files of any size with a constant amount of memory. A file is
+ * encrypted with a random AES-GCM data key, wrapped with an asymmetric key as in {@link EnvelopeCryptoUtil}, and is
+ * split into chunks that are authenticated independently, so that they are read, encrypted and written in parallel
+ * through positional {@link FileChannel} operations.
+ * <p>
+ * The encrypted file is made of:
+ * <ul>
+ * <li>a {@link CiphertextHeader} in envelope mode;</li>
+ * <li>the size in bytes of the plain chunks (4 bytes);</li>
+ * <li>the length of the wrapped data key (2 bytes);</li>
+ * <li>the wrapped data key;</li>
+ * <li>the chunks, each one made of the AES-GCM encrypted data followed by the authentication tag. All the chunks
+ * but the last one hold the same amount of data, the last one can be empty.</li>
+ * </ul>
+ * The initialization vector of a chunk is its index, which is safe since every file has its own data key. The whole
+ * file header and a flag marking the last chunk are authenticated as additional data of every chunk, so that a
+ * chunk cannot be moved, dropped or appended without the decryption failing.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class FileCryptoUtil {
+
+	/** The default size in bytes of the plain chunks. **/
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+	/** The maximum size in bytes of the plain chunks, which bounds the memory used by a decryption. **/
+	public static final int MAX_CHUNK_SIZE = 1 << 26;
+
+	/** The transformation used to encrypt the chunks. **/
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	/** The size in bits of the data keys. **/
+	private static final int DATA_KEY_SIZE = 128;
+	/** The size in bytes of the initialization vectors. **/
+	private static final int IV_LENGTH = 12;
+	/** The size in bytes of the authentication tags. **/
+	private static final int TAG_LENGTH = 16;
+	/** The additional data flag of all the chunks but the last one. **/
+	private static final byte NOT_LAST_CHUNK = 0;
+	/** The additional data flag of the last chunk. **/
+	private static final byte LAST_CHUNK = 1;
+
+	/** The size in bytes of the plain chunks. **/
+	private final int chunkSize;
+	/** The number of chunks processed in parallel. **/
+	private final int parallelism;
+
+	/** The source of the data keys. **/
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Creates a new {@link FileCryptoUtil}. The memory used by an encryption or a decryption is about
+	 * <code>2 * chunkSize * parallelism</code> bytes, whatever the size of the file.
+	 *
+	 * @param chunkSize   the size in bytes of the plain chunks.
+	 * @param parallelism the number of chunks processed in parallel.
+	 */
+	public FileCryptoUtil(int chunkSize, int parallelism) {
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException("The chunk size must be between 1 and " + MAX_CHUNK_SIZE + " bytes.");
+		}
+		this.chunkSize = chunkSize;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Encrypts a file.
+	 *
+	 * @param source     the file to encrypt.
+	 * @param target     the encrypted file, replaced if it exists.
+	 * @param header     the header that identifies the algorithm and the key pair that wrap the data key.
+	 * @param keyWrapper the utility used to wrap the data key.
+	 * @param publicKey  the public key used to wrap the data key as Base64 encoded string.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	public void encrypt(Path source, Path target, CiphertextHeader header, AsymmetricCryptoUtil keyWrapper,
+			String publicKey) throws IOException {
+		SecretKey dataKey = newDataKey();
+		byte[] wrappedKey = keyWrapper.encrypt(dataKey.getEncoded(), publicKey);
+		byte[] fileHeader = ByteBuffer.allocate(CiphertextHeader.LENGTH + 6 + wrappedKey.length)
+				.put(header.wrap(new byte[0])).putInt(chunkSize).putShort((short) wrappedKey.length).put(wrappedKey)
+				.array();
+		try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ)) {
+			try (FileChannel output = openTarget(target)) {
+				writeFully(output, ByteBuffer.wrap(fileHeader), 0L);
+				long size = input.size();
+				long chunks = size == 0 ? 1 : (size + chunkSize - 1) / chunkSize;
+				process(chunks, () -> new ChunkWorker(Cipher.ENCRYPT_MODE, dataKey, fileHeader, chunkSize) {
+					@Override
+					void process(long index) throws IOException, GeneralSecurityException {
+						long position = index * chunkSize;
+						int length = (int) Math.min(chunkSize, size - position);
+						readFully(input, plain, position, length);
+						transform(index, index == chunks - 1, plain, encrypted);
+						writeFully(output, encrypted, fileHeader.length + index * (chunkSize + TAG_LENGTH));
+					}
+				});
+			} catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(target);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Decrypts a file.
+	 *
+	 * @param source       the file to decrypt.
+	 * @param target       the decrypted file, replaced if it exists; it is deleted if the decryption fails.
+	 * @param keyUnwrapper the function that unwraps the data key, given the header and the wrapped data key.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	public void decrypt(Path source, Path target, BiFunction<CiphertextHeader, byte[], byte[]> keyUnwrapper)
+			throws IOException {
+		try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ)) {
+			try (FileChannel output = openTarget(target)) {
+				decrypt(input, output, keyUnwrapper);
+			} catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(target);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Decrypts a file.
+	 *
+	 * @param input        the file to decrypt.
+	 * @param output       the decrypted file.
+	 * @param keyUnwrapper the function that unwraps the data key, given the header and the wrapped data key.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	private void decrypt(FileChannel input, FileChannel output,
+			BiFunction<CiphertextHeader, byte[], byte[]> keyUnwrapper) throws IOException {
+		ByteBuffer prefix = ByteBuffer.allocate(CiphertextHeader.LENGTH + 6);
+		readFully(input, prefix, 0L, prefix.capacity());
+		CiphertextHeader header = CiphertextHeader.parse(prefix.array());
+		int fileChunkSize = prefix.getInt(CiphertextHeader.LENGTH);
+		int wrappedKeyLength = prefix.getShort(CiphertextHeader.LENGTH + 4) & 0xFFFF;
+		if (header.getLength() != CiphertextHeader.LENGTH || fileChunkSize <= 0 || fileChunkSize > MAX_CHUNK_SIZE) {
+			throw new RuntimeException("Cannot decrypt file: unsupported file header.");
+		}
+		ByteBuffer fileHeader = ByteBuffer.allocate(prefix.capacity() + wrappedKeyLength).put(prefix.array());
+		readFully(input, fileHeader, prefix.capacity(), wrappedKeyLength);
+		byte[] wrappedKey = new byte[wrappedKeyLength];
+		System.arraycopy(fileHeader.array(), prefix.capacity(), wrappedKey, 0, wrappedKeyLength);
+		SecretKey dataKey = new SecretKeySpec(keyUnwrapper.apply(header, wrappedKey), "AES");
+
+		long payload = input.size() - fileHeader.capacity();
+		long encryptedChunkSize = (long) fileChunkSize + TAG_LENGTH;
+		long chunks = (payload + encryptedChunkSize - 1) / encryptedChunkSize;
+		if (payload < TAG_LENGTH || payload - (chunks - 1) * encryptedChunkSize < TAG_LENGTH) {
+			throw new RuntimeException("Cannot decrypt file: truncated file.");
+		}
+		process(chunks, () -> new ChunkWorker(Cipher.DECRYPT_MODE, dataKey, fileHeader.array(), fileChunkSize) {
+			@Override
+			void process(long index) throws IOException, GeneralSecurityException {
+				long position = index * encryptedChunkSize;
+				int length = (int) Math.min(encryptedChunkSize, payload - position);
+				readFully(input, encrypted, fileHeader.capacity() + position, length);
+				transform(index, index == chunks - 1, encrypted, plain);
+				writeFully(output, plain, index * fileChunkSize);
+			}
+		});
+	}
+
+	/**
+	 * Opens the file that receives the result, replacing it if it exists.
+	 *
+	 * @param target the file.
+	 * @return the open file.
+	 * @throws IOException if the file cannot be opened.
+	 */
+	private static FileChannel openTarget(Path target) throws IOException {
+		return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Processes all the chunks of a file, each worker taking the next unprocessed chunk until there are no more.
+	 *
+	 * @param chunks        the number of chunks.
+	 * @param workerFactory the factory of the workers, one for each thread.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	private void process(long chunks, WorkerFactory workerFactory) throws IOException {
+		int threads = (int) Math.min(parallelism, chunks);
+		AtomicLong nextChunk = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<>(threads);
+			for (int i = 0; i < threads; i++) {
+				futures.add(executor.submit(() -> {
+					ChunkWorker worker = workerFactory.newWorker();
+					for (long index = nextChunk.getAndIncrement(); index < chunks; index = nextChunk
+							.getAndIncrement()) {
+						worker.process(index);
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Cannot process file: interrupted.", e);
+		} catch (ExecutionException e) {
+			nextChunk.set(chunks);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException("Cannot process file.", cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Generates a new data key.
+	 *
+	 * @return the new data key.
+	 */
+	private SecretKey newDataKey() {
+		try {
+			KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+			keyGenerator.init(DATA_KEY_SIZE, random);
+			return keyGenerator.generateKey();
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot generate a data key.", e);
+		}
+	}
+
+	/**
+	 * Reads bytes from a file into a buffer, which is then ready to be read.
+	 *
+	 * @param channel  the file.
+	 * @param buffer   the buffer.
+	 * @param position the position in the file of the first byte.
+	 * @param length   the number of bytes.
+	 * @throws IOException if the file cannot be read or is too short.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+			throws IOException {
+		int start = buffer.position();
+		buffer.limit(start + length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - start) < 0) {
+				throw new EOFException("Cannot read the file: unexpected end of file.");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Writes all the remaining bytes of a buffer to a file.
+	 *
+	 * @param channel  the file.
+	 * @param buffer   the buffer.
+	 * @param position the position in the file of the first byte.
+	 * @throws IOException if the file cannot be written.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long offset = position - buffer.position();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, offset + buffer.position());
+		}
+	}
+
+	/**
+	 * A factory of chunk workers.
+	 */
+	@FunctionalInterface
+	private interface WorkerFactory {
+
+		/**
+		 * Creates a new worker.
+		 *
+		 * @return the new worker.
+		 */
+		ChunkWorker newWorker();
+	}
+
+	/**
+	 * Processes chunks on a single thread, reusing its cipher and its buffers.
+	 */
+	private abstract static class ChunkWorker {
+
+		/** The cipher of this worker. **/
+		private final Cipher cipher;
+		/** The cipher mode. **/
+		private final int mode;
+		/** The data key. **/
+		private final SecretKey dataKey;
+		/** The file header, authenticated as additional data. **/
+		private final byte[] fileHeader;
+		/** The initialization vector, whose last 8 bytes are the chunk index. **/
+		private final byte[] iv = new byte[IV_LENGTH];
+		/** The buffer holding a plain chunk. **/
+		protected final ByteBuffer plain;
+		/** The buffer holding an encrypted chunk. **/
+		protected final ByteBuffer encrypted;
+
+		/**
+		 * Creates a new worker.
+		 *
+		 * @param mode       the cipher mode.
+		 * @param dataKey    the data key.
+		 * @param fileHeader the file header.
+		 * @param chunkSize  the size in bytes of the plain chunks.
+		 */
+		ChunkWorker(int mode, SecretKey dataKey, byte[] fileHeader, int chunkSize) {
+			try {
+				this.cipher = Cipher.getInstance(TRANSFORMATION);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("Cannot create a new cipher.", e);
+			}
+			this.mode = mode;
+			this.dataKey = dataKey;
+			this.fileHeader = fileHeader;
+			this.plain = ByteBuffer.allocateDirect(chunkSize);
+			this.encrypted = ByteBuffer.allocateDirect(chunkSize + TAG_LENGTH);
+		}
+
+		/**
+		 * Processes a chunk.
+		 *
+		 * @param index the index of the chunk.
+		 * @throws IOException              if the file cannot be read or written.
+		 * @throws GeneralSecurityException if the chunk cannot be encrypted or decrypted.
+		 */
+		abstract void process(long index) throws IOException, GeneralSecurityException;
+
+		/**
+		 * Encrypts or decrypts a chunk.
+		 *
+		 * @param index  the index of the chunk.
+		 * @param last   whether this is the last chunk.
+		 * @param input  the chunk to encrypt or decrypt, ready to be read; it is cleared.
+		 * @param output the buffer that receives the result, which is then ready to be read.
+		 * @throws GeneralSecurityException if the chunk cannot be encrypted or decrypted, e.g. because it has been
+		 *                                  tampered with.
+		 */
+		void transform(long index, boolean last, ByteBuffer input, ByteBuffer output)
+				throws GeneralSecurityException {
+			ByteBuffer.wrap(iv).putLong(IV_LENGTH - 8, index);
+			cipher.init(mode, dataKey, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+			cipher.updateAAD(fileHeader);
+			cipher.updateAAD(new byte[] { last ? LAST_CHUNK : NOT_LAST_CHUNK });
+			output.clear();
+			try {
+				cipher.doFinal(input, output);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("Cannot " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt")
+						+ " chunk " + index + " of the file.", e);
+			}
+			input.clear();
+			output.flip();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches key files and runs a task on a background daemon thread when they change. Changes are coalesced: the task
+ * runs once no further change has been seen for a quiet period, so that a key pair replaced file by file is reloaded
+ * once, after both files have been written.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class KeyFileWatcher implements Closeable {
+
+	/** The watch service notified of the changes in the watched directories. **/
+	private final WatchService watchService;
+	/** The names of the watched files in each directory, an empty set means any file in the directory. **/
+	private final Map<Path, Set<Path>> watchedFiles = new HashMap<>();
+	/** The time, in milliseconds, without changes after which the task runs. **/
+	private final long quietPeriodMillis;
+	/** The task run when the watched files change. **/
+	private final Runnable onChange;
+	/** The thread that waits for the changes. **/
+	private final Thread thread;
+
+	/**
+	 * Creates a new {@link KeyFileWatcher} and starts watching.
+	 *
+	 * @param paths             the watched files and directories; a change of any file in a directory is reported.
+	 * @param quietPeriodMillis the time, in milliseconds, without changes after which the task runs.
+	 * @param onChange          the task run when the watched files change; it should handle its own errors.
+	 * @throws IOException if a directory cannot be watched.
+	 */
+	public KeyFileWatcher(Collection<Path> paths, long quietPeriodMillis, Runnable onChange) throws IOException {
+		this.quietPeriodMillis = quietPeriodMillis;
+		this.onChange = onChange;
+		this.watchService = paths.iterator().next().getFileSystem().newWatchService();
+		try {
+			for (Path path : paths) {
+				Path absolutePath = path.toAbsolutePath().normalize();
+				boolean directory = Files.isDirectory(absolutePath);
+				Path parent = directory ? absolutePath : absolutePath.getParent();
+				Set<Path> files = watchedFiles.get(parent);
+				if (files == null) {
+					parent.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+					files = new HashSet<>();
+					watchedFiles.put(parent, files);
+				}
+				if (directory) {
+					files.clear();
+					files.add(null);
+				} else if (!files.contains(null)) {
+					files.add(absolutePath.getFileName());
+				}
+			}
+		} catch (IOException e) {
+			watchService.close();
+			throw e;
+		}
+		thread = new Thread(this::run, "StrongPasswordEncoder key watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits for the changes and runs the task, until the watcher is closed.
+	 */
+	private void run() {
+		try {
+			while (true) {
+				boolean changed = handle(watchService.take());
+				while (changed) {
+					WatchKey key = watchService.poll(quietPeriodMillis, TimeUnit.MILLISECONDS);
+					if (key == null) {
+						onChange.run();
+						changed = false;
+					} else {
+						handle(key);
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// The watcher has been closed
+		}
+	}
+
+	/**
+	 * Consumes the events of a watch key.
+	 *
+	 * @param key the signalled watch key.
+	 * @return <code>true</code> if one of the watched files has changed.
+	 */
+	private boolean handle(WatchKey key) {
+		Set<Path> files = watchedFiles.get((Path) key.watchable());
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || files == null || files.contains(null)
+					|| files.contains(event.context());
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Stops watching the files.
+	 *
+	 * @throws IOException if the watch service cannot be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+		thread.interrupt();
+	}
+}
@@ -17,10 +17,14 @@ package com.erkatta.pentaho.encryption.util;
  */
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
 
 import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
 
@@ -32,16 +36,113 @@ import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
  */
 public class KeyPairGenerator {
 
+	/** The name of the files of the key pairs, when more than one is generated. **/
+	private static final String KEY_PAIR_NAME = "key-%03d";
+
+	/**
+	 * Generates key pairs, in parallel when more than one is requested. A single
+	 * key pair is written to the public.key and private.key files; many key pairs
+	 * to numbered files named as the retired keys of a {@link KeyRing}
+	 * (key-001.public.key, key-001.private.key and so on). The AES algorithm
+	 * generates instead the master key of the SymmetricPasswordEncoder into the
+	 * master.key file.
+	 * 
+	 * @param args the optional algorithm of the key pairs, RSA (default), EC or
+	 *             AES; the optional key size in bits, 0 for the default; the
+	 *             optional number of key pairs, 1 by default; the optional
+	 *             output directory, the current one by default.
+	 */
 	public static void main(String args[]) {
-		Base64EncodedKeyPair keyPair = new RsaCryptoUtil().generateKeyPair();
+		String algorithm = args.length > 0 ? args[0] : "RSA";
+		int keySize = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		int count = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		Path directory = Paths.get(args.length > 3 ? args[3] : ".");
 		try {
-			KeyPairGenerator.writeToFile("./public.key", keyPair.getPublicKey());
-			KeyPairGenerator.writeToFile("./private.key", keyPair.getPrivateKey());
+			generateToFiles(algorithm, keySize, count, directory);
 		} catch (IOException e) {
 			throw new RuntimeException("Cannot generate keys.", e);
 		}
 	}
 
+	/**
+	 * Generates a key pair.
+	 * 
+	 * @param algorithm the algorithm of the key pair, RSA or EC.
+	 * @param keySize   the key size in bits, 0 for the default one; EC keys are
+	 *                  always 256 bits long.
+	 * @return the key pair.
+	 */
+	public static Base64EncodedKeyPair generateKeyPair(String algorithm, int keySize) {
+		if ("EC".equalsIgnoreCase(algorithm)) {
+			if (keySize != 0 && keySize != 256) {
+				throw new IllegalArgumentException("The EC key size can only be 256 bits.");
+			}
+			return new EcCryptoUtil().generateKeyPair();
+		}
+		if ("RSA".equalsIgnoreCase(algorithm)) {
+			return new RsaCryptoUtil().generateKeyPair(keySize == 0 ? RsaCryptoUtil.DEFAULT_KEY_SIZE : keySize);
+		}
+		throw new IllegalArgumentException("Unknown algorithm " + algorithm + ".");
+	}
+
+	/**
+	 * Generates key pairs into files, in parallel on all the cores.
+	 * 
+	 * @param algorithm the algorithm of the key pairs, RSA or EC, or AES for a
+	 *                  single master key.
+	 * @param keySize   the key size in bits, 0 for the default one (the only
+	 *                  one for AES).
+	 * @param count     the number of key pairs, at least 1 (exactly 1 for AES).
+	 * @param directory the directory of the key files, created if missing.
+	 * @throws IOException if a key file cannot be written, or a numbered key
+	 *                     file or the master key file already exists.
+	 */
+	public static void generateToFiles(String algorithm, int keySize, int count, Path directory)
+			throws IOException {
+		if (count < 1) {
+			throw new IllegalArgumentException("The number of key pairs must be at least 1.");
+		}
+		boolean masterKey = "AES".equalsIgnoreCase(algorithm);
+		if (masterKey && (count != 1 || keySize != 0)) {
+			throw new IllegalArgumentException("Only a single master key of the default size can be generated.");
+		}
+		Files.createDirectories(directory);
+		if (masterKey) {
+			// The master key is the only key of the symmetric passwords: never overwrite it
+			writeToNewFile(directory.resolve("master.key"), SymmetricCryptoUtil.generateMasterKey());
+			return;
+		}
+		if (count == 1) {
+			Base64EncodedKeyPair keyPair = generateKeyPair(algorithm, keySize);
+			writeToFile(directory.resolve("public.key").toString(), keyPair.getPublicKey());
+			writeToFile(directory.resolve("private.key").toString(), keyPair.getPrivateKey());
+			return;
+		}
+		// Numbered key pairs must not overwrite the retired keys of a key ring: check before generating any of them
+		for (int i = 1; i <= count; i++) {
+			String name = String.format(KEY_PAIR_NAME, i);
+			for (String suffix : new String[] { KeyRing.PUBLIC_KEY_SUFFIX, KeyRing.PRIVATE_KEY_SUFFIX }) {
+				if (Files.exists(directory.resolve(name + suffix))) {
+					throw new FileAlreadyExistsException(directory.resolve(name + suffix).toString());
+				}
+			}
+		}
+		try {
+			IntStream.rangeClosed(1, count).parallel().forEach(i -> {
+				Base64EncodedKeyPair keyPair = generateKeyPair(algorithm, keySize);
+				String name = String.format(KEY_PAIR_NAME, i);
+				try {
+					writeToNewFile(directory.resolve(name + KeyRing.PUBLIC_KEY_SUFFIX), keyPair.getPublicKey());
+					writeToNewFile(directory.resolve(name + KeyRing.PRIVATE_KEY_SUFFIX), keyPair.getPrivateKey());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
 	/**
 	 * Writes out on a file a key in a string format.
 	 * 
@@ -50,6 +151,20 @@ public class KeyPairGenerator {
 	 * @throws IOException if an I/O error occurs writing to or creating the file
 	 */
 	public static void writeToFile(String path, String key) throws IOException {
-		Files.write(Paths.get(path), key.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE);
+		Files.write(Paths.get(path), key.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Writes out a key in a string format on a file that must not exist yet.
+	 * 
+	 * @param path the path of the file to create
+	 * @param key the key that has to be stored in the specified file
+	 * @throws IOException if the file already exists or an I/O error occurs
+	 *                     writing to or creating the file
+	 */
+	private static void writeToNewFile(Path path, String key) throws IOException {
+		Files.write(path, key.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
 	}
 }
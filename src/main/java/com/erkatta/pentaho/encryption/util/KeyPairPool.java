@@ -0,0 +1,116 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+
+/**
+ * A pool of key pairs generated ahead of time by background daemon threads, so that code provisioning many keys can
+ * take a fresh key pair without waiting for its generation. The threads refill the pool as soon as a key pair is
+ * taken; when the pool is empty, {@link #take()} generates the key pair itself.
+ * <p>
+ * A key pair is handed out only once and the pool does not keep it afterwards.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class KeyPairPool implements AutoCloseable {
+
+	/** The generated key pairs not taken yet. **/
+	private final BlockingQueue<Base64EncodedKeyPair> keyPairs;
+	/** The generator of the key pairs. **/
+	private final Supplier<Base64EncodedKeyPair> generator;
+	/** The threads that fill the pool. **/
+	private final Thread[] threads;
+	/** Whether the pool has been closed. **/
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new {@link KeyPairPool} and starts filling it.
+	 *
+	 * @param generator the generator of the key pairs, such as
+	 *                  <code>() -&gt; KeyPairGenerator.generateKeyPair("RSA", 4096)</code>; it must be thread safe.
+	 * @param capacity  the maximum number of key pairs kept in the pool.
+	 * @param threads   the number of threads that generate the key pairs.
+	 */
+	public KeyPairPool(Supplier<Base64EncodedKeyPair> generator, int capacity, int threads) {
+		if (capacity < 1 || threads < 1) {
+			throw new IllegalArgumentException("The capacity and the threads of the pool must be positive.");
+		}
+		this.generator = generator;
+		this.keyPairs = new ArrayBlockingQueue<>(capacity);
+		this.threads = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			this.threads[i] = new Thread(this::fill, "StrongPasswordEncoder key pool " + (i + 1));
+			this.threads[i].setDaemon(true);
+			this.threads[i].start();
+		}
+	}
+
+	/**
+	 * Generates key pairs into the pool, until the pool is closed or the generator fails; a failure is reported by
+	 * {@link #take()}, which generates the key pairs itself once the pool is empty.
+	 */
+	private void fill() {
+		try {
+			while (!closed) {
+				keyPairs.put(generator.get());
+			}
+		} catch (InterruptedException e) {
+			// The pool has been closed
+		}
+	}
+
+	/**
+	 * Takes a key pair from the pool, or generates it if the pool is empty.
+	 *
+	 * @return the key pair, which is removed from the pool.
+	 * @throws IllegalStateException if the pool has been closed.
+	 */
+	public Base64EncodedKeyPair take() {
+		if (closed) {
+			throw new IllegalStateException("The key pair pool has been closed.");
+		}
+		Base64EncodedKeyPair keyPair = keyPairs.poll();
+		return keyPair != null ? keyPair : generator.get();
+	}
+
+	/**
+	 * Gets the number of key pairs ready in the pool.
+	 *
+	 * @return the number of key pairs.
+	 */
+	public int size() {
+		return keyPairs.size();
+	}
+
+	/**
+	 * Stops filling the pool and discards the key pairs not taken.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		keyPairs.clear();
+	}
+}
@@ -0,0 +1,205 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable set of key pairs: the active one, used to encrypt new data, and the retired ones, whose private keys are
+ * still used to decrypt old data. Every key pair is identified by a short fingerprint of its public key, which is
+ * carried by the encrypted data so that the right private key is found without trying each one in turn.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class KeyRing {
+
+	/** The suffix of the public key files of the retired key pairs. **/
+	public static final String PUBLIC_KEY_SUFFIX = ".public.key";
+	/** The suffix of the private key files of the retired key pairs. **/
+	public static final String PRIVATE_KEY_SUFFIX = ".private.key";
+
+	/** The active public key as Base64 string. **/
+	private final String activePublicKey;
+	/** The active private key as Base64 string. **/
+	private final String activePrivateKey;
+	/** The identifier of the active key pair. **/
+	private final long activeKeyId;
+	/** All the private keys as Base64 strings, indexed by the identifier of their key pair. **/
+	private final Map<Long, String> privateKeys;
+	/** The private keys of the retired key pairs as Base64 strings. **/
+	private final Collection<String> retiredPrivateKeys;
+
+	/**
+	 * Creates a new {@link KeyRing}. Either active key can be missing when only encryption or only decryption is
+	 * needed.
+	 *
+	 * @param activePublicKey  the active public key as Base64 string, <code>null</code> if it is not loaded.
+	 * @param activePrivateKey the active private key as Base64 string, <code>null</code> if it is not loaded.
+	 * @param retiredKeys      the private keys of the retired key pairs as Base64 strings, indexed by the identifier
+	 *                         of their key pair.
+	 */
+	public KeyRing(String activePublicKey, String activePrivateKey, Map<Long, String> retiredKeys) {
+		this.activePublicKey = activePublicKey;
+		this.activePrivateKey = activePrivateKey;
+		this.activeKeyId = activePublicKey != null ? getKeyId(activePublicKey) : CiphertextHeader.NO_KEY_ID;
+		Map<Long, String> keys = new HashMap<>(retiredKeys);
+		keys.remove(activeKeyId);
+		this.retiredPrivateKeys = Collections.unmodifiableList(new ArrayList<>(keys.values()));
+		if (activePublicKey != null && activePrivateKey != null) {
+			keys.put(activeKeyId, activePrivateKey);
+		}
+		this.privateKeys = Collections.unmodifiableMap(keys);
+	}
+
+	/**
+	 * Computes the identifier of a key pair, made of the first 8 bytes of the SHA-256 digest of its public key.
+	 *
+	 * @param publicKey the public key as Base64 string.
+	 * @return the identifier of the key pair.
+	 */
+	public static long getKeyId(String publicKey) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256")
+					.digest(Base64.getDecoder().decode(publicKey.trim().getBytes(StandardCharsets.UTF_8)));
+			return ByteBuffer.wrap(digest).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Cannot compute the key identifier.", e);
+		}
+	}
+
+	/**
+	 * Loads the retired key pairs stored in a directory. Every key pair is made of a <code>name.private.key</code> file
+	 * and of the matching <code>name.public.key</code> file.
+	 *
+	 * @param directory the directory holding the key pairs.
+	 * @return the private keys as Base64 strings, indexed by the identifier of their key pair.
+	 * @throws IOException if a key file cannot be read or a public key is missing.
+	 */
+	public static Map<Long, String> loadRetiredKeys(Path directory) throws IOException {
+		Map<Long, String> keys = new HashMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + PRIVATE_KEY_SUFFIX)) {
+			for (Path privateKeyFile : files) {
+				String name = privateKeyFile.getFileName().toString();
+				Path publicKeyFile = privateKeyFile
+						.resolveSibling(name.substring(0, name.length() - PRIVATE_KEY_SUFFIX.length()) + PUBLIC_KEY_SUFFIX);
+				String publicKey = new String(Files.readAllBytes(publicKeyFile), StandardCharsets.UTF_8);
+				String privateKey = new String(Files.readAllBytes(privateKeyFile), StandardCharsets.UTF_8);
+				keys.put(getKeyId(publicKey), privateKey);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Checks whether the active public key is loaded.
+	 *
+	 * @return <code>true</code> if the active public key is loaded.
+	 */
+	public boolean hasPublicKey() {
+		return activePublicKey != null;
+	}
+
+	/**
+	 * Checks whether the active private key is loaded.
+	 *
+	 * @return <code>true</code> if the active private key is loaded.
+	 */
+	public boolean hasPrivateKey() {
+		return activePrivateKey != null;
+	}
+
+	/**
+	 * Gets the active public key.
+	 *
+	 * @return the active public key as Base64 string.
+	 * @throws RuntimeException if the active public key is not loaded.
+	 */
+	public String getActivePublicKey() {
+		if (activePublicKey == null) {
+			throw new RuntimeException("Cannot encrypt data: the public key is not loaded.");
+		}
+		return activePublicKey;
+	}
+
+	/**
+	 * Gets the active private key.
+	 *
+	 * @return the active private key as Base64 string.
+	 * @throws RuntimeException if the active private key is not loaded.
+	 */
+	public String getActivePrivateKey() {
+		if (activePrivateKey == null) {
+			throw new RuntimeException("Cannot decrypt data: the private key is not loaded.");
+		}
+		return activePrivateKey;
+	}
+
+	/**
+	 * Gets the identifier of the active key pair.
+	 *
+	 * @return the identifier of the active key pair.
+	 */
+	public long getActiveKeyId() {
+		return activeKeyId;
+	}
+
+	/**
+	 * Gets the private key of a key pair. The active private key is returned for an unknown key pair, since the active
+	 * public key may have been replaced on its own, as the {@link com.erkatta.pentaho.encryption.PasswordMigrationTool}
+	 * does: the decryption then fails if the active private key does not match either.
+	 *
+	 * @param keyId the identifier of the key pair.
+	 * @return the private key as Base64 string.
+	 */
+	public String getPrivateKey(long keyId) {
+		String privateKey = privateKeys.get(keyId);
+		return privateKey != null ? privateKey : getActivePrivateKey();
+	}
+
+	/**
+	 * Gets the private keys of the retired key pairs, which are tried in turn on
+	 * the data that does not carry the identifier of its key pair.
+	 *
+	 * @return the retired private keys as Base64 strings.
+	 */
+	public Collection<String> getRetiredPrivateKeys() {
+		return retiredPrivateKeys;
+	}
+
+	/**
+	 * Gets the number of key pairs in the ring, including the active one.
+	 *
+	 * @return the number of key pairs.
+	 */
+	public int size() {
+		return privateKeys.size();
+	}
+}
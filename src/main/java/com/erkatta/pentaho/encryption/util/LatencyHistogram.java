@@ -0,0 +1,132 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies. Every bucket counts the latencies between two consecutive powers of two
+ * nanoseconds, so that percentiles are reported with at most a factor of two of error in constant memory.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class LatencyHistogram {
+
+	/** The number of buckets, one for each bit of a long. **/
+	private static final int BUCKETS = 64;
+
+	/** The number of latencies in each bucket. **/
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	/** The sum of all the latencies in nanoseconds. **/
+	private final LongAdder totalNanos = new LongAdder();
+	/** The highest latency in nanoseconds. **/
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos the latency in nanoseconds, negative values are recorded as zero.
+	 */
+	public void record(long nanos) {
+		long latency = Math.max(nanos, 0L);
+		buckets[latency == 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(latency)].increment();
+		totalNanos.add(latency);
+		maxNanos.accumulate(latency);
+	}
+
+	/**
+	 * Gets the number of recorded latencies.
+	 *
+	 * @return the number of recorded latencies.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the mean latency.
+	 *
+	 * @return the mean latency in nanoseconds, zero if nothing has been recorded.
+	 */
+	public long getMeanNanos() {
+		long count = getCount();
+		return count == 0 ? 0L : totalNanos.sum() / count;
+	}
+
+	/**
+	 * Gets the highest latency.
+	 *
+	 * @return the highest latency in nanoseconds.
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * Gets an upper bound of a percentile of the latencies.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the upper bound of the bucket that holds the percentile in nanoseconds, zero if nothing has been
+	 *         recorded.
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0L;
+		}
+		long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * Removes all the recorded latencies.
+	 */
+	public void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		totalNanos.reset();
+		maxNanos.reset();
+	}
+}
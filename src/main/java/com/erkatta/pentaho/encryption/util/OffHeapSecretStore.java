@@ -0,0 +1,193 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * A fixed number of secrets stored outside of the Java heap, in a single direct buffer divided in slots of the same
+ * size. The garbage collector never scans nor copies the secrets and heap dumps do not contain them; the memory used
+ * is allocated once and does not depend on the secrets stored. A slot is zeroed as soon as its secret is removed.
+ * <p>
+ * The direct buffer counts against <code>-XX:MaxDirectMemorySize</code>.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class OffHeapSecretStore {
+
+	/** The number of bytes at the beginning of a slot that hold the length of its secret. **/
+	private static final int LENGTH_SIZE = Integer.BYTES;
+
+	/** The memory of all the slots. **/
+	private final ByteBuffer memory;
+	/** The number of slots. **/
+	private final int capacity;
+	/** The maximum length in characters of a secret. **/
+	private final int maxLength;
+	/** The size in bytes of a slot. **/
+	private final int slotSize;
+	/** The slots in use. **/
+	private final BitSet usedSlots;
+
+	/**
+	 * Creates a new {@link OffHeapSecretStore}, allocating all of its memory.
+	 *
+	 * @param capacity  the number of secrets that can be stored.
+	 * @param maxLength the maximum length in characters of a secret.
+	 */
+	public OffHeapSecretStore(int capacity, int maxLength) {
+		if (capacity <= 0 || maxLength <= 0) {
+			throw new IllegalArgumentException("The capacity and the maximum length must be greater than zero.");
+		}
+		long size = (long) capacity * (LENGTH_SIZE + (long) maxLength * Character.BYTES);
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Cannot allocate " + size + " bytes for the secrets.");
+		}
+		this.capacity = capacity;
+		this.maxLength = maxLength;
+		this.slotSize = LENGTH_SIZE + maxLength * Character.BYTES;
+		this.memory = ByteBuffer.allocateDirect((int) size);
+		this.usedSlots = new BitSet(capacity);
+	}
+
+	/**
+	 * Stores a secret in a free slot. The caller still owns the characters, and should wipe them.
+	 *
+	 * @param secret the secret.
+	 * @return the slot of the secret, or -1 if the secret is too long or there's no free slot.
+	 */
+	public synchronized int put(char[] secret) {
+		int slot = usedSlots.nextClearBit(0);
+		if (secret.length > maxLength || slot >= capacity) {
+			return -1;
+		}
+		usedSlots.set(slot);
+		int offset = slot * slotSize;
+		memory.putInt(offset, secret.length);
+		offset += LENGTH_SIZE;
+		for (char c : secret) {
+			memory.putChar(offset, c);
+			offset += Character.BYTES;
+		}
+		return slot;
+	}
+
+	/**
+	 * Gets a copy of a stored secret.
+	 *
+	 * @param slot the slot of the secret.
+	 * @return the secret, which the caller should wipe once used.
+	 */
+	public synchronized char[] get(int slot) {
+		checkUsed(slot);
+		int offset = slot * slotSize;
+		char[] secret = new char[memory.getInt(offset)];
+		offset += LENGTH_SIZE;
+		for (int i = 0; i < secret.length; i++) {
+			secret[i] = memory.getChar(offset);
+			offset += Character.BYTES;
+		}
+		return secret;
+	}
+
+	/**
+	 * Removes a secret, zeroing its slot.
+	 *
+	 * @param slot the slot of the secret.
+	 */
+	public synchronized void remove(int slot) {
+		checkUsed(slot);
+		zero(slot);
+		usedSlots.clear(slot);
+	}
+
+	/**
+	 * Removes all the secrets, zeroing their slots.
+	 */
+	public synchronized void clear() {
+		for (int slot = usedSlots.nextSetBit(0); slot >= 0; slot = usedSlots.nextSetBit(slot + 1)) {
+			zero(slot);
+		}
+		usedSlots.clear();
+	}
+
+	/**
+	 * Gets the number of stored secrets.
+	 *
+	 * @return the number of stored secrets.
+	 */
+	public synchronized int size() {
+		return usedSlots.cardinality();
+	}
+
+	/**
+	 * Gets the number of secrets that can be stored.
+	 *
+	 * @return the number of slots.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the maximum length of a secret.
+	 *
+	 * @return the maximum length in characters of a secret.
+	 */
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Gets the memory allocated outside of the heap.
+	 *
+	 * @return the size in bytes of the memory.
+	 */
+	public int getMemorySize() {
+		return memory.capacity();
+	}
+
+	/**
+	 * Zeroes the length and the characters of a slot.
+	 *
+	 * @param slot the slot.
+	 */
+	private void zero(int slot) {
+		int offset = slot * slotSize;
+		int end = offset + LENGTH_SIZE + memory.getInt(offset) * Character.BYTES;
+		for (; offset + Long.BYTES <= end; offset += Long.BYTES) {
+			memory.putLong(offset, 0L);
+		}
+		for (; offset < end; offset++) {
+			memory.put(offset, (byte) 0);
+		}
+	}
+
+	/**
+	 * Checks that a slot holds a secret.
+	 *
+	 * @param slot the slot.
+	 * @throws IllegalArgumentException if the slot does not hold a secret.
+	 */
+	private void checkUsed(int slot) {
+		if (slot < 0 || slot >= capacity || !usedSlots.get(slot)) {
+			throw new IllegalArgumentException("The slot " + slot + " does not hold a secret.");
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.security.Key;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A small thread safe cache of parsed keys, indexed by their Base64 encoded form. Parsed keys are immutable, so the same
+ * instance can be shared by all the threads that use the same encoded key.
+ *
+ * @author Marco Cattarin
+ *
+ * @param <K> the type of the cached keys.
+ */
+public final class ParsedKeyCache<K extends Key> {
+
+	/** The maximum number of keys kept in the cache, it is cleared when this limit is exceeded. **/
+	public static final int MAX_ENTRIES = 32;
+
+	/** The parsed keys indexed by their Base64 encoded form. **/
+	private final ConcurrentMap<String, K> keys = new ConcurrentHashMap<>();
+
+	/** The number of lookups that found an already parsed key. **/
+	private final LongAdder hits = new LongAdder();
+	/** The number of lookups that required the key to be parsed. **/
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Gets a parsed key, parsing it only if it is not already cached.
+	 *
+	 * @param encodedKey the key encoded as Base64 string.
+	 * @param parser     the function used to parse the key on a cache miss.
+	 * @return the parsed key.
+	 */
+	public K get(String encodedKey, Function<String, K> parser) {
+		K key = keys.get(encodedKey);
+		if (key != null) {
+			hits.increment();
+			return key;
+		}
+		misses.increment();
+		if (keys.size() >= MAX_ENTRIES) {
+			keys.clear();
+		}
+		return keys.computeIfAbsent(encodedKey, parser);
+	}
+
+	/**
+	 * Removes all the cached keys.
+	 */
+	public void clear() {
+		keys.clear();
+	}
+
+	/**
+	 * Gets the number of cached keys.
+	 *
+	 * @return the number of cached keys.
+	 */
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * Gets the number of lookups that found an already parsed key.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Gets the number of lookups that required the key to be parsed.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns a string representation of the {@link ParsedKeyCache}.
+	 *
+	 * @return a string representation of the {@link ParsedKeyCache}.
+	 */
+	@Override
+	public String toString() {
+		return "Keys:" + size() + " hits:" + getHitCount() + " misses:" + getMissCount();
+	}
+}
@@ -0,0 +1,163 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Measures how fast the installed security providers encrypt and decrypt with a key pair, so that the fastest one can
+ * be picked at startup. Providers that do not support the algorithm, or whose output does not round-trip, are left
+ * out.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class ProviderCalibrator {
+
+	/** The number of unmeasured round trips that let the JIT compile the code paths. **/
+	private static final int WARMUP_ROUND_TRIPS = 10;
+	/** The size in bytes of the data encrypted by the round trips. **/
+	private static final int PROBE_LENGTH = 16;
+
+	/** The factory of the cryptographic utilities, given a provider. **/
+	private final Function<Provider, AsymmetricCryptoUtil> cryptoUtilFactory;
+	/** The number of measured round trips for each provider. **/
+	private final int roundTrips;
+
+	/**
+	 * Creates a new {@link ProviderCalibrator}.
+	 *
+	 * @param cryptoUtilFactory the factory of the cryptographic utilities, given a provider; it throws a
+	 *                          {@link RuntimeException} if the provider does not support the algorithm.
+	 * @param roundTrips        the number of measured round trips for each provider.
+	 */
+	public ProviderCalibrator(Function<Provider, AsymmetricCryptoUtil> cryptoUtilFactory, int roundTrips) {
+		this.cryptoUtilFactory = cryptoUtilFactory;
+		this.roundTrips = roundTrips;
+	}
+
+	/**
+	 * Measures all the installed providers that support the algorithm.
+	 *
+	 * @param publicKey  the public key used by the round trips as Base64 string.
+	 * @param privateKey the private key used by the round trips as Base64 string.
+	 * @return the timings of the providers that round-trip correctly, the fastest first.
+	 */
+	public List<Timing> calibrate(String publicKey, String privateKey) {
+		byte[] probe = new byte[PROBE_LENGTH];
+		new SecureRandom().nextBytes(probe);
+		List<Timing> timings = new ArrayList<>();
+		for (Provider provider : Security.getProviders()) {
+			try {
+				AsymmetricCryptoUtil cryptoUtil = cryptoUtilFactory.apply(provider);
+				for (int i = 0; i < WARMUP_ROUND_TRIPS; i++) {
+					roundTrip(cryptoUtil, probe, publicKey, privateKey);
+				}
+				long start = System.nanoTime();
+				for (int i = 0; i < roundTrips; i++) {
+					roundTrip(cryptoUtil, probe, publicKey, privateKey);
+				}
+				timings.add(new Timing(provider, cryptoUtil, (System.nanoTime() - start) / roundTrips));
+			} catch (RuntimeException e) {
+				// The provider does not support the algorithm or is not working
+			}
+		}
+		timings.sort(Comparator.comparingLong(Timing::getNanosPerRoundTrip));
+		return timings;
+	}
+
+	/**
+	 * Encrypts and decrypts data, checking that the original data is returned.
+	 *
+	 * @param cryptoUtil the cryptographic utility.
+	 * @param probe      the data to encrypt.
+	 * @param publicKey  the public key as Base64 string.
+	 * @param privateKey the private key as Base64 string.
+	 * @throws RuntimeException if the data does not round-trip.
+	 */
+	private static void roundTrip(AsymmetricCryptoUtil cryptoUtil, byte[] probe, String publicKey,
+			String privateKey) {
+		if (!Arrays.equals(probe, cryptoUtil.decrypt(cryptoUtil.encrypt(probe, publicKey), privateKey))) {
+			throw new RuntimeException("The decrypted data does not match the encrypted one.");
+		}
+	}
+
+	/**
+	 * The timing of a provider.
+	 */
+	public static final class Timing {
+
+		/** The provider. **/
+		private final Provider provider;
+		/** The cryptographic utility that uses the provider. **/
+		private final AsymmetricCryptoUtil cryptoUtil;
+		/** The average time in nanoseconds of an encryption followed by a decryption. **/
+		private final long nanosPerRoundTrip;
+
+		/**
+		 * Creates a new timing.
+		 *
+		 * @param provider          the provider.
+		 * @param cryptoUtil        the cryptographic utility that uses the provider.
+		 * @param nanosPerRoundTrip the average time in nanoseconds of a round trip.
+		 */
+		private Timing(Provider provider, AsymmetricCryptoUtil cryptoUtil, long nanosPerRoundTrip) {
+			this.provider = provider;
+			this.cryptoUtil = cryptoUtil;
+			this.nanosPerRoundTrip = nanosPerRoundTrip;
+		}
+
+		/**
+		 * Gets the provider.
+		 *
+		 * @return the provider.
+		 */
+		public Provider getProvider() {
+			return provider;
+		}
+
+		/**
+		 * Gets the cryptographic utility that uses the provider, already warmed up.
+		 *
+		 * @return the cryptographic utility.
+		 */
+		public AsymmetricCryptoUtil getCryptoUtil() {
+			return cryptoUtil;
+		}
+
+		/**
+		 * Gets the average time of an encryption followed by a decryption.
+		 *
+		 * @return the average time in nanoseconds.
+		 */
+		public long getNanosPerRoundTrip() {
+			return nanosPerRoundTrip;
+		}
+
+		@Override
+		public String toString() {
+			return provider.getName() + ": " + nanosPerRoundTrip / 1000 + " us per round trip";
+		}
+	}
+}
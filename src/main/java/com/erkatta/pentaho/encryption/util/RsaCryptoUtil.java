@@ -16,17 +16,27 @@ package com.erkatta.pentaho.encryption.util;
  * <http://www.gnu.org/licenses/lgpl-2.1.html>.
  */
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.Provider;
 import java.security.PublicKey;
+import java.security.interfaces.RSAKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -43,23 +53,72 @@ import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
  */
 public final class RsaCryptoUtil implements AsymmetricCryptoUtil {
 
+	/** The transformation used to create the RSA ciphers. **/
+	private static final String TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+	/** The size in bits of the generated keys, unless specified. **/
+	public static final int DEFAULT_KEY_SIZE = 2048;
+	/** The minimum size in bits of the generated keys. **/
+	public static final int MIN_KEY_SIZE = 2048;
+
 	/** The key factory used to convert keys into key specifications. **/
 	private KeyFactory rsaKeyFactory;
-	
-	/** Provides the functionality of a cryptographic cipher for encryption and decryption. */
-	private Cipher cipher;
+
+	/** The security provider of the ciphers, <code>null</code> for the default one. **/
+	private final Provider provider;
+
+	/**
+	 * Provides the functionality of a cryptographic cipher for encryption and decryption. Every thread owns its cipher,
+	 * so that no lock is needed and threads never wait for each other.
+	 */
+	private final ThreadLocal<CipherHolder> ciphers;
+	/** The holders of the ciphers of all the threads, so that {@link #clear()} can release their keys. **/
+	private final Set<CipherHolder> cipherHolders = Collections.synchronizedSet(Collections.newSetFromMap(
+			new WeakHashMap<>()));
+
+	/** The cache of the already parsed public keys. **/
+	private final ParsedKeyCache<PublicKey> publicKeyCache = new ParsedKeyCache<>();
+	/** The cache of the already parsed private keys. **/
+	private final ParsedKeyCache<PrivateKey> privateKeyCache = new ParsedKeyCache<>();
+
+	/** The listener of the key parsing and cipher measurements. **/
+	private volatile CryptoMetricsListener metricsListener = CryptoMetricsListener.NONE;
 
 	/**
 	 * Instantiates a new RSA crypto utility.
 	 */
 	public RsaCryptoUtil() {
+		this(null);
+	}
+
+	/**
+	 * Instantiates a new RSA crypto utility whose ciphers come from a specific security provider. Keys are still parsed
+	 * by the default provider, the ciphers convert them if needed.
+	 * 
+	 * @param provider the security provider of the ciphers, <code>null</code> for the default one.
+	 */
+	public RsaCryptoUtil(Provider provider) {
+		this.provider = provider;
 		try {
 			rsaKeyFactory = KeyFactory.getInstance("RSA");
-			cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+			// Fails fast if the transformation is not supported.
+			newCipher(provider);
 		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
 			throw new RuntimeException("Cannot create a new instance of CryptoUtil.", e);
 		}
+		ciphers = ThreadLocal.withInitial(() -> {
+			CipherHolder holder = new CipherHolder(provider);
+			cipherHolders.add(holder);
+			return holder;
+		});
+	}
 
+	/**
+	 * Gets the security provider of the ciphers.
+	 *
+	 * @return the security provider of the ciphers, <code>null</code> for the default one.
+	 */
+	public Provider getProvider() {
+		return provider;
 	}
 
 	/**
@@ -83,7 +142,12 @@ public final class RsaCryptoUtil implements AsymmetricCryptoUtil {
 	 */
 	@Override
 	public String encrypt(String data, String publicKey) {
-		return Base64.getEncoder().encodeToString(encrypt(data.getBytes(StandardCharsets.UTF_8), publicKey));
+		char[] chars = data.toCharArray();
+		try {
+			return encrypt(chars, publicKey);
+		} finally {
+			Arrays.fill(chars, '\0');
+		}
 	}
 
 	/**
@@ -107,20 +171,114 @@ public final class RsaCryptoUtil implements AsymmetricCryptoUtil {
 	 */
 	@Override
 	public String decrypt(String data, String privateKey) {
-		return new String(decrypt(Base64.getDecoder().decode(data.getBytes(StandardCharsets.UTF_8)), privateKey),
-				StandardCharsets.UTF_8);
+		return CryptoBuffers.toStringAndWipe(decryptToChars(data, 0, data.length(), privateKey));
+	}
+
+	/**
+	 * Encrypts the remaining bytes of a buffer into another buffer.
+	 * 
+	 * @param data the data to encrypt, which is consumed.
+	 * @param output the buffer that receives the encrypted data at its position.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the number of bytes written to the output buffer.
+	 */
+	@Override
+	public int encrypt(ByteBuffer data, ByteBuffer output, String publicKey) {
+		try {
+			return ciphers.get().doFinal(Cipher.ENCRYPT_MODE, getPublicKey(publicKey), data, output, metricsListener);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot encrypt data.", e);
+		}
+	}
+
+	/**
+	 * Decrypts the remaining bytes of a buffer into another buffer.
+	 * 
+	 * @param data the data to decrypt, which is consumed.
+	 * @param output the buffer that receives the decrypted data at its position.
+	 * @param privateKey the private key to use to decode the data as Base64 encoded string.
+	 * @return the number of bytes written to the output buffer.
+	 */
+	@Override
+	public int decrypt(ByteBuffer data, ByteBuffer output, String privateKey) {
+		try {
+			return ciphers.get().doFinal(Cipher.DECRYPT_MODE, getPrivateKey(privateKey), data, output,
+					metricsListener);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot decrypt data.", e);
+		}
+	}
+
+	/**
+	 * Gets the maximum length of the encrypted form of data, which is the size of the RSA modulus.
+	 * 
+	 * @param length the length in bytes of the data to encrypt.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the maximum length in bytes of the encrypted data.
+	 */
+	@Override
+	public int getMaxEncryptedLength(int length, String publicKey) {
+		return getModulusLength(getPublicKey(publicKey));
+	}
+
+	/**
+	 * Encrypts characters, without creating intermediate strings or arrays. The public key is looked up once, for
+	 * both sizing the output and encrypting.
+	 * 
+	 * @param data the data to encrypt as characters, which the caller can wipe afterwards.
+	 * @param publicKey the public key to use to encode the data as Base64 encoded string.
+	 * @return the encrypted data as Base64 string.
+	 */
+	@Override
+	public String encrypt(char[] data, String publicKey) {
+		PublicKey key = getPublicKey(publicKey);
+		CryptoBuffers buffers = CryptoBuffers.get();
+		try {
+			ByteBuffer input = buffers.encodeUtf8(CharBuffer.wrap(data));
+			ByteBuffer output = buffers.output(getModulusLength(key));
+			ciphers.get().doFinal(Cipher.ENCRYPT_MODE, key, input, output, metricsListener);
+			output.flip();
+			return Base64Codec.encode(output);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot encrypt data.", e);
+		} finally {
+			buffers.wipe();
+		}
+	}
+
+	/**
+	 * Gets the size of the modulus of a key, which is the size of the RSA encrypted data.
+	 * 
+	 * @param key the key.
+	 * @return the size in bytes of the modulus.
+	 */
+	private static int getModulusLength(Key key) {
+		return (((RSAKey) key).getModulus().bitLength() + 7) / 8;
 	}
 
     /**
-     * Generates a (public,private) key pair.
+     * Generates a (public,private) key pair of {@link #DEFAULT_KEY_SIZE} bits.
      * 
      * @return a pair of Base64 encoded keys.
      */
 	@Override
 	public Base64EncodedKeyPair generateKeyPair() {
+		return generateKeyPair(DEFAULT_KEY_SIZE);
+	}
+
+    /**
+     * Generates a (public,private) key pair.
+     * 
+     * @param keySize the size in bits of the modulus, at least {@link #MIN_KEY_SIZE}.
+     * @return a pair of Base64 encoded keys.
+     */
+	public Base64EncodedKeyPair generateKeyPair(int keySize) {
+		if (keySize < MIN_KEY_SIZE) {
+			throw new IllegalArgumentException("The RSA key size must be at least " + MIN_KEY_SIZE + " bits.");
+		}
 		try {
 			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-			keyGen.initialize(2048);
+			keyGen.initialize(keySize);
 			return new Base64EncodedKeyPair(keyGen.generateKeyPair());
 		} catch (NoSuchAlgorithmException e) {
 			throw new RuntimeException("Cannot generate key pair.", e);
@@ -129,12 +287,69 @@ public final class RsaCryptoUtil implements AsymmetricCryptoUtil {
 	}
 
 	/**
-	 * Gets a {@link PublicKey} from its Base64 encoded form.
+	 * Sets the listener of the key parsing and cipher measurements.
+	 *
+	 * @param metricsListener the listener.
+	 */
+	public void setMetricsListener(CryptoMetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	/**
+	 * Gets the cache of the already parsed public keys.
+	 *
+	 * @return the public keys cache.
+	 */
+	public ParsedKeyCache<PublicKey> getPublicKeyCache() {
+		return publicKeyCache;
+	}
+
+	/**
+	 * Gets the cache of the already parsed private keys.
+	 *
+	 * @return the private keys cache.
+	 */
+	public ParsedKeyCache<PrivateKey> getPrivateKeyCache() {
+		return privateKeyCache;
+	}
+
+	/**
+	 * Gets a {@link PublicKey} from its Base64 encoded form, parsing it only the first time it is used.
 	 *
 	 * @param base64PublicKey the public key encoded as Base64 string.
 	 * @return the public key as {@link PublicKey}.
 	 */
 	protected PublicKey getPublicKey(String base64PublicKey) {
+		return publicKeyCache.get(base64PublicKey, key -> {
+			long start = System.nanoTime();
+			PublicKey publicKey = parsePublicKey(key);
+			metricsListener.onKeyParsed(System.nanoTime() - start);
+			return publicKey;
+		});
+	}
+
+	/**
+	 * Gets a {@link PrivateKey} from its Base64 encoded form, parsing it only the first time it is used.
+	 *
+	 * @param base64PrivateKey the private key encoded as Base64 string.
+	 * @return the private key as {@link PrivateKey}.
+	 */
+	protected PrivateKey getPrivateKey(String base64PrivateKey) {
+		return privateKeyCache.get(base64PrivateKey, key -> {
+			long start = System.nanoTime();
+			PrivateKey privateKey = parsePrivateKey(key);
+			metricsListener.onKeyParsed(System.nanoTime() - start);
+			return privateKey;
+		});
+	}
+
+	/**
+	 * Parses a {@link PublicKey} from its Base64 encoded form.
+	 *
+	 * @param base64PublicKey the public key encoded as Base64 string.
+	 * @return the public key as {@link PublicKey}.
+	 */
+	PublicKey parsePublicKey(String base64PublicKey) {
 		PublicKey publicKey = null;
 		X509EncodedKeySpec keySpec = new X509EncodedKeySpec(
 				Base64.getDecoder().decode(base64PublicKey.getBytes(StandardCharsets.UTF_8)));
@@ -147,19 +362,19 @@ public final class RsaCryptoUtil implements AsymmetricCryptoUtil {
 	}
 
 	/**
-	 * Gets a {@link PrivateKey} from its Base64 encoded form.
+	 * Parses a {@link PrivateKey} from its Base64 encoded form.
 	 *
 	 * @param base64PrivateKey the private key encoded as Base64 string.
 	 * @return the private key as {@link PrivateKey}.
 	 */
-	protected PrivateKey getPrivateKey(String base64PrivateKey) {
+	PrivateKey parsePrivateKey(String base64PrivateKey) {
 		PrivateKey privateKey = null;
 		PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(
 				Base64.getDecoder().decode(base64PrivateKey.getBytes(StandardCharsets.UTF_8)));
 		try {
 			privateKey = rsaKeyFactory.generatePrivate(keySpec);
 		} catch (InvalidKeySpecException e) {
-			throw new RuntimeException("Cannot generate the public key.", e);
+			throw new RuntimeException("Cannot generate the private key.", e);
 		}
 		return privateKey;
 
@@ -173,14 +388,10 @@ public final class RsaCryptoUtil implements AsymmetricCryptoUtil {
 	 * @return the encrypted data as byte array.
 	 */
 	private byte[] encrypt(byte[] data, PublicKey publicKey) {
-		synchronized (cipher) {
-			try {
-				cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-				return cipher.doFinal(data);
-			} catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-				throw new RuntimeException("Cannot encrypt data.", e);
-			}
-
+		try {
+			return ciphers.get().doFinal(Cipher.ENCRYPT_MODE, publicKey, data, metricsListener);
+		} catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
+			throw new RuntimeException("Cannot encrypt data.", e);
 		}
 	}
 
@@ -192,14 +403,163 @@ public final class RsaCryptoUtil implements AsymmetricCryptoUtil {
 	 * @return the decrypted data as byte array.
 	 */
 	private byte[] decrypt(byte[] data, PrivateKey privateKey) {
-		synchronized (cipher) {
+		try {
+			return ciphers.get().doFinal(Cipher.DECRYPT_MODE, privateKey, data, metricsListener);
+		} catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
+			throw new RuntimeException("Cannot decrypt data.", e);
+		}
+	}
+
+	/**
+	 * Forgets the parsed keys and releases the ciphers of all the threads together with the keys they have been
+	 * initialized with, so that replaced keys do not stay in memory. The ciphers are created again on next use.
+	 */
+	@Override
+	public void clear() {
+		publicKeyCache.clear();
+		privateKeyCache.clear();
+		synchronized (cipherHolders) {
+			for (CipherHolder holder : cipherHolders) {
+				holder.release();
+			}
+		}
+	}
+
+	/**
+	 * Creates a new RSA cipher.
+	 *
+	 * @param provider the security provider of the cipher, <code>null</code> for the default one.
+	 * @return the cipher.
+	 * @throws NoSuchAlgorithmException if the transformation is not supported.
+	 * @throws NoSuchPaddingException   if the padding is not supported.
+	 */
+	private static Cipher newCipher(Provider provider) throws NoSuchAlgorithmException, NoSuchPaddingException {
+		return provider == null ? Cipher.getInstance(TRANSFORMATION) : Cipher.getInstance(TRANSFORMATION, provider);
+	}
+
+	/**
+	 * Holds the cipher owned by a single thread, together with the mode and the key it has been initialized with. The
+	 * cipher is initialized again only when a different mode or key is requested. The holder is locked only by its
+	 * thread, and by {@link RsaCryptoUtil#clear()} when it releases the cipher.
+	 */
+	private static final class CipherHolder {
+
+		/** The security provider of the cipher, <code>null</code> for the default one. **/
+		private final Provider provider;
+		/** The cipher owned by the thread, <code>null</code> once released. **/
+		private Cipher cipher;
+		/** The mode the cipher has been initialized with. **/
+		private int mode;
+		/** The key the cipher has been initialized with. **/
+		private Key key;
+
+		/**
+		 * Creates a new holder with an uninitialized cipher.
+		 *
+		 * @param provider the security provider of the cipher, <code>null</code> for the default one.
+		 */
+		private CipherHolder(Provider provider) {
+			this.provider = provider;
+			this.cipher = createCipher();
+		}
+
+		/**
+		 * Creates the cipher of the holder.
+		 *
+		 * @return the cipher.
+		 */
+		private Cipher createCipher() {
 			try {
-				cipher.init(Cipher.DECRYPT_MODE, privateKey);
-				return cipher.doFinal(data);
-			} catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-				throw new RuntimeException("Cannot decrypt data.", e);
+				return newCipher(provider);
+			} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+				throw new RuntimeException("Cannot create a new cipher.", e);
 			}
+		}
 
+		/**
+		 * Releases the cipher and the key it has been initialized with.
+		 */
+		private synchronized void release() {
+			cipher = null;
+			key = null;
+		}
+
+		/**
+		 * Encrypts or decrypts data, initializing the cipher only if the mode or the key have changed.
+		 *
+		 * @param mode            the operation mode of the cipher.
+		 * @param key             the key to use.
+		 * @param data            the data to process.
+		 * @param metricsListener the listener of the initialization and operation times.
+		 * @return the processed data.
+		 * @throws InvalidKeyException       if the key cannot be used to initialize the cipher.
+		 * @throws IllegalBlockSizeException if the data length is not valid.
+		 * @throws BadPaddingException       if the data is not properly padded.
+		 */
+		private synchronized byte[] doFinal(int mode, Key key, byte[] data, CryptoMetricsListener metricsListener)
+				throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+			long acquired = acquire(mode, key, metricsListener);
+			try {
+				byte[] result = cipher.doFinal(data);
+				metricsListener.onCipherOperation(System.nanoTime() - acquired);
+				return result;
+			} catch (IllegalBlockSizeException | BadPaddingException e) {
+				// Makes sure the cipher is initialized again after a failure.
+				this.key = null;
+				throw e;
+			}
+		}
+
+		/**
+		 * Encrypts or decrypts the remaining bytes of a buffer into another buffer, initializing the cipher only if
+		 * the mode or the key have changed.
+		 *
+		 * @param mode            the operation mode of the cipher.
+		 * @param key             the key to use.
+		 * @param data            the data to process, which is consumed.
+		 * @param output          the buffer that receives the processed data.
+		 * @param metricsListener the listener of the initialization and operation times.
+		 * @return the number of bytes written to the output buffer.
+		 * @throws GeneralSecurityException if the key cannot be used, or the data is not valid.
+		 */
+		private synchronized int doFinal(int mode, Key key, ByteBuffer data, ByteBuffer output,
+				CryptoMetricsListener metricsListener) throws GeneralSecurityException {
+			long acquired = acquire(mode, key, metricsListener);
+			try {
+				int length = cipher.doFinal(data, output);
+				metricsListener.onCipherOperation(System.nanoTime() - acquired);
+				return length;
+			} catch (GeneralSecurityException e) {
+				// Makes sure the cipher is initialized again after a failure.
+				this.key = null;
+				throw e;
+			}
+		}
+
+		/**
+		 * Initializes the cipher, only if the mode or the key have changed.
+		 *
+		 * @param mode            the operation mode of the cipher.
+		 * @param key             the key to use.
+		 * @param metricsListener the listener of the initialization time.
+		 * @return the time the cipher has been acquired, as returned by {@link System#nanoTime()}.
+		 * @throws InvalidKeyException if the key cannot be used to initialize the cipher.
+		 */
+		private long acquire(int mode, Key key, CryptoMetricsListener metricsListener) throws InvalidKeyException {
+			long start = System.nanoTime();
+			if (cipher == null) {
+				cipher = createCipher();
+			}
+			if (this.mode != mode || this.key != key) {
+				// Forgets the previous key first, so that a failed initialization is retried next time.
+				this.key = null;
+				cipher.init(mode, key);
+				this.mode = mode;
+				this.key = key;
+			}
+			long acquired = System.nanoTime();
+			metricsListener.onCipherAcquired(acquired - start);
+			return acquired;
 		}
 	}
 
@@ -0,0 +1,304 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of decrypted secrets, indexed by their encrypted form. Entries expire after a fixed time to live and
+ * the least recently used entry is evicted when the cache is full. The plain text is held as a character array, or in
+ * an {@link OffHeapSecretStore}, that is cleared as soon as the entry leaves the cache.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class SecretCache {
+
+	/** The slot of the secrets that are not kept outside of the heap. **/
+	private static final int NO_SLOT = -1;
+
+	/** The maximum number of secrets kept in the cache. **/
+	private final int maxEntries;
+	/** The time to live of an entry in nanoseconds. **/
+	private final long ttlNanos;
+
+	/** The cached secrets in access order, the first one is the least recently used. **/
+	private final LinkedHashMap<String, CachedSecret> entries;
+	/** The store of the plain texts outside of the heap, <code>null</code> if they are kept on the heap. **/
+	private final OffHeapSecretStore offHeapStore;
+
+	/** The number of lookups that found a valid secret. **/
+	private final LongAdder hits = new LongAdder();
+	/** The number of lookups that did not find a valid secret. **/
+	private final LongAdder misses = new LongAdder();
+	/** The number of secrets removed because they have expired or the cache was full. **/
+	private final LongAdder evictions = new LongAdder();
+	/** The number of secrets not cached because they are too long to be kept outside of the heap. **/
+	private final LongAdder rejections = new LongAdder();
+
+	/**
+	 * Creates a new {@link SecretCache}.
+	 *
+	 * @param maxEntries the maximum number of secrets kept in the cache.
+	 * @param ttl        the time to live of an entry.
+	 * @param unit       the time unit of the time to live.
+	 */
+	public SecretCache(int maxEntries, long ttl, TimeUnit unit) {
+		this(maxEntries, ttl, unit, 0);
+	}
+
+	/**
+	 * Creates a new {@link SecretCache} that keeps the plain texts outside of the heap, in an
+	 * {@link OffHeapSecretStore} allocated once for all the entries. Secrets longer than the maximum length are not
+	 * cached.
+	 *
+	 * @param maxEntries       the maximum number of secrets kept in the cache.
+	 * @param ttl              the time to live of an entry.
+	 * @param unit             the time unit of the time to live.
+	 * @param maxOffHeapLength the maximum length in characters of a secret kept outside of the heap, 0 to keep the
+	 *                         secrets on the heap.
+	 */
+	public SecretCache(int maxEntries, long ttl, TimeUnit unit, int maxOffHeapLength) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("The cache size must be greater than zero.");
+		}
+		this.maxEntries = maxEntries;
+		this.ttlNanos = unit.toNanos(ttl);
+		// A new entry is stored before the eldest one is evicted
+		this.offHeapStore = maxOffHeapLength > 0 ? new OffHeapSecretStore(maxEntries + 1, maxOffHeapLength) : null;
+		this.entries = new LinkedHashMap<String, CachedSecret>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedSecret> eldest) {
+				if (size() > SecretCache.this.maxEntries) {
+					wipe(eldest.getValue());
+					evictions.increment();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Gets a cached secret.
+	 *
+	 * @param encrypted the encrypted form of the secret.
+	 * @return the secret in plain text or <code>null</code> if it is not cached or has expired.
+	 */
+	public String get(String encrypted) {
+		synchronized (entries) {
+			CachedSecret entry = entries.get(encrypted);
+			if (entry != null && entry.isExpired(System.nanoTime())) {
+				wipe(entries.remove(encrypted));
+				evictions.increment();
+				entry = null;
+			}
+			if (entry == null) {
+				misses.increment();
+				return null;
+			}
+			hits.increment();
+			return offHeapStore != null ? CryptoBuffers.toStringAndWipe(offHeapStore.get(entry.slot))
+					: new String(entry.plainText);
+		}
+	}
+
+	/**
+	 * Puts a secret in the cache, evicting the least recently used one if the cache is full.
+	 *
+	 * @param encrypted the encrypted form of the secret.
+	 * @param plainText the secret in plain text.
+	 */
+	public void put(String encrypted, String plainText) {
+		long expiresAt = System.nanoTime() + ttlNanos;
+		if (offHeapStore == null) {
+			put(encrypted, new CachedSecret(plainText.toCharArray(), NO_SLOT, expiresAt));
+			return;
+		}
+		char[] chars = plainText.toCharArray();
+		try {
+			synchronized (entries) {
+				int slot = offHeapStore.put(chars);
+				if (slot == NO_SLOT) {
+					rejections.increment();
+					return;
+				}
+				put(encrypted, new CachedSecret(null, slot, expiresAt));
+			}
+		} finally {
+			Arrays.fill(chars, '\0');
+		}
+	}
+
+	/**
+	 * Puts an entry in the cache, clearing the one it replaces.
+	 *
+	 * @param encrypted the encrypted form of the secret.
+	 * @param entry     the entry.
+	 */
+	private void put(String encrypted, CachedSecret entry) {
+		synchronized (entries) {
+			CachedSecret previous = entries.put(encrypted, entry);
+			if (previous != null) {
+				wipe(previous);
+			}
+		}
+	}
+
+	/**
+	 * Clears the plain text of an entry that leaves the cache.
+	 *
+	 * @param entry the entry.
+	 */
+	private void wipe(CachedSecret entry) {
+		if (entry.plainText != null) {
+			Arrays.fill(entry.plainText, '\0');
+		} else {
+			offHeapStore.remove(entry.slot);
+		}
+	}
+
+	/**
+	 * Removes the expired secrets.
+	 */
+	public void removeExpired() {
+		long now = System.nanoTime();
+		synchronized (entries) {
+			Iterator<CachedSecret> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				CachedSecret entry = iterator.next();
+				if (entry.isExpired(now)) {
+					wipe(entry);
+					iterator.remove();
+					evictions.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all the secrets, clearing their plain text.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			for (CachedSecret entry : entries.values()) {
+				wipe(entry);
+			}
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Gets the number of cached secrets.
+	 *
+	 * @return the number of cached secrets.
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Gets the number of lookups that found a valid secret.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Gets the number of lookups that did not find a valid secret.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Gets the number of secrets removed because they have expired or the cache was full.
+	 *
+	 * @return the number of evictions.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Gets the number of secrets not cached because they are too long to be kept outside of the heap.
+	 *
+	 * @return the number of rejected secrets.
+	 */
+	public long getRejectionCount() {
+		return rejections.sum();
+	}
+
+	/**
+	 * Gets the memory allocated outside of the heap for the plain texts.
+	 *
+	 * @return the size in bytes of the memory, 0 if the plain texts are kept on the heap.
+	 */
+	public int getOffHeapMemorySize() {
+		return offHeapStore != null ? offHeapStore.getMemorySize() : 0;
+	}
+
+	/**
+	 * A cached secret.
+	 */
+	private static final class CachedSecret {
+
+		/** The secret in plain text, <code>null</code> if it is kept outside of the heap. **/
+		private final char[] plainText;
+		/** The slot of the secret in the off-heap store, {@link SecretCache#NO_SLOT} if it is kept on the heap. **/
+		private final int slot;
+		/** The time, as returned by {@link System#nanoTime()}, after which the entry is expired. **/
+		private final long expiresAt;
+
+		/**
+		 * Creates a new entry.
+		 *
+		 * @param plainText the secret in plain text.
+		 * @param slot      the slot of the secret in the off-heap store.
+		 * @param expiresAt the time after which the entry is expired.
+		 */
+		private CachedSecret(char[] plainText, int slot, long expiresAt) {
+			this.plainText = plainText;
+			this.slot = slot;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * Checks whether the entry is expired.
+		 *
+		 * @param now the current time, as returned by {@link System#nanoTime()}.
+		 * @return <code>true</code> if the entry is expired.
+		 */
+		private boolean isExpired(long now) {
+			return now - expiresAt > 0;
+		}
+	}
+}
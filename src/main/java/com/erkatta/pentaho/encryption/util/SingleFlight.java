@@ -0,0 +1,89 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent computations of the same key: while a computation is in flight, the threads that ask for the
+ * same key wait for it and share its result, or its error, instead of running the computation again. Nothing is
+ * kept once the computation completes, so that a later call computes again; results worth keeping belong to a cache.
+ *
+ * @author Marco Cattarin
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the results.
+ */
+public final class SingleFlight<K, V> {
+
+	/** The computations in flight, indexed by their key. **/
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	/** The number of calls that have shared a computation in flight. **/
+	private final LongAdder sharedCount = new LongAdder();
+
+	/**
+	 * Computes the result of a key, or waits for the computation in flight of the same key.
+	 *
+	 * @param key         the key.
+	 * @param computation the computation, run by the current thread if no other one is computing the key.
+	 * @return the result of the computation.
+	 * @throws RuntimeException the error of the computation.
+	 */
+	public V execute(K key, Supplier<V> computation) {
+		CompletableFuture<V> flight = new CompletableFuture<>();
+		CompletableFuture<V> sharedFlight = inFlight.putIfAbsent(key, flight);
+		if (sharedFlight != null) {
+			sharedCount.increment();
+			try {
+				return sharedFlight.join();
+			} catch (CompletionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw e;
+			}
+		}
+		try {
+			V result = computation.get();
+			flight.complete(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+
+	/**
+	 * Gets the number of calls that have shared a computation in flight instead of running it.
+	 *
+	 * @return the number of shared computations.
+	 */
+	public long getSharedCount() {
+		return sharedCount.sum();
+	}
+}
@@ -0,0 +1,201 @@
+package com.erkatta.pentaho.encryption.util;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A cryptographic utility that encrypts passwords with AES-GCM and a key derived from a master key, for the nodes
+ * that do not need to separate the encryption and decryption keys. The key is derived once, with HKDF-SHA256, and the
+ * passwords are decrypted through the buffers of {@link CryptoBuffers}, so that a decryption costs a few
+ * microseconds and allocates little more than the resulting password.
+ * <p>
+ * The encrypted data is made of:
+ * <ul>
+ * <li>the format version (1 byte);</li>
+ * <li>the AES-GCM initialization vector (12 bytes), random for every password;</li>
+ * <li>the AES-GCM encrypted data, including the authentication tag.</li>
+ * </ul>
+ * The version is authenticated as additional data.
+ *
+ * @author Marco Cattarin
+ *
+ */
+public final class SymmetricCryptoUtil {
+
+	/** The version of the encrypted data format. **/
+	public static final byte VERSION = 1;
+	/** The size in bytes of the generated master keys. **/
+	public static final int MASTER_KEY_LENGTH = 32;
+	/** The minimum size in bytes of the master keys. **/
+	public static final int MIN_MASTER_KEY_LENGTH = 16;
+
+	/** The transformation used to encrypt the passwords. **/
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	/** The size in bytes of the derived key. **/
+	private static final int KEY_LENGTH = 32;
+	/** The size in bytes of the initialization vectors. **/
+	private static final int IV_LENGTH = 12;
+	/** The size in bits of the authentication tags. **/
+	private static final int TAG_LENGTH = 128;
+	/** The algorithm of the key derivation. **/
+	private static final String KDF_ALGORITHM = "HmacSHA256";
+	/** The context of the key derivation, which binds the derived key to this use. **/
+	private static final byte[] KDF_INFO = "pdi-strong-encryption-plugin password encryption v1"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	/** The source of the initialization vectors and of the master keys. **/
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/** The AES ciphers, one for each thread. **/
+	private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(SymmetricCryptoUtil::newCipher);
+	/** The key derived from the master key. **/
+	private final SecretKeySpec key;
+
+	/**
+	 * Instantiates a new symmetric crypto utility, deriving its key.
+	 *
+	 * @param masterKey the master key, at least {@link #MIN_MASTER_KEY_LENGTH} random bytes; it is not kept.
+	 */
+	public SymmetricCryptoUtil(byte[] masterKey) {
+		if (masterKey.length < MIN_MASTER_KEY_LENGTH) {
+			throw new IllegalArgumentException("The master key must be at least " + MIN_MASTER_KEY_LENGTH + " bytes.");
+		}
+		byte[] derivedKey = deriveKey(masterKey);
+		key = new SecretKeySpec(derivedKey, "AES");
+		Arrays.fill(derivedKey, (byte) 0);
+	}
+
+	/**
+	 * Generates a random master key.
+	 *
+	 * @return the Base64 encoded master key.
+	 */
+	public static String generateMasterKey() {
+		byte[] masterKey = new byte[MASTER_KEY_LENGTH];
+		RANDOM.nextBytes(masterKey);
+		try {
+			return Base64.getEncoder().encodeToString(masterKey);
+		} finally {
+			Arrays.fill(masterKey, (byte) 0);
+		}
+	}
+
+	/**
+	 * Encrypts a password.
+	 *
+	 * @param data the password.
+	 * @return the Base64 encoded encrypted password.
+	 */
+	public String encrypt(CharSequence data) {
+		CryptoBuffers buffers = CryptoBuffers.get();
+		try {
+			ByteBuffer input = buffers.encodeUtf8(data);
+			ByteBuffer output = buffers.output(1 + IV_LENGTH + input.remaining() + TAG_LENGTH / 8);
+			byte[] iv = new byte[IV_LENGTH];
+			RANDOM.nextBytes(iv);
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+			cipher.updateAAD(new byte[] { VERSION });
+			output.put(VERSION).put(iv);
+			cipher.doFinal(input, output);
+			output.flip();
+			return Base64Codec.encode(output);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot encrypt data.", e);
+		} finally {
+			buffers.wipe();
+		}
+	}
+
+	/**
+	 * Decrypts a range of Base64 characters.
+	 *
+	 * @param data  the characters holding the encrypted password.
+	 * @param start the index of the first character.
+	 * @param end   the index after the last character.
+	 * @return the decrypted password, which the caller should wipe once used.
+	 */
+	public char[] decryptToChars(CharSequence data, int start, int end) {
+		CryptoBuffers buffers = CryptoBuffers.get();
+		try {
+			ByteBuffer input = buffers.decodeBase64(data, start, end);
+			if (input.remaining() < 1 + IV_LENGTH + TAG_LENGTH / 8 || input.get() != VERSION) {
+				throw new RuntimeException("Cannot decrypt data: unsupported format.");
+			}
+			byte[] array = input.array();
+			int ivOffset = input.arrayOffset() + input.position();
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, array, ivOffset, IV_LENGTH));
+			cipher.updateAAD(array, ivOffset - 1, 1);
+			input.position(input.position() + IV_LENGTH);
+			ByteBuffer output = buffers.output(input.remaining());
+			cipher.doFinal(input, output);
+			output.flip();
+			return buffers.decodeUtf8(output);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot decrypt data.", e);
+		} finally {
+			buffers.wipe();
+		}
+	}
+
+	/**
+	 * Derives the encryption key from the master key with HKDF-SHA256 (RFC 5869), without salt.
+	 *
+	 * @param masterKey the master key.
+	 * @return the derived key.
+	 */
+	private static byte[] deriveKey(byte[] masterKey) {
+		try {
+			Mac mac = Mac.getInstance(KDF_ALGORITHM);
+			mac.init(new SecretKeySpec(new byte[mac.getMacLength()], KDF_ALGORITHM));
+			byte[] pseudoRandomKey = mac.doFinal(masterKey);
+			mac.init(new SecretKeySpec(pseudoRandomKey, KDF_ALGORITHM));
+			Arrays.fill(pseudoRandomKey, (byte) 0);
+			mac.update(KDF_INFO);
+			mac.update((byte) 1);
+			byte[] derivedKey = mac.doFinal();
+			return derivedKey.length == KEY_LENGTH ? derivedKey : Arrays.copyOf(derivedKey, KEY_LENGTH);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot derive the encryption key.", e);
+		}
+	}
+
+	/**
+	 * Creates a new AES cipher.
+	 *
+	 * @return the new cipher.
+	 */
+	private static Cipher newCipher() {
+		try {
+			return Cipher.getInstance(TRANSFORMATION);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Cannot create a new cipher.", e);
+		}
+	}
+}
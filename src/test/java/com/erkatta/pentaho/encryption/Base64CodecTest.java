@@ -0,0 +1,79 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.erkatta.pentaho.encryption.util.Base64Codec;
+
+/**
+ * Test for the {@link Base64Codec}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class Base64CodecTest {
+
+	/**
+	 * Tests that data of every length is encoded and decoded as the JDK codec
+	 * does.
+	 */
+	@Test
+	public void testSameAsJdk() {
+		Random random = new Random(42);
+		for (int length = 0; length < 64; length++) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			String encoded = Base64.getEncoder().encodeToString(data);
+			Assertions.assertThat(Base64Codec.encode(ByteBuffer.wrap(data))).isEqualTo(encoded);
+			Assertions.assertThat(decode("prefix " + encoded, "prefix ".length())).isEqualTo(data);
+			String unpadded = Base64.getEncoder().withoutPadding().encodeToString(data);
+			Assertions.assertThat(decode(unpadded, 0)).isEqualTo(data);
+		}
+	}
+
+	/**
+	 * Tests that what the JDK decoder rejects is rejected.
+	 */
+	@Test
+	public void testInvalidInput() {
+		for (String invalid : Arrays.asList("A", "AB=", "ABC==", "AB=C", "A===", "AB\nCD", "AB-_", "=", "ABCD=")) {
+			Assertions.assertThatThrownBy(() -> Base64.getDecoder().decode(invalid))
+					.isInstanceOf(IllegalArgumentException.class);
+			Assertions.assertThatThrownBy(() -> decode(invalid, 0)).isInstanceOf(IllegalArgumentException.class);
+		}
+	}
+
+	/**
+	 * Decodes the characters of a string from an index.
+	 * 
+	 * @param encoded the string.
+	 * @param start   the index of the first character to decode.
+	 * @return the decoded bytes.
+	 */
+	private static byte[] decode(String encoded, int start) {
+		ByteBuffer output = ByteBuffer.allocate(Base64Codec.getMaxDecodedLength(encoded.length() - start));
+		Base64Codec.decode(encoded, start, encoded.length(), output);
+		return Arrays.copyOf(output.array(), output.position());
+	}
+}
@@ -0,0 +1,92 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.util.Base64;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.erkatta.pentaho.encryption.util.CiphertextHeader;
+import com.erkatta.pentaho.encryption.util.CiphertextHeader.Format;
+import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+
+/**
+ * Test for the {@link CiphertextHeader}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class CiphertextHeaderTest {
+
+	private static final String KETTLE_OBFUSCATED_PASSWORD = "6a757374616e6f60d8eddcab0bd39780bb18bd63c99dbdde";
+	private static final String PLAIN_TEXT_PASSWORD = "justatestpassword";
+
+	/**
+	 * Tests the detection of all the supported formats.
+	 */
+	@Test
+	public void testDetection() {
+		RsaCryptoUtil cryptoUtil = new RsaCryptoUtil();
+		String headerless = cryptoUtil.encrypt(PLAIN_TEXT_PASSWORD, cryptoUtil.generateKeyPair().getPublicKey());
+		CiphertextHeader header = new CiphertextHeader(CiphertextHeader.ALGORITHM_RSA, CiphertextHeader.MODE_DIRECT,
+				CiphertextHeader.NO_KEY_ID);
+		String withHeader = Base64.getEncoder().encodeToString(header.wrap(Base64.getDecoder().decode(headerless)));
+
+		Assertions.assertThat(CiphertextHeader.detect(withHeader)).isEqualTo(Format.HEADER);
+		Assertions.assertThat(CiphertextHeader.detect(headerless)).isEqualTo(Format.HEADERLESS);
+		Assertions.assertThat(CiphertextHeader.detect(KETTLE_OBFUSCATED_PASSWORD)).isEqualTo(Format.KETTLE_OBFUSCATED);
+		Assertions.assertThat(CiphertextHeader.detect(PLAIN_TEXT_PASSWORD)).isEqualTo(Format.UNKNOWN);
+		Assertions.assertThat(CiphertextHeader.detect("not base64!")).isEqualTo(Format.UNKNOWN);
+		Assertions.assertThat(CiphertextHeader.detect("")).isEqualTo(Format.UNKNOWN);
+		Assertions.assertThat(CiphertextHeader.detect(null)).isEqualTo(Format.UNKNOWN);
+	}
+
+	/**
+	 * Tests that a header is parsed back as it was written.
+	 */
+	@Test
+	public void testParse() {
+		CiphertextHeader header = new CiphertextHeader(CiphertextHeader.ALGORITHM_RSA,
+				CiphertextHeader.MODE_ENVELOPE, 1L);
+		CiphertextHeader parsedHeader = CiphertextHeader.parse(header.wrap(new byte[] { 1, 2, 3 }));
+		Assertions.assertThat(parsedHeader.getAlgorithm()).isEqualTo(CiphertextHeader.ALGORITHM_RSA);
+		Assertions.assertThat(parsedHeader.getMode()).isEqualTo(CiphertextHeader.MODE_ENVELOPE);
+		Assertions.assertThat(parsedHeader.getKeyId()).isEqualTo(1L);
+		Assertions.assertThat(parsedHeader.getLength()).isEqualTo(CiphertextHeader.LENGTH);
+	}
+
+	/**
+	 * Tests that a version 1 header, without key identifier, is still parsed.
+	 */
+	@Test
+	public void testParseVersion1() {
+		CiphertextHeader parsedHeader = CiphertextHeader.parse(new byte[] { 'S', 'P', 'E', 1, 1, 0, 42 });
+		Assertions.assertThat(parsedHeader.getAlgorithm()).isEqualTo(CiphertextHeader.ALGORITHM_RSA);
+		Assertions.assertThat(parsedHeader.getMode()).isEqualTo(CiphertextHeader.MODE_DIRECT);
+		Assertions.assertThat(parsedHeader.getKeyId()).isEqualTo(CiphertextHeader.NO_KEY_ID);
+		Assertions.assertThat(parsedHeader.getLength()).isEqualTo(6);
+	}
+
+	/**
+	 * Tests that data without header is rejected.
+	 */
+	@Test(expected = RuntimeException.class)
+	public void testParseMissingHeader() {
+		CiphertextHeader.parse(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+	}
+}
@@ -0,0 +1,236 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.contrib.java.lang.system.RestoreSystemProperties;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.core.exception.KettleException;
+
+import com.erkatta.pentaho.encryption.agent.DecryptionAgent;
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.om.CryptoResult;
+import com.erkatta.pentaho.encryption.util.KeyPairGenerator;
+import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+
+/**
+ * Test for the {@link DecryptionAgent}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class DecryptionAgentTest {
+
+	private static final String PLAIN_TEXT_PASSWORD = "justatestpassword";
+
+	/** This rule restores the system properties changed by a single test. **/
+	@Rule
+	public final RestoreSystemProperties restoreSystemProperties = new RestoreSystemProperties();
+
+	/** This rule provides a folder for the key files and the agent file. **/
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 * Tests that a client without the private key decodes through the agent,
+	 * one password at a time and in batches, and decodes in process once the
+	 * agent is stopped.
+	 * 
+	 * @throws KettleException in case of errors during the encoders
+	 *                         initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testDecodeThroughAgent() throws KettleException, IOException {
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		Path clientPrivateKeyFile = temporaryFolder.getRoot().toPath().resolve("client.private.key");
+		Path agentFile = temporaryFolder.getRoot().toPath().resolve("agent");
+		Base64EncodedKeyPair keyPair = new RsaCryptoUtil().generateKeyPair();
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), keyPair.getPrivateKey());
+		StrongPasswordEncoder agentEncoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				privateKeyFile.toString());
+		agentEncoder.init();
+		String password = agentEncoder.encode(PLAIN_TEXT_PASSWORD);
+
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_AGENT", "Y");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_AGENT_FILE", agentFile.toString());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_JMX", "Y");
+		StrongPasswordEncoder clientEncoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				clientPrivateKeyFile.toString());
+		clientEncoder.init();
+		try (DecryptionAgent agent = new DecryptionAgent(agentEncoder, 0, agentFile)) {
+			agent.start();
+			Assertions.assertThat(clientEncoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+			Assertions.assertThat(clientEncoder.decode(password.substring(password.indexOf(' ') + 1)))
+					.isEqualTo(PLAIN_TEXT_PASSWORD);
+			List<CryptoResult<String>> results = clientEncoder.decodeAll(Arrays.asList(password, "plain",
+					StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + "U1BFbroken"));
+			Assertions.assertThat(results.get(0).getValue()).isEqualTo(PLAIN_TEXT_PASSWORD);
+			Assertions.assertThat(results.get(1).getValue()).isEqualTo("plain");
+			Assertions.assertThat(results.get(2).isSuccessful()).isFalse();
+			// Collections that reject the lookup of null
+			Set<String> passwordSet = ConcurrentHashMap.newKeySet();
+			passwordSet.add(password);
+			Assertions.assertThat(clientEncoder.decodeAll(passwordSet)).extracting(CryptoResult::getValue)
+					.containsExactly(PLAIN_TEXT_PASSWORD);
+			Assertions.assertThat(clientEncoder.decodeAll(new TreeSet<>(passwordSet)))
+					.extracting(CryptoResult::getValue).containsExactly(PLAIN_TEXT_PASSWORD);
+			Assertions.assertThat(clientEncoder.getMetrics().getAgentDecodeCount()).isEqualTo(7);
+		}
+		Assertions.assertThat(agentFile).doesNotExist();
+		KeyPairGenerator.writeToFile(clientPrivateKeyFile.toString(), keyPair.getPrivateKey());
+		Assertions.assertThat(clientEncoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		clientEncoder.close();
+	}
+
+	/**
+	 * Tests that a batch much larger than the socket buffers and concurrent
+	 * decodes all go through the agent.
+	 * 
+	 * @throws KettleException in case of errors during the encoders
+	 *                         initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testLargeBatchThroughAgent() throws KettleException, IOException {
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		Path clientPrivateKeyFile = temporaryFolder.getRoot().toPath().resolve("client.private.key");
+		Path agentFile = temporaryFolder.getRoot().toPath().resolve("agent");
+		Base64EncodedKeyPair keyPair = new RsaCryptoUtil().generateKeyPair();
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), keyPair.getPrivateKey());
+		StrongPasswordEncoder agentEncoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				privateKeyFile.toString());
+		agentEncoder.init();
+		String password = agentEncoder.encode(PLAIN_TEXT_PASSWORD);
+
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_AGENT", "Y");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_AGENT_FILE", agentFile.toString());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_JMX", "Y");
+		StrongPasswordEncoder clientEncoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				clientPrivateKeyFile.toString());
+		clientEncoder.init();
+		try (DecryptionAgent agent = new DecryptionAgent(agentEncoder, 0, agentFile)) {
+			agent.start();
+			List<CryptoResult<String>> results = clientEncoder.decodeAll(Collections.nCopies(5000, password));
+			Assertions.assertThat(results).hasSize(5000)
+					.allMatch(result -> PLAIN_TEXT_PASSWORD.equals(result.getValue()));
+			IntStream.range(0, 200).parallel().forEach(i -> Assertions
+					.assertThat(clientEncoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD));
+			Assertions.assertThat(clientEncoder.getMetrics().getAgentDecodeCount()).isEqualTo(5200);
+			Assertions.assertThat(clientEncoder.getMetrics().getFallbackCount()).isZero();
+		}
+		clientEncoder.close();
+	}
+
+	/**
+	 * Tests that the connections above the limit are closed at once, and that a
+	 * client that does not send its token is disconnected.
+	 * 
+	 * @throws KettleException in case of errors during the encoders
+	 *                         initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testConnectionLimits() throws KettleException, IOException {
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		Path agentFile = temporaryFolder.getRoot().toPath().resolve("agent");
+		Base64EncodedKeyPair keyPair = new RsaCryptoUtil().generateKeyPair();
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), keyPair.getPrivateKey());
+		StrongPasswordEncoder agentEncoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				privateKeyFile.toString());
+		agentEncoder.init();
+		String password = agentEncoder.encode(PLAIN_TEXT_PASSWORD);
+
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_AGENT", "Y");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_AGENT_FILE", agentFile.toString());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_AGENT_MAX_CONNECTIONS", "1");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_JMX", "Y");
+		StrongPasswordEncoder clientEncoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				privateKeyFile.toString());
+		clientEncoder.init();
+		try (DecryptionAgent agent = new DecryptionAgent(agentEncoder, 0, agentFile);
+				Socket silentClient = new Socket(InetAddress.getLoopbackAddress(), agent.getPort())) {
+			agent.start();
+			Assertions.assertThat(clientEncoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+			Assertions.assertThat(clientEncoder.getMetrics().getAgentDecodeCount()).isZero();
+			Assertions.assertThat(clientEncoder.getMetrics().getFallbackCount()).isEqualTo(1);
+			silentClient.setSoTimeout(30000);
+			Assertions.assertThat(silentClient.getInputStream().read()).isEqualTo(-1);
+		}
+		clientEncoder.close();
+	}
+
+	/**
+	 * Tests that a client with a wrong token is rejected, and decodes in process.
+	 * 
+	 * @throws KettleException in case of errors during the encoders
+	 *                         initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testWrongToken() throws KettleException, IOException {
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		Path agentFile = temporaryFolder.getRoot().toPath().resolve("agent");
+		Base64EncodedKeyPair keyPair = new RsaCryptoUtil().generateKeyPair();
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), keyPair.getPrivateKey());
+		StrongPasswordEncoder agentEncoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				privateKeyFile.toString());
+		agentEncoder.init();
+		String password = agentEncoder.encode(PLAIN_TEXT_PASSWORD);
+
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_AGENT", "Y");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_AGENT_FILE", agentFile.toString());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_JMX", "Y");
+		StrongPasswordEncoder clientEncoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				privateKeyFile.toString());
+		clientEncoder.init();
+		try (DecryptionAgent agent = new DecryptionAgent(agentEncoder, 0, agentFile)) {
+			agent.start();
+			List<String> lines = Files.readAllLines(agentFile, StandardCharsets.US_ASCII);
+			Files.write(agentFile, Arrays.asList(lines.get(0), "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA="),
+					StandardCharsets.US_ASCII);
+			Assertions.assertThat(clientEncoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+			Assertions.assertThat(clientEncoder.getMetrics().getAgentDecodeCount()).isZero();
+			Assertions.assertThat(clientEncoder.getMetrics().getFallbackCount()).isEqualTo(1);
+		}
+		clientEncoder.close();
+	}
+}
@@ -0,0 +1,119 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.util.EcCryptoUtil;
+import com.erkatta.pentaho.encryption.util.EnvelopeCryptoUtil;
+
+/**
+ * Test for the {@link EcCryptoUtil}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class EcCryptoUtilTest {
+
+	private static final String PLAIN_TEXT_ASCII = "This is just a text sequence";
+	private static final String PLAIN_TEXT_UTF8 = "This is just a text sequence with  some UTF-8 characters: àèìòù";
+
+	/** The EC cryptographic utility to test. **/
+	private EcCryptoUtil cryptoUtil = new EcCryptoUtil();
+
+	/**
+	 * Test the transcryption using a string made of ASCII characters only.
+	 */
+	@Test
+	public void testTranscryptionAscii() {
+		testTranscryption(PLAIN_TEXT_ASCII);
+	}
+
+	/**
+	 * Test the transcryption using a string made of ASCII and UTF-8 characters.
+	 */
+	@Test
+	public void testTranscryptionUtf8() {
+		testTranscryption(PLAIN_TEXT_UTF8);
+	}
+
+	/**
+	 * Tests that ECIES has no size limit and that the same data is encrypted
+	 * differently every time.
+	 */
+	@Test
+	public void testTranscryptionLongData() {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		byte[] data = new byte[4096];
+		Arrays.fill(data, (byte) 'a');
+		byte[] encryptedData = cryptoUtil.encrypt(data, keyPair.getPublicKey());
+		Assertions.assertThat(encryptedData).hasSize(65 + 12 + data.length + 16)
+				.isNotEqualTo(cryptoUtil.encrypt(data, keyPair.getPublicKey()));
+		Assertions.assertThat(cryptoUtil.decrypt(encryptedData, keyPair.getPrivateKey())).isEqualTo(data);
+	}
+
+	/**
+	 * Tests that tampered data and data encrypted for another key pair are
+	 * rejected.
+	 */
+	@Test
+	public void testTamperedData() {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		byte[] encryptedData = cryptoUtil.encrypt(PLAIN_TEXT_ASCII.getBytes(), keyPair.getPublicKey());
+		byte[] tamperedData = encryptedData.clone();
+		tamperedData[tamperedData.length - 1] ^= 1;
+		Assertions.assertThatThrownBy(() -> cryptoUtil.decrypt(tamperedData, keyPair.getPrivateKey()))
+				.isInstanceOf(RuntimeException.class);
+		byte[] invalidPoint = encryptedData.clone();
+		invalidPoint[1] ^= 1;
+		Assertions.assertThatThrownBy(() -> cryptoUtil.decrypt(invalidPoint, keyPair.getPrivateKey()))
+				.isInstanceOf(RuntimeException.class);
+		Assertions.assertThatThrownBy(
+				() -> cryptoUtil.decrypt(encryptedData, cryptoUtil.generateKeyPair().getPrivateKey()))
+				.isInstanceOf(RuntimeException.class);
+	}
+
+	/**
+	 * Tests that EC keys can wrap the data keys of the envelope encryption.
+	 */
+	@Test
+	public void testEnvelopeTranscryption() {
+		EnvelopeCryptoUtil envelopeCryptoUtil = new EnvelopeCryptoUtil(cryptoUtil);
+		Base64EncodedKeyPair keyPair = envelopeCryptoUtil.generateKeyPair();
+		String encryptedData = envelopeCryptoUtil.encrypt(PLAIN_TEXT_UTF8, keyPair.getPublicKey());
+		Assertions.assertThat(envelopeCryptoUtil.decrypt(encryptedData, keyPair.getPrivateKey()))
+				.isEqualTo(PLAIN_TEXT_UTF8);
+	}
+
+	/**
+	 * Tests the transcryption of a text.
+	 * 
+	 * @param text the text to encrypt and decrypt.
+	 */
+	private void testTranscryption(String text) {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		String encryptedData = cryptoUtil.encrypt(text, keyPair.getPublicKey());
+		Assertions.assertThat(Base64.getDecoder().decode(encryptedData)).hasSize(65 + 12
+				+ text.getBytes(StandardCharsets.UTF_8).length + 16);
+		Assertions.assertThat(cryptoUtil.decrypt(encryptedData, keyPair.getPrivateKey())).isEqualTo(text);
+	}
+}
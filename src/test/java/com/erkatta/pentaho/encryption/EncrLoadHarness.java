@@ -0,0 +1,224 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.encryption.Encr;
+import org.pentaho.di.core.encryption.KettleTwoWayPasswordEncoder;
+import org.pentaho.di.core.exception.KettleException;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.util.EcCryptoUtil;
+import com.erkatta.pentaho.encryption.util.KeyPairGenerator;
+import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+
+/**
+ * A load harness that simulates many transformations starting at the same
+ * moment. The plugin is loaded by Kettle through the
+ * <code>kettle-password-encoder-plugins.xml</code> registration, as in a real
+ * installation, and every simulated transformation initialization decodes
+ * through {@link Encr} a mix of strong encrypted, Kettle obfuscated and plain
+ * text values. For each concurrency level the throughput and the 50th, 99th and
+ * 99.9th percentiles of the latency of a single decoding and of a whole
+ * initialization are reported.
+ * <p>
+ * The first argument, if present, is the number of initializations run by each
+ * thread; the following ones are the concurrency levels. The encoder is
+ * configured with the usual system properties; if no key path is set, a
+ * throwaway key pair is generated.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class EncrLoadHarness {
+
+	/** The concurrency levels used when none is specified. **/
+	private static final int[] DEFAULT_THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+	/** The number of initializations run by each thread when none is specified. **/
+	private static final int DEFAULT_INITS = 20;
+	/** The number of values decoded by a transformation initialization. **/
+	private static final int VALUES_PER_INIT = 8;
+	/** The number of distinct values each concurrency level picks from. **/
+	private static final int DISTINCT_VALUES = 64;
+
+	public static void main(String args[]) throws Exception {
+		int inits = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_INITS;
+		int[] threadCounts = DEFAULT_THREADS;
+		if (args.length > 1) {
+			threadCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				threadCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+		initKettleEncr();
+		// The first run warms up the JIT and the security provider and is not reported
+		run(Math.min(4, threadCounts[0]), inits, 0L);
+		System.out.println(String.format("%8s %10s %12s %10s %10s %10s %12s %12s %12s", "threads", "inits/s",
+				"decodes/s", "p50 us", "p99 us", "p999 us", "init p50 us", "init p99 us", "init p999 us"));
+		for (int threads : threadCounts) {
+			System.out.println(run(threads, inits, threads));
+		}
+	}
+
+	/**
+	 * Sets up the key pair, unless one is configured, and initializes the Kettle
+	 * encryption with the strong password encoder plugin.
+	 * 
+	 * @throws IOException     if the key pair cannot be written.
+	 * @throws KettleException if the plugin cannot be loaded.
+	 */
+	private static void initKettleEncr() throws IOException, KettleException {
+		if (System.getProperty("KETTLE_STRONG_PASSWORD_ENCODER_PUBKEY_PATH") == null) {
+			Path keyPath = Files.createTempDirectory("encr-load-harness");
+			keyPath.toFile().deleteOnExit();
+			Base64EncodedKeyPair keyPair = "EC"
+					.equalsIgnoreCase(System.getProperty("KETTLE_STRONG_PASSWORD_ENCODER_ALGORITHM"))
+							? new EcCryptoUtil().generateKeyPair()
+							: new RsaCryptoUtil().generateKeyPair();
+			for (String name : Arrays.asList("public.key", "private.key")) {
+				Path keyFile = keyPath.resolve(name);
+				KeyPairGenerator.writeToFile(keyFile.toString(),
+						name.startsWith("public") ? keyPair.getPublicKey() : keyPair.getPrivateKey());
+				keyFile.toFile().deleteOnExit();
+			}
+			System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PUBKEY_PATH", keyPath.toString() + File.separator);
+			System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PRIVKEY_PATH", keyPath.toString() + File.separator);
+		}
+		KettleClientEnvironment.init();
+		Encr.init("SPE");
+	}
+
+	/**
+	 * Runs a concurrency level: every thread waits for all the others before each
+	 * initialization, so that they all start at the same moment.
+	 * 
+	 * @param threads the number of concurrent initializations.
+	 * @param inits   the number of initializations run by each thread.
+	 * @param seed    the seed of the values, different values are decrypted at
+	 *                every level.
+	 * @return the report of the level.
+	 * @throws Exception if a value is not decoded correctly.
+	 */
+	private static String run(int threads, int inits, long seed) throws Exception {
+		List<String[]> values = createValues(new Random(seed));
+		long[][] decodeLatencies = new long[threads][inits * VALUES_PER_INIT];
+		long[][] initLatencies = new long[threads][inits];
+		CyclicBarrier barrier = new CyclicBarrier(threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int thread = 0; thread < threads; thread++) {
+			int index = thread;
+			futures.add(executor.submit(() -> {
+				Random random = new Random(seed * 1000 + index);
+				for (int init = 0; init < inits; init++) {
+					barrier.await();
+					long initStart = System.nanoTime();
+					for (int i = 0; i < VALUES_PER_INIT; i++) {
+						String[] value = values.get(random.nextInt(values.size()));
+						long decodeStart = System.nanoTime();
+						String decoded = Encr.decryptPasswordOptionallyEncrypted(value[0]);
+						decodeLatencies[index][init * VALUES_PER_INIT + i] = System.nanoTime() - decodeStart;
+						if (!value[1].equals(decoded)) {
+							throw new IllegalStateException("Wrong decoding of " + value[0]);
+						}
+					}
+					initLatencies[index][init] = System.nanoTime() - initStart;
+				}
+				return null;
+			}));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long[] decodes = sort(decodeLatencies);
+		long[] initializations = sort(initLatencies);
+		return String.format("%8d %10.0f %12.0f %10d %10d %10d %12d %12d %12d", threads,
+				initializations.length / seconds, decodes.length / seconds, percentile(decodes, 50) / 1000,
+				percentile(decodes, 99) / 1000, percentile(decodes, 99.9) / 1000,
+				percentile(initializations, 50) / 1000, percentile(initializations, 99) / 1000,
+				percentile(initializations, 99.9) / 1000);
+	}
+
+	/**
+	 * Creates the values decoded by the initializations, made of 50% strong
+	 * encrypted passwords, 25% passwords obfuscated by the default Kettle encoder
+	 * and 25% plain text passwords.
+	 * 
+	 * @param random the source of the passwords.
+	 * @return the encoded values, each followed by its plain text.
+	 */
+	private static List<String[]> createValues(Random random) {
+		List<String[]> values = new ArrayList<>();
+		for (int i = 0; i < DISTINCT_VALUES; i++) {
+			String password = "password-" + Long.toHexString(random.nextLong());
+			String encoded;
+			if (i % 4 < 2) {
+				encoded = Encr.encryptPasswordIfNotUsingVariables(password);
+			} else if (i % 4 == 2) {
+				encoded = KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX
+						+ KettleTwoWayPasswordEncoder.encryptPassword(password);
+			} else {
+				encoded = password;
+			}
+			values.add(new String[] { encoded, password });
+		}
+		return values;
+	}
+
+	/**
+	 * Merges and sorts the latencies of all the threads.
+	 * 
+	 * @param latencies the latencies of every thread.
+	 * @return all the latencies, sorted.
+	 */
+	private static long[] sort(long[][] latencies) {
+		long[] merged = Arrays.stream(latencies).flatMapToLong(Arrays::stream).toArray();
+		Arrays.sort(merged);
+		return merged;
+	}
+
+	/**
+	 * Gets a percentile of sorted latencies.
+	 * 
+	 * @param sorted     the sorted latencies.
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the latency in nanoseconds.
+	 */
+	private static long percentile(long[] sorted, double percentile) {
+		int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+}
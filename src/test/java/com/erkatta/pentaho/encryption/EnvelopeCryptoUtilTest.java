@@ -0,0 +1,130 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.nio.charset.StandardCharsets;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.util.EnvelopeCryptoUtil;
+import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+
+/**
+ * Test for the {@link EnvelopeCryptoUtil}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class EnvelopeCryptoUtilTest {
+
+	private static final String PLAIN_TEXT_UTF8 = "This is just a text sequence with  some UTF-8 characters: àèìòù";
+	private static final String PLAIN_TEXT_MORE_THAN_256_BYTES = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. Sed gravida vulputate eleifend. Vestibulum imperdiet purus sed diam vestibulum, a condimentum ligula elementum. Maecenas a volutpat dui. Suspendisse faucibus nunc at tortor vestibulum, quis volutpat. Fail!";
+
+	/** The envelope cryptographic utility to test. **/
+	private EnvelopeCryptoUtil cryptoUtil = new EnvelopeCryptoUtil(new RsaCryptoUtil());
+
+	/**
+	 * Test the transcryption using a string made of ASCII and UTF-8 characters.
+	 */
+	@Test
+	public void testTranscryptionUtf8() {
+		testTranscryption(PLAIN_TEXT_UTF8);
+	}
+
+	/**
+	 * Unlike plain RSA, envelope encryption has no size limit.
+	 */
+	@Test
+	public void testTranscryptionLongerThan256Bytes() {
+		testTranscryption(PLAIN_TEXT_MORE_THAN_256_BYTES);
+	}
+
+	/**
+	 * Tests that the data key is unwrapped only once for all the values it has
+	 * encrypted.
+	 */
+	@Test
+	public void testDataKeyReuse() {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		for (int i = 0; i < 3; i++) {
+			String ecryptedData = cryptoUtil.encrypt(PLAIN_TEXT_UTF8 + i, keyPair.getPublicKey());
+			Assertions.assertThat(cryptoUtil.decrypt(ecryptedData, keyPair.getPrivateKey()))
+					.isEqualTo(PLAIN_TEXT_UTF8 + i);
+		}
+		Assertions.assertThat(cryptoUtil.getDataKeyMissCount()).isEqualTo(1);
+		Assertions.assertThat(cryptoUtil.getDataKeyHitCount()).isEqualTo(2);
+	}
+
+	/**
+	 * Tests that tampered data is rejected.
+	 */
+	@Test(expected = RuntimeException.class)
+	public void testTamperedData() {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		byte[] ecryptedData = cryptoUtil.encrypt(PLAIN_TEXT_UTF8.getBytes(StandardCharsets.UTF_8),
+				keyPair.getPublicKey());
+		ecryptedData[ecryptedData.length - 1] ^= 1;
+		cryptoUtil.decrypt(ecryptedData, keyPair.getPrivateKey());
+	}
+
+	/**
+	 * Tests that a data key already unwrapped is not reused with another private
+	 * key, which cannot decrypt the data.
+	 */
+	@Test
+	public void testDataKeyBoundToPrivateKey() {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		Base64EncodedKeyPair otherKeyPair = cryptoUtil.generateKeyPair();
+		String ecryptedData = cryptoUtil.encrypt(PLAIN_TEXT_UTF8, keyPair.getPublicKey());
+		Assertions.assertThat(cryptoUtil.decrypt(ecryptedData, keyPair.getPrivateKey())).isEqualTo(PLAIN_TEXT_UTF8);
+		Assertions.assertThatThrownBy(() -> cryptoUtil.decrypt(ecryptedData, otherKeyPair.getPrivateKey()))
+				.isInstanceOf(RuntimeException.class);
+		Assertions.assertThat(cryptoUtil.decrypt(ecryptedData, keyPair.getPrivateKey())).isEqualTo(PLAIN_TEXT_UTF8);
+		Assertions.assertThat(cryptoUtil.getDataKeyHitCount()).isEqualTo(1);
+	}
+
+	/**
+	 * Tests that characters and a prefixed range of Base64 characters are
+	 * transcrypted without going through strings, and that the result matches the
+	 * string based methods.
+	 */
+	@Test
+	public void testCharsTranscryption() {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		String ecryptedData = "SPEnvelope " + cryptoUtil.encrypt(PLAIN_TEXT_UTF8.toCharArray(), keyPair.getPublicKey());
+		char[] decryptedData = cryptoUtil.decryptToChars(ecryptedData, "SPEnvelope ".length(), ecryptedData.length(),
+				keyPair.getPrivateKey());
+		Assertions.assertThat(decryptedData).isEqualTo(PLAIN_TEXT_UTF8.toCharArray());
+		Assertions.assertThat(cryptoUtil.decrypt(ecryptedData.substring("SPEnvelope ".length()),
+				keyPair.getPrivateKey())).isEqualTo(PLAIN_TEXT_UTF8);
+	}
+
+	/**
+	 * Tests the encoding and decoding capabilities of the envelope cryptographic
+	 * utility.
+	 * 
+	 * @param plainText the text to encrypt and decrypt.
+	 */
+	private void testTranscryption(String plainText) {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		String ecryptedData = cryptoUtil.encrypt(plainText, keyPair.getPublicKey());
+		String decryptedData = cryptoUtil.decrypt(ecryptedData, keyPair.getPrivateKey());
+		Assertions.assertThat(decryptedData).isEqualTo(plainText);
+	}
+}
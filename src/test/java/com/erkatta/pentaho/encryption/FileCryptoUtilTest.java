@@ -0,0 +1,153 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.assertj.core.api.Assertions;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.util.CiphertextHeader;
+import com.erkatta.pentaho.encryption.util.FileCryptoUtil;
+import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+
+/**
+ * Test for the {@link FileCryptoUtil}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class FileCryptoUtilTest {
+
+	/** The size in bytes of the chunks, small enough to have many chunks. **/
+	private static final int CHUNK_SIZE = 1000;
+
+	/** The RSA cryptographic utility that wraps the data keys. **/
+	private static final RsaCryptoUtil CRYPTOUTIL = new RsaCryptoUtil();
+
+	/** The test key pair. **/
+	private static Base64EncodedKeyPair keyPair;
+
+	/** The folder of the test files. **/
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 * Generates the test key pair.
+	 */
+	@BeforeClass
+	public static void generateKeyPair() {
+		keyPair = CRYPTOUTIL.generateKeyPair();
+	}
+
+	/**
+	 * Tests that files of different sizes, including empty files and files made
+	 * of whole chunks, are decrypted to the original content.
+	 * 
+	 * @throws IOException in case of errors reading or writing the files.
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		FileCryptoUtil fileCryptoUtil = new FileCryptoUtil(CHUNK_SIZE, 4);
+		for (int size : new int[] { 0, 1, CHUNK_SIZE, 3 * CHUNK_SIZE, 10 * CHUNK_SIZE + 7 }) {
+			byte[] content = randomBytes(size);
+			Path plain = temporaryFolder.newFile().toPath();
+			Path encrypted = temporaryFolder.newFile().toPath();
+			Path decrypted = temporaryFolder.newFile().toPath();
+			Files.write(plain, content);
+			encrypt(fileCryptoUtil, plain, encrypted);
+			Assertions.assertThat(Files.size(encrypted)).isGreaterThan(size);
+			decrypt(fileCryptoUtil, encrypted, decrypted);
+			Assertions.assertThat(Files.readAllBytes(decrypted)).isEqualTo(content);
+		}
+	}
+
+	/**
+	 * Tests that a tampered or truncated file is not decrypted, and that the
+	 * partially decrypted file is deleted.
+	 * 
+	 * @throws IOException in case of errors reading or writing the files.
+	 */
+	@Test
+	public void testTampering() throws IOException {
+		FileCryptoUtil fileCryptoUtil = new FileCryptoUtil(CHUNK_SIZE, 4);
+		Path plain = temporaryFolder.newFile().toPath();
+		Path encrypted = temporaryFolder.newFile().toPath();
+		Path decrypted = temporaryFolder.getRoot().toPath().resolve("decrypted");
+		Files.write(plain, randomBytes(5 * CHUNK_SIZE));
+		encrypt(fileCryptoUtil, plain, encrypted);
+		byte[] data = Files.readAllBytes(encrypted);
+
+		byte[] tampered = data.clone();
+		tampered[tampered.length - 2 * CHUNK_SIZE] ^= 1;
+		Files.write(encrypted, tampered);
+		Assertions.assertThatThrownBy(() -> decrypt(fileCryptoUtil, encrypted, decrypted))
+				.isInstanceOf(RuntimeException.class);
+		Assertions.assertThat(decrypted).doesNotExist();
+
+		Files.write(encrypted, Arrays.copyOf(data, data.length - CHUNK_SIZE - 16));
+		Assertions.assertThatThrownBy(() -> decrypt(fileCryptoUtil, encrypted, decrypted))
+				.isInstanceOf(RuntimeException.class);
+		Assertions.assertThat(decrypted).doesNotExist();
+	}
+
+	/**
+	 * Encrypts a file with the test key pair.
+	 * 
+	 * @param fileCryptoUtil the file cryptographic utility.
+	 * @param source         the file to encrypt.
+	 * @param target         the encrypted file.
+	 * @throws IOException in case of errors reading or writing the files.
+	 */
+	private static void encrypt(FileCryptoUtil fileCryptoUtil, Path source, Path target) throws IOException {
+		fileCryptoUtil.encrypt(source, target, new CiphertextHeader(CiphertextHeader.ALGORITHM_RSA,
+				CiphertextHeader.MODE_ENVELOPE, CiphertextHeader.NO_KEY_ID), CRYPTOUTIL, keyPair.getPublicKey());
+	}
+
+	/**
+	 * Decrypts a file with the test key pair.
+	 * 
+	 * @param fileCryptoUtil the file cryptographic utility.
+	 * @param source         the file to decrypt.
+	 * @param target         the decrypted file.
+	 * @throws IOException in case of errors reading or writing the files.
+	 */
+	private static void decrypt(FileCryptoUtil fileCryptoUtil, Path source, Path target) throws IOException {
+		fileCryptoUtil.decrypt(source, target,
+				(header, wrappedKey) -> CRYPTOUTIL.decrypt(wrappedKey, keyPair.getPrivateKey()));
+	}
+
+	/**
+	 * Generates random bytes.
+	 * 
+	 * @param length the number of bytes.
+	 * @return the random bytes.
+	 */
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,81 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.util.KeyPairGenerator;
+import com.erkatta.pentaho.encryption.util.KeyPairPool;
+import com.erkatta.pentaho.encryption.util.KeyRing;
+
+/**
+ * Test for the {@link KeyPairPool}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class KeyPairPoolTest {
+
+	/**
+	 * Tests that the pool is filled in background and hands out distinct key
+	 * pairs, also when it is empty.
+	 */
+	@Test
+	public void testTake() throws InterruptedException {
+		try (KeyPairPool pool = new KeyPairPool(() -> KeyPairGenerator.generateKeyPair("EC", 256), 3, 2)) {
+			long deadline = System.currentTimeMillis() + 10000L;
+			while (pool.size() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10L);
+			}
+			Assertions.assertThat(pool.size()).isEqualTo(3);
+			Base64EncodedKeyPair first = pool.take();
+			Base64EncodedKeyPair second = pool.take();
+			Assertions.assertThat(first.getPrivateKey()).isNotEqualTo(second.getPrivateKey());
+			pool.close();
+			Assertions.assertThatThrownBy(pool::take).isInstanceOf(IllegalStateException.class);
+		}
+	}
+
+	/**
+	 * Tests that many key pairs are generated into numbered key files, which can
+	 * be loaded as a key ring, without overwriting existing key files.
+	 */
+	@Test
+	public void testGenerateToFiles() throws IOException {
+		Path directory = Files.createTempDirectory("keys");
+		KeyPairGenerator.main(new String[] { "EC", "256", "3", directory.toString() });
+		Assertions.assertThat(directory.resolve("key-001" + KeyRing.PUBLIC_KEY_SUFFIX)).exists();
+		Assertions.assertThat(directory.resolve("key-003" + KeyRing.PRIVATE_KEY_SUFFIX)).exists();
+		String publicKey = new String(Files.readAllBytes(directory.resolve("key-001" + KeyRing.PUBLIC_KEY_SUFFIX)),
+				StandardCharsets.UTF_8);
+		Assertions.assertThatThrownBy(() -> KeyPairGenerator.generateToFiles("EC", 256, 2, directory))
+				.isInstanceOf(FileAlreadyExistsException.class);
+		Assertions.assertThat(directory.resolve("key-001" + KeyRing.PUBLIC_KEY_SUFFIX)).hasContent(publicKey);
+		Assertions.assertThatThrownBy(() -> KeyPairGenerator.generateToFiles("EC", 256, 0, directory))
+				.isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> KeyPairGenerator.generateKeyPair("RSA", 1024))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+}
@@ -0,0 +1,61 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.erkatta.pentaho.encryption.util.LatencyHistogram;
+
+/**
+ * Test for the {@link LatencyHistogram}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class LatencyHistogramTest {
+
+	/**
+	 * Tests the count, the mean, the maximum and the percentiles.
+	 */
+	@Test
+	public void testRecord() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 99; i++) {
+			histogram.record(1000L);
+		}
+		histogram.record(1000000L);
+		Assertions.assertThat(histogram.getCount()).isEqualTo(100);
+		Assertions.assertThat(histogram.getMeanNanos()).isEqualTo(10990L);
+		Assertions.assertThat(histogram.getMaxNanos()).isEqualTo(1000000L);
+		Assertions.assertThat(histogram.getPercentileNanos(50)).isBetween(1000L, 2047L);
+		Assertions.assertThat(histogram.getPercentileNanos(100)).isEqualTo(1000000L);
+	}
+
+	/**
+	 * Tests that the histogram is empty after a reset.
+	 */
+	@Test
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000L);
+		histogram.reset();
+		Assertions.assertThat(histogram.getCount()).isZero();
+		Assertions.assertThat(histogram.getMaxNanos()).isZero();
+		Assertions.assertThat(histogram.getPercentileNanos(99)).isZero();
+	}
+}
@@ -0,0 +1,138 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.core.exception.KettleException;
+
+import com.erkatta.pentaho.encryption.PasswordEncodingTool.Format;
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.util.KeyPairGenerator;
+import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+
+/**
+ * Test for the {@link PasswordEncodingTool}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class PasswordEncodingToolTest {
+
+	private static final Pattern ENCRYPTED_PASSWORD = Pattern
+			.compile(Pattern.quote(StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX) + "[A-Za-z0-9+/=]+");
+
+	/** The folder holding the key pair. **/
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/** The encoder that uses the test key pair. **/
+	private StrongPasswordEncoder encoder;
+
+	/**
+	 * Generates the test key pair.
+	 * 
+	 * @throws IOException     if the key files cannot be written.
+	 * @throws KettleException if the encoder cannot be initialized.
+	 */
+	@Before
+	public void setUp() throws IOException, KettleException {
+		Base64EncodedKeyPair keyPair = new RsaCryptoUtil().generateKeyPair();
+		Path publicKeyFile = folder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = folder.getRoot().toPath().resolve("private.key");
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), keyPair.getPrivateKey());
+		encoder = new StrongPasswordEncoder(publicKeyFile.toString(), privateKeyFile.toString());
+		encoder.init();
+	}
+
+	/**
+	 * Tests that many passwords are encoded in parallel and written in the input
+	 * order.
+	 */
+	@Test
+	public void testLines() throws IOException {
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			input.append("password").append(i).append('\n');
+		}
+		String[] output = encode(Format.LINES, 0, null, input.toString()).split("\n");
+		Assertions.assertThat(output).hasSize(300);
+		for (int i = 0; i < 300; i++) {
+			Assertions.assertThat(encoder.decode(output[i], true)).isEqualTo("password" + i);
+		}
+	}
+
+	/**
+	 * Tests that the password of key=value, CSV and JSON records is encoded and
+	 * the rest of the record is kept.
+	 */
+	@Test
+	public void testRecordFormats() throws IOException {
+		Assertions.assertThat(decodeAll(encode(Format.KEYVALUE, 0, null, "# comment\ndb.password=p=1\n")))
+				.isEqualTo("# comment\ndb.password=p=1\n");
+		Assertions.assertThat(decodeAll(encode(Format.CSV, 2, null, "db,\"p,\"\"1\",x\nweb,p2,y\n")))
+				.isEqualTo("db,p,\"1,x\nweb,p2,y\n");
+		Assertions.assertThat(decodeAll(encode(Format.JSONL, 0, "password",
+				"{\"name\": \"password\", \"nested\": {\"password\": 1}, \"password\": \"p\\\"1\\u0041\"}\n")))
+				.isEqualTo("{\"name\": \"password\", \"nested\": {\"password\": 1}, \"password\": \"p\"1A\"}\n");
+		Assertions.assertThatThrownBy(() -> encode(Format.JSONL, 0, "password", "{\"user\": \"u\"}\n"))
+				.hasMessage("Cannot encode record 1.");
+	}
+
+	/**
+	 * Encodes the records of a string.
+	 * 
+	 * @param format the format of the records.
+	 * @param column the column of the CSV records.
+	 * @param field  the field of the JSON records.
+	 * @param input  the records.
+	 * @return the encoded records.
+	 */
+	private String encode(Format format, int column, String field, String input) throws IOException {
+		StringWriter output = new StringWriter();
+		new PasswordEncodingTool(encoder, format, 4, column, field)
+				.encode(new BufferedReader(new StringReader(input)), output);
+		return output.toString();
+	}
+
+	/**
+	 * Decodes all the encrypted passwords of a text.
+	 * 
+	 * @param text the text.
+	 * @return the text with the passwords in plain text.
+	 */
+	private String decodeAll(String text) {
+		Matcher matcher = ENCRYPTED_PASSWORD.matcher(text);
+		StringBuffer decodedText = new StringBuffer();
+		while (matcher.find()) {
+			matcher.appendReplacement(decodedText, Matcher.quoteReplacement(encoder.decode(matcher.group(), true)));
+		}
+		return matcher.appendTail(decodedText).toString();
+	}
+}
@@ -0,0 +1,226 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.contrib.java.lang.system.RestoreSystemProperties;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.core.encryption.KettleTwoWayPasswordEncoder;
+import org.pentaho.di.core.exception.KettleException;
+
+import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.util.KeyPairGenerator;
+import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
+
+/**
+ * Test for the {@link PasswordMigrationTool}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class PasswordMigrationToolTest {
+
+	private static final String KETTLE_OBFUSCATED_PASSWORD = "6a757374616e6f60d8eddcab0bd39780bb18bd63c99dbdde";
+	private static final String KETTLE_PLAIN_TEXT_PASSWORD = "justanobfuscatedpassword";
+	private static final String PLAIN_TEXT_PASSWORD = "justatestpassword";
+	private static final String COMMENTED_PASSWORD = "# OLD_PASSWORD="
+			+ KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + KETTLE_OBFUSCATED_PASSWORD;
+	private static final String DESCRIBED_PASSWORD = "The password was "
+			+ KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + KETTLE_OBFUSCATED_PASSWORD;
+	private static final Pattern ENCRYPTED_PASSWORD = Pattern
+			.compile(Pattern.quote(StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX) + "[A-Za-z0-9+/=]+");
+
+	/** The folder holding the key pairs and the files to migrate. **/
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/** This rule restores the system properties changed by a single test. **/
+	@Rule
+	public final RestoreSystemProperties restoreSystemProperties = new RestoreSystemProperties();
+
+	/** The public and the private key files of the new key pair. **/
+	private Path[] newKeyFiles;
+
+	/** The encoder that uses the old key pair. **/
+	private StrongPasswordEncoder oldEncoder;
+	/** The encoder that uses the new key pair. **/
+	private StrongPasswordEncoder newEncoder;
+	/** The encoder that decrypts with the old key pair and encrypts with the new one. **/
+	private StrongPasswordEncoder migrationEncoder;
+
+	/**
+	 * Generates the old and the new key pairs.
+	 * 
+	 * @throws IOException     if the key files cannot be written.
+	 * @throws KettleException if the encoders cannot be initialized.
+	 */
+	@Before
+	public void setUp() throws IOException, KettleException {
+		RsaCryptoUtil cryptoUtil = new RsaCryptoUtil();
+		Path[] oldKeyPair = writeKeyPair("old", cryptoUtil.generateKeyPair());
+		Path[] newKeyPair = writeKeyPair("new", cryptoUtil.generateKeyPair());
+		newKeyFiles = newKeyPair;
+		oldEncoder = new StrongPasswordEncoder(oldKeyPair[0].toString(), oldKeyPair[1].toString());
+		oldEncoder.init();
+		newEncoder = new StrongPasswordEncoder(newKeyPair[0].toString(), newKeyPair[1].toString());
+		newEncoder.init();
+		migrationEncoder = new StrongPasswordEncoder(newKeyPair[0].toString(), oldKeyPair[1].toString());
+		migrationEncoder.init();
+	}
+
+	/**
+	 * Tests the migration of legacy and RSA encrypted passwords in properties and
+	 * XML files.
+	 * 
+	 * @throws IOException if the files cannot be read or written.
+	 */
+	@Test
+	public void testMigration() throws IOException {
+		Path properties = folder.newFile("kettle.properties").toPath();
+		write(properties, "# comment\r\nDB_PASSWORD=" + oldEncoder.encode(PLAIN_TEXT_PASSWORD) + "\r\nLEGACY_PASSWORD="
+				+ KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + KETTLE_OBFUSCATED_PASSWORD + "\r\n"
+				+ COMMENTED_PASSWORD + "\r\nNOTE=see " + KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX
+				+ KETTLE_OBFUSCATED_PASSWORD + "\r\n");
+		Path transformation = folder.newFolder("jobs").toPath().resolve("test.ktr");
+		write(transformation, "<transformation>\n  <password>" + oldEncoder.encode(PLAIN_TEXT_PASSWORD)
+				+ "</password>\n  <password>${PASSWORD}</password>\n  <description>" + DESCRIBED_PASSWORD
+				+ "</description>\n</transformation>");
+		Path other = folder.newFile("notes.txt").toPath();
+		write(other, "PASSWORD=" + KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + KETTLE_OBFUSCATED_PASSWORD);
+
+		PasswordMigrationTool.Report report = new PasswordMigrationTool(migrationEncoder, 2, false, false)
+				.migrate(folder.getRoot().toPath());
+
+		Assertions.assertThat(report.getScannedFiles()).isEqualTo(2);
+		Assertions.assertThat(report.getModifiedFiles()).isEqualTo(2);
+		Assertions.assertThat(report.getMigratedValues()).isEqualTo(3);
+		Assertions.assertThat(report.getFailedValues()).isZero();
+		String migratedProperties = read(properties);
+		Assertions.assertThat(migratedProperties).startsWith("# comment\r\nDB_PASSWORD=SPEncrypted ")
+				.contains("\r\nLEGACY_PASSWORD=SPEncrypted ").endsWith("\r\n");
+		Assertions.assertThat(decodeAll(migratedProperties)).isEqualTo(PLAIN_TEXT_PASSWORD + KETTLE_PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(migratedProperties).contains(COMMENTED_PASSWORD)
+				.contains("NOTE=see " + KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX);
+		String migratedTransformation = read(transformation);
+		Assertions.assertThat(migratedTransformation).contains("<password>${PASSWORD}</password>");
+		Assertions.assertThat(migratedTransformation).contains("<description>" + DESCRIBED_PASSWORD + "</description>");
+		Assertions.assertThat(decodeAll(migratedTransformation)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(read(other)).contains(KETTLE_OBFUSCATED_PASSWORD);
+	}
+
+	/**
+	 * Tests that the encode cache does not keep the passwords encrypted with the
+	 * old key pair, with and without header, when the migration encoder decrypts
+	 * them with the old private key.
+	 * 
+	 * @throws IOException     if the files cannot be read or written.
+	 * @throws KettleException if the encoders cannot be initialized.
+	 */
+	@Test
+	public void testMigrationWithEncodeCache() throws IOException, KettleException {
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_ENCODE_CACHE_SIZE", "10");
+		for (String header : new String[] { "N", "Y" }) {
+			System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_HEADER", header);
+			Path directory = folder.newFolder("header" + header).toPath();
+			Path[] oldKeyPair = writeKeyPair("old" + header, new RsaCryptoUtil().generateKeyPair());
+			StrongPasswordEncoder headerOldEncoder = new StrongPasswordEncoder(oldKeyPair[0].toString(),
+					oldKeyPair[1].toString());
+			headerOldEncoder.init();
+			StrongPasswordEncoder cachingMigrationEncoder = new StrongPasswordEncoder(
+					newKeyFiles[0].toString(), oldKeyPair[1].toString());
+			cachingMigrationEncoder.init();
+			Path properties = directory.resolve("kettle.properties");
+			write(properties, "DB_PASSWORD=" + headerOldEncoder.encode(PLAIN_TEXT_PASSWORD) + "\nOTHER_PASSWORD="
+					+ headerOldEncoder.encode(PLAIN_TEXT_PASSWORD) + "\n");
+
+			PasswordMigrationTool.Report report = new PasswordMigrationTool(cachingMigrationEncoder, 1, false, false)
+					.migrate(directory);
+
+			Assertions.assertThat(report.getMigratedValues()).isEqualTo(2);
+			Assertions.assertThat(report.getFailedValues()).isZero();
+			Assertions.assertThat(decodeAll(read(properties))).isEqualTo(PLAIN_TEXT_PASSWORD + PLAIN_TEXT_PASSWORD);
+		}
+	}
+
+	/**
+	 * Tests that a dry run does not modify files.
+	 * 
+	 * @throws IOException if the files cannot be read or written.
+	 */
+	@Test
+	public void testDryRun() throws IOException {
+		Path properties = folder.newFile("kettle.properties").toPath();
+		String content = "LEGACY_PASSWORD=" + KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX
+				+ KETTLE_OBFUSCATED_PASSWORD;
+		write(properties, content);
+		PasswordMigrationTool.Report report = new PasswordMigrationTool(migrationEncoder, 1, true, true)
+				.migrate(folder.getRoot().toPath());
+		Assertions.assertThat(report.getMigratedValues()).isEqualTo(1);
+		Assertions.assertThat(report.getModifiedFiles()).isZero();
+		Assertions.assertThat(read(properties)).isEqualTo(content);
+	}
+
+	/**
+	 * Decodes with the new key pair all the encrypted passwords found in a text.
+	 * 
+	 * @param text the text.
+	 * @return the concatenation of the decoded passwords.
+	 */
+	private String decodeAll(String text) {
+		StringBuilder passwords = new StringBuilder();
+		Matcher matcher = ENCRYPTED_PASSWORD.matcher(text);
+		while (matcher.find()) {
+			passwords.append(newEncoder.decode(matcher.group(), true));
+		}
+		return passwords.toString();
+	}
+
+	/**
+	 * Writes a key pair in the temporary folder.
+	 * 
+	 * @param name    the name of the key pair.
+	 * @param keyPair the key pair.
+	 * @return the public and the private key files.
+	 * @throws IOException if the key files cannot be written.
+	 */
+	private Path[] writeKeyPair(String name, Base64EncodedKeyPair keyPair) throws IOException {
+		Path directory = folder.newFolder(name).toPath();
+		Path publicKey = directory.resolve("public.key");
+		Path privateKey = directory.resolve("private.key");
+		KeyPairGenerator.writeToFile(publicKey.toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKey.toString(), keyPair.getPrivateKey());
+		return new Path[] { publicKey, privateKey };
+	}
+
+	private static void write(Path file, String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String read(Path file) throws IOException {
+		return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+	}
+}
@@ -16,10 +16,19 @@ package com.erkatta.pentaho.encryption;
  * <http://www.gnu.org/licenses/lgpl-2.1.html>.
  */
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 
 import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.om.CryptoResult;
 import com.erkatta.pentaho.encryption.util.AsymmetricCryptoUtil;
 import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
 
@@ -65,6 +74,92 @@ public class RsaCryptoUtilTest {
 		testTranscryption(PLAIN_TEXT_MORE_THAN_256_BYTES);
 	}
 
+	/**
+	 * Tests that keys are parsed only once and then reused from the cache.
+	 */
+	@Test
+	public void testParsedKeyCache() {
+		RsaCryptoUtil rsaCryptoUtil = new RsaCryptoUtil();
+		Base64EncodedKeyPair keyPair = rsaCryptoUtil.generateKeyPair();
+		for (int i = 0; i < 3; i++) {
+			String ecryptedData = rsaCryptoUtil.encrypt(PLAIN_TEXT_ASCII, keyPair.getPublicKey());
+			Assertions.assertThat(rsaCryptoUtil.decrypt(ecryptedData, keyPair.getPrivateKey())).isEqualTo(PLAIN_TEXT_ASCII);
+		}
+		Assertions.assertThat(rsaCryptoUtil.getPublicKeyCache().getMissCount()).isEqualTo(1);
+		Assertions.assertThat(rsaCryptoUtil.getPublicKeyCache().getHitCount()).isEqualTo(2);
+		Assertions.assertThat(rsaCryptoUtil.getPrivateKeyCache().getMissCount()).isEqualTo(1);
+		Assertions.assertThat(rsaCryptoUtil.getPrivateKeyCache().getHitCount()).isEqualTo(2);
+	}
+
+	/**
+	 * Tests that clearing the utility forgets the parsed keys and releases the
+	 * ciphers of the other threads, which are created again on next use.
+	 * 
+	 * @throws Exception if the other thread fails.
+	 */
+	@Test
+	public void testClear() throws Exception {
+		RsaCryptoUtil rsaCryptoUtil = new RsaCryptoUtil();
+		Base64EncodedKeyPair keyPair = rsaCryptoUtil.generateKeyPair();
+		String encryptedData = rsaCryptoUtil.encrypt(PLAIN_TEXT_ASCII, keyPair.getPublicKey());
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Callable<String> decryption = () -> rsaCryptoUtil.decrypt(encryptedData, keyPair.getPrivateKey());
+			Assertions.assertThat(executor.submit(decryption).get()).isEqualTo(PLAIN_TEXT_ASCII);
+			rsaCryptoUtil.clear();
+			Assertions.assertThat(rsaCryptoUtil.getPublicKeyCache().size()).isZero();
+			Assertions.assertThat(rsaCryptoUtil.getPrivateKeyCache().size()).isZero();
+			Assertions.assertThat(executor.submit(decryption).get()).isEqualTo(PLAIN_TEXT_ASCII);
+			Assertions.assertThat(rsaCryptoUtil.getPrivateKeyCache().getMissCount()).isEqualTo(2);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests the transcryption performed concurrently by several threads sharing the same utility.
+	 * 
+	 * @throws Exception if a thread fails.
+	 */
+	@Test
+	public void testConcurrentTranscryption() throws Exception {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 64; i++) {
+				String plainText = PLAIN_TEXT_ASCII + i;
+				results.add(executor.submit(() -> cryptoUtil
+						.decrypt(cryptoUtil.encrypt(plainText, keyPair.getPublicKey()), keyPair.getPrivateKey())));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				Assertions.assertThat(results.get(i).get()).isEqualTo(PLAIN_TEXT_ASCII + i);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests the batch transcryption, checking that results keep the input order
+	 * and that a failed item does not affect the others.
+	 */
+	@Test
+	public void testBatchTranscryption() {
+		Base64EncodedKeyPair keyPair = cryptoUtil.generateKeyPair();
+		List<String> plainTexts = Arrays.asList(PLAIN_TEXT_ASCII, PLAIN_TEXT_MORE_THAN_256_BYTES, PLAIN_TEXT_UTF8);
+		List<CryptoResult<String>> encryptedData = cryptoUtil.encryptAll(plainTexts, keyPair.getPublicKey());
+		Assertions.assertThat(encryptedData).hasSize(3);
+		Assertions.assertThat(encryptedData.get(1).isSuccessful()).isFalse();
+		Assertions.assertThat(encryptedData.get(1).getError()).isNotNull();
+		List<String> validEncryptedData = Arrays.asList(encryptedData.get(0).getValue(),
+				encryptedData.get(2).getValue());
+		List<CryptoResult<String>> decryptedData = cryptoUtil.decryptAll(validEncryptedData,
+				keyPair.getPrivateKey());
+		Assertions.assertThat(decryptedData).extracting(CryptoResult::getValue).containsExactly(PLAIN_TEXT_ASCII,
+				PLAIN_TEXT_UTF8);
+	}
+
 	/**
 	 * Tests the encoding and decoding capabilities of the RSA cryptographic
 	 * utility.
@@ -0,0 +1,123 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.erkatta.pentaho.encryption.util.SecretCache;
+
+/**
+ * Test for the {@link SecretCache}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class SecretCacheTest {
+
+	private static final String ENCRYPTED_PASSWORD_1 = "encrypted1";
+	private static final String ENCRYPTED_PASSWORD_2 = "encrypted2";
+	private static final String ENCRYPTED_PASSWORD_3 = "encrypted3";
+	private static final String PLAIN_TEXT_PASSWORD_1 = "password1";
+	private static final String PLAIN_TEXT_PASSWORD_2 = "password2";
+	private static final String PLAIN_TEXT_PASSWORD_3 = "password3";
+
+	/**
+	 * Tests that cached passwords are returned and unknown ones are not.
+	 */
+	@Test
+	public void testGet() {
+		SecretCache cache = new SecretCache(10, 1, TimeUnit.MINUTES);
+		cache.put(ENCRYPTED_PASSWORD_1, PLAIN_TEXT_PASSWORD_1);
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_1)).isEqualTo(PLAIN_TEXT_PASSWORD_1);
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_2)).isNull();
+		Assertions.assertThat(cache.getHitCount()).isEqualTo(1);
+		Assertions.assertThat(cache.getMissCount()).isEqualTo(1);
+	}
+
+	/**
+	 * Tests that the least recently used password is evicted when the cache is
+	 * full.
+	 */
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		SecretCache cache = new SecretCache(2, 1, TimeUnit.MINUTES);
+		cache.put(ENCRYPTED_PASSWORD_1, PLAIN_TEXT_PASSWORD_1);
+		cache.put(ENCRYPTED_PASSWORD_2, PLAIN_TEXT_PASSWORD_2);
+		cache.get(ENCRYPTED_PASSWORD_1);
+		cache.put(ENCRYPTED_PASSWORD_3, PLAIN_TEXT_PASSWORD_3);
+		Assertions.assertThat(cache.size()).isEqualTo(2);
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_1)).isEqualTo(PLAIN_TEXT_PASSWORD_1);
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_2)).isNull();
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_3)).isEqualTo(PLAIN_TEXT_PASSWORD_3);
+		Assertions.assertThat(cache.getEvictionCount()).isEqualTo(1);
+	}
+
+	/**
+	 * Tests that passwords are no longer returned once expired.
+	 * 
+	 * @throws InterruptedException if the test is interrupted while waiting.
+	 */
+	@Test
+	public void testExpiration() throws InterruptedException {
+		SecretCache cache = new SecretCache(10, 50, TimeUnit.MILLISECONDS);
+		cache.put(ENCRYPTED_PASSWORD_1, PLAIN_TEXT_PASSWORD_1);
+		Thread.sleep(100);
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_1)).isNull();
+		Assertions.assertThat(cache.size()).isZero();
+	}
+
+	/**
+	 * Tests that all the passwords are removed when the cache is cleared.
+	 */
+	@Test
+	public void testClear() {
+		SecretCache cache = new SecretCache(10, 1, TimeUnit.MINUTES);
+		cache.put(ENCRYPTED_PASSWORD_1, PLAIN_TEXT_PASSWORD_1);
+		cache.put(ENCRYPTED_PASSWORD_2, PLAIN_TEXT_PASSWORD_2);
+		cache.clear();
+		Assertions.assertThat(cache.size()).isZero();
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_1)).isNull();
+	}
+
+	/**
+	 * Tests that passwords kept outside of the heap are returned, evicted and
+	 * replaced as on the heap, and that too long ones are not cached.
+	 */
+	@Test
+	public void testOffHeap() {
+		SecretCache cache = new SecretCache(2, 1, TimeUnit.MINUTES, PLAIN_TEXT_PASSWORD_1.length());
+		Assertions.assertThat(cache.getOffHeapMemorySize()).isEqualTo(3 * (4 + 2 * PLAIN_TEXT_PASSWORD_1.length()));
+		cache.put(ENCRYPTED_PASSWORD_1, PLAIN_TEXT_PASSWORD_1);
+		cache.put(ENCRYPTED_PASSWORD_2, PLAIN_TEXT_PASSWORD_1);
+		cache.put(ENCRYPTED_PASSWORD_2, PLAIN_TEXT_PASSWORD_2);
+		cache.get(ENCRYPTED_PASSWORD_1);
+		cache.put(ENCRYPTED_PASSWORD_3, PLAIN_TEXT_PASSWORD_3);
+		cache.put(ENCRYPTED_PASSWORD_2, PLAIN_TEXT_PASSWORD_2 + "toolong");
+		Assertions.assertThat(cache.size()).isEqualTo(2);
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_1)).isEqualTo(PLAIN_TEXT_PASSWORD_1);
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_2)).isNull();
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_3)).isEqualTo(PLAIN_TEXT_PASSWORD_3);
+		Assertions.assertThat(cache.getEvictionCount()).isEqualTo(1);
+		Assertions.assertThat(cache.getRejectionCount()).isEqualTo(1);
+		cache.clear();
+		cache.put(ENCRYPTED_PASSWORD_1, "");
+		Assertions.assertThat(cache.get(ENCRYPTED_PASSWORD_1)).isEmpty();
+	}
+}
@@ -0,0 +1,117 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.erkatta.pentaho.encryption.util.SingleFlight;
+
+/**
+ * Test for the {@link SingleFlight}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class SingleFlightTest {
+
+	/**
+	 * Tests that concurrent computations of the same key run once and share
+	 * their result, and that a later call computes again.
+	 */
+	@Test
+	public void testCoalescing() throws Exception {
+		SingleFlight<String, String> flights = new SingleFlight<>();
+		AtomicInteger computations = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<String> first = executor.submit(() -> flights.execute("key", () -> {
+				computations.incrementAndGet();
+				started.countDown();
+				await(release);
+				return "value";
+			}));
+			started.await();
+			Future<String> second = executor.submit(() -> flights.execute("key", () -> {
+				computations.incrementAndGet();
+				return "other";
+			}));
+			while (flights.getSharedCount() == 0) {
+				Thread.sleep(1L);
+			}
+			release.countDown();
+			Assertions.assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo("value");
+			Assertions.assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo("value");
+			Assertions.assertThat(computations.get()).isEqualTo(1);
+			Assertions.assertThat(flights.execute("key", () -> "again")).isEqualTo("again");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that the error of a computation is thrown to all the waiting threads.
+	 */
+	@Test
+	public void testError() throws Exception {
+		SingleFlight<String, String> flights = new SingleFlight<>();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> first = executor.submit(() -> flights.execute("key", () -> {
+				started.countDown();
+				await(release);
+				throw new IllegalStateException("broken");
+			}));
+			started.await();
+			Future<String> second = executor.submit(() -> flights.execute("key", () -> "value"));
+			while (flights.getSharedCount() == 0) {
+				Thread.sleep(1L);
+			}
+			release.countDown();
+			Assertions.assertThatThrownBy(() -> first.get(10, TimeUnit.SECONDS))
+					.hasCauseInstanceOf(IllegalStateException.class);
+			Assertions.assertThatThrownBy(() -> second.get(10, TimeUnit.SECONDS))
+					.hasCauseInstanceOf(IllegalStateException.class);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for a latch, without checked exceptions.
+	 * 
+	 * @param latch the latch.
+	 */
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
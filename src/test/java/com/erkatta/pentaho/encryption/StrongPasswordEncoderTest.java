@@ -17,10 +17,23 @@ package com.erkatta.pentaho.encryption;
  */
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
@@ -29,6 +42,8 @@ import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.ProvideSystemProperty;
+import org.junit.contrib.java.lang.system.RestoreSystemProperties;
+import org.junit.rules.TemporaryFolder;
 import org.pentaho.di.core.KettleClientEnvironment;
 import org.pentaho.di.core.encryption.Encr;
 import org.pentaho.di.core.encryption.KettleTwoWayPasswordEncoder;
@@ -36,6 +51,9 @@ import org.pentaho.di.core.exception.KettleException;
 
 import com.erkatta.pentaho.encryption.StrongPasswordEncoder;
 import com.erkatta.pentaho.encryption.om.Base64EncodedKeyPair;
+import com.erkatta.pentaho.encryption.om.CryptoResult;
+import com.erkatta.pentaho.encryption.util.CiphertextHeader;
+import com.erkatta.pentaho.encryption.util.EcCryptoUtil;
 import com.erkatta.pentaho.encryption.util.KeyPairGenerator;
 import com.erkatta.pentaho.encryption.util.RsaCryptoUtil;
 
@@ -53,9 +71,47 @@ public class StrongPasswordEncoderTest {
 	private static final String PLAIN_TEXT_PASSWORD = "justatestpassword";
 	private static final String PLAIN_TEXT_PASSWORD_WITH_VARIABLES = "justatestpasswordwith${VARIABLES}";
 
+	/** The public key of {@link #MAGIC_HEADERLESS_PASSWORD}. **/
+	private static final String MAGIC_PUBLIC_KEY = "MIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEAlzZylLIIwO1tUcDh6J1bHNy"
+			+ "vgO8LSfxsD8wEYRRDgPT0ZERLYN2I1v5zB7C7wh1DbOVV0jzIA5hqsDZuF9kHnX6weq3Nu0Fl0fK/LpcPxeevinoFriRY3PQ6onr"
+			+ "MC2aXa2ML5RMSw4MhFjFk21J4aC+5uMhBLZxFHt1ViPVbePN2E/qHwmiNTG5NRGmKSNB/YP4frhqMANPrbOeIZk2t739Ug6nVU12"
+			+ "FvaT81QzvvYI1afgSJMm7M30tY1A2OYtkv0+heHPtkf9ulvRL+ahspO/A0swgXk8pYFsAXapnX3WgUeZ87IRDY3M5QD3aWruqg7i"
+			+ "maViymXg70ShokRrTdQIDAQAB";
+
+	/** The private key of {@link #MAGIC_HEADERLESS_PASSWORD}. **/
+	private static final String MAGIC_PRIVATE_KEY = "MIIEvQIBADANBgkqhkiG9w0BAQEFAASCBKcwggSjAgEAAoIBAQCXNnKUsgjA7W1RwO"
+			+ "HonVsc3K+A7wtJ/GwPzARhFEOA9PRkREtg3YjW/nMHsLvCHUNs5VXSPMgDmGqwNm4X2QedfrB6rc27QWXR8r8ulw/F56+KegWuJF"
+			+ "jc9DqieswLZpdrYwvlExLDgyEWMWTbUnhoL7m4yEEtnEUe3VWI9Vt483YT+ofCaI1Mbk1EaYpI0H9g/h+uGowA0+ts54hmTa3vf1"
+			+ "SDqdVTXYW9pPzVDO+9gjVp+BIkybszfS1jUDY5i2S/T6F4c+2R/26W9Ev5qGyk78DSzCBeTylgWwBdqmdfdaBR5nzshENjczlAPd"
+			+ "pau6qDuKZpWLKZeDvRKGiRGtN1AgMBAAECggEABWNaCVzfrXo4WT+pfRewUbK2aT57VT9SnWx8YnYtoph35eO+GN1D/T8zW5yLUD"
+			+ "MpPiXc3UEvslsZwB4sZZqk6BKF2NU9HbVKmsTO1arp07g5+9H1xlsCtJraRQRhpW1aK2gr2hWIJ2HSib8oVB1X74R11nUCR40INH"
+			+ "2YCOmPQRvDvVypAZK9mzE58ZV8qp4ZknIzspb0cJEegRexGP+OgP6CRiaTuU7yb4iGmvdH0ciAlD8KsmyTa3AIf2fYPoE2JqxBDS"
+			+ "0l/hF+g78tmLYOINN7xfrTgB+2EbyDvFZEfQzjYZ+886rBwbZbCMbMTyRv66wSPDAMaEKFpz5u5RWoCQKBgQDG5BiDDesCygAQFQ"
+			+ "dGT2czdxgVlPNa9+PAXK4/5QdklB1yNMyrnrn9lhnsFJkjqKj9wmdJW6Elm/HDTaF04CKVgB5nVyggX2aJy7Y311SoHYPKm3Y9Ya"
+			+ "N7BWiD8spIW8Ex8cW66uKzVL18dN6/dSRPrIjIQqsxoJeYQztXfnlkfQKBgQDCoagKp2sFtQNeLOXCfx+pvzmHqxLaX+QhEHnwz+"
+			+ "m8be9THw6B8DNqEJTHhhACAnOATuTKRPoC28NwgSG1D3kEUVFul8cqRbNi4+MGhoHT1adeAcXsv8BL8iMig7R7gKKY6IrPnDSv0w"
+			+ "/gWl4G3ppj2F3IeM9eBecyzdralmu0WQKBgCzbcv/T2sZFQuBdrcdYz0DXQnJTptNEh3RyMsasZA92LHH+oI6wfOhJu0z4lFVri7"
+			+ "m3582uwdiWpF9VGe4fQw2O2Myb5qvueFTpwg40HZ7REVFX4MIVTGbJoHnp/190ek1GZz8yDLE/koEIZtitleP2WN850hyeSLKJr0"
+			+ "+bccuNAoGAUoZQxhOuoUDbKLdIxGs6dbMLJac32zgFdq+RxLWjma3TaB8m+5lpc3OMYf1KFFANwT2ybMFKcKPV/oICVM82tMn2CT"
+			+ "p5zEa5hRizTjUCH1vcF1QRJA057/m/RAcsI6GrT8Jp+RV2kYagmLQ4YhlIxUUcnr/6zRcbrML0JPLawCECgYEAxJM1R9Erv8iCwz"
+			+ "zwpTvTsWXgFjtqJKxL1Mtwpn8cp0v3cqoLUYS/S4uxF0Xrbwj8C9E3i/ZgGsGZu07MtPuascqDiWfgVcHPIDCGfiIQtDS1H9TYXr"
+			+ "k9QDSj0iuZKb4EJ436NEjoZj+6xlKKnsB+Gvhm1/7sE8sZLPmbvV4CY8w=";
+
+	/** The plain text of {@link #MAGIC_HEADERLESS_PASSWORD}. **/
+	private static final String MAGIC_PLAIN_TEXT_PASSWORD = "password";
+
+	/** A headerless password that starts with the Base64 magic of the header. **/
+	private static final String MAGIC_HEADERLESS_PASSWORD = "U1BFQlrtbffhJlIvD4QhQ3bnwrD+DWDjI5NsrJZ8K7NRD4I4Ay/lLMjrea"
+			+ "AEpWprIcZouR6fljcIdGsakRmFEcqFf9YgUgP3GVBmrApI/8d7luFUkkL/+XpYiFUxtddLITnGJc29IGcGgVbVPTDnTWTI01o8u8"
+			+ "+Mabr+eZgrVwtcOI0KSII4dN88DK+ME//RnWEUJYnEsNDP+GU01dI5K7SUNfY2/Ahj6tkheABMFHJS2Xuk+U1C5HSOQexCHjrwTA"
+			+ "SlutU8l6xkeSD/OSlDAZz8flP3elbukObKWqkHlRsW1Nc8rgN5t5a0ooQG5EzYcRXqmFHlgpeZUycYtidSRQ==";
+
 	/** The RSA cryptographic utility used to generate the test key pair. **/
 	private static final RsaCryptoUtil CRYPTOUTIL = new RsaCryptoUtil();
 
+	/** The test key pair. **/
+	private static Base64EncodedKeyPair keyPair;
+
 	/**
 	 * This rule allow us to set system properties at runtime, cleaning them after
 	 * the test execution.
@@ -65,6 +121,14 @@ public class StrongPasswordEncoderTest {
 			"KETTLE_STRONG_PASSWORD_ENCODER_PUBKEY_PATH", "/tmp/").and("KETTLE_STRONG_PASSWORD_ENCODER_PRIVKEY_PATH",
 					"/tmp/");
 
+	/** This rule restores the system properties changed by a single test. **/
+	@Rule
+	public final RestoreSystemProperties restoreSystemProperties = new RestoreSystemProperties();
+
+	/** This rule provides a folder for the key files of a single test. **/
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	/**
 	 * Sets up the test environment.
 	 */
@@ -73,7 +137,7 @@ public class StrongPasswordEncoderTest {
 		try {
 			Files.deleteIfExists(Paths.get(PUBLIC_KEY_FILE_LOCATION));
 			Files.deleteIfExists(Paths.get(PRIVATE_KEY_FILE_LOCATION));
-			Base64EncodedKeyPair keyPair = CRYPTOUTIL.generateKeyPair();
+			keyPair = CRYPTOUTIL.generateKeyPair();
 			KeyPairGenerator.writeToFile(PUBLIC_KEY_FILE_LOCATION, keyPair.getPublicKey());
 			KeyPairGenerator.writeToFile(PRIVATE_KEY_FILE_LOCATION, keyPair.getPrivateKey());
 			initKettleEncr();
@@ -119,6 +183,424 @@ public class StrongPasswordEncoderTest {
 		Assertions.assertThat(Encr.decryptPassword(KETTLE_OBFUSCATED_PASSWORD)).isEqualTo(KETTLE_PLAIN_TEXT_PASSWORD);
 	}
 
+	/**
+	 * Tests that new passwords have a self-describing header while passwords
+	 * encrypted before headers were introduced are still supported.
+	 */
+	@Test
+	public void testHeader() {
+		Assertions.assertThat(Encr.encryptPasswordIfNotUsingVariables(PLAIN_TEXT_PASSWORD))
+				.startsWith(StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + CiphertextHeader.BASE64_MAGIC);
+		String headerlessPassword = CRYPTOUTIL.encrypt(PLAIN_TEXT_PASSWORD, keyPair.getPublicKey());
+		Assertions.assertThat(Encr.decryptPasswordOptionallyEncrypted(
+				StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + headerlessPassword)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(Encr.decryptPassword(headerlessPassword)).isEqualTo(PLAIN_TEXT_PASSWORD);
+	}
+
+	/**
+	 * Tests that a headerless password whose Base64 form happens to start with
+	 * the magic of the header is still decrypted.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testHeaderlessPasswordWithMagic() throws KettleException, IOException {
+		Assertions.assertThat(MAGIC_HEADERLESS_PASSWORD).startsWith(CiphertextHeader.BASE64_MAGIC);
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), MAGIC_PUBLIC_KEY);
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), MAGIC_PRIVATE_KEY);
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder(publicKeyFile.toString(), privateKeyFile.toString());
+		encoder.init();
+		Assertions.assertThat(
+				encoder.decode(StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + MAGIC_HEADERLESS_PASSWORD, true))
+				.isEqualTo(MAGIC_PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(MAGIC_HEADERLESS_PASSWORD)).isEqualTo(MAGIC_PLAIN_TEXT_PASSWORD);
+		Assertions.assertThatThrownBy(
+				() -> encoder.decode(StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + "U1BFbroken", true))
+				.isInstanceOf(RuntimeException.class);
+		encoder.close();
+	}
+
+	/**
+	 * Tests the envelope encryption of passwords longer than the RSA limit.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 */
+	@Test
+	public void testEnvelopeTranscryption() throws KettleException {
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_ENVELOPE", "Y");
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder();
+		encoder.init();
+		String longPassword = String.join("", Collections.nCopies(32, PLAIN_TEXT_PASSWORD));
+		String encodedPassword = encoder.encode(longPassword);
+		Assertions.assertThat(encodedPassword).startsWith(StrongPasswordEncoder.PASSWORD_ENVELOPE_PREFIX);
+		Assertions.assertThat(encoder.decode(encodedPassword, true)).isEqualTo(longPassword);
+		Assertions.assertThat(encoder.decode(encodedPassword)).isEqualTo(longPassword);
+		Assertions.assertThat(encoder.decode(encoder.encode(longPassword, false))).isEqualTo(longPassword);
+		// Passwords encrypted by RSA only are still supported
+		Assertions.assertThat(encoder.decode(Encr.encryptPasswordIfNotUsingVariables(PLAIN_TEXT_PASSWORD), true))
+				.isEqualTo(PLAIN_TEXT_PASSWORD);
+	}
+
+	/**
+	 * Tests the bulk decoding of passwords in different formats.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 */
+	@Test
+	public void testBulkTranscryption() throws KettleException {
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder();
+		encoder.init();
+		List<CryptoResult<String>> encodedPasswords = encoder
+				.encodeAll(Arrays.asList(PLAIN_TEXT_PASSWORD, PLAIN_TEXT_PASSWORD_WITH_VARIABLES));
+		List<String> passwords = Arrays.asList(encodedPasswords.get(0).getValue(),
+				encodedPasswords.get(1).getValue(),
+				KettleTwoWayPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + KETTLE_OBFUSCATED_PASSWORD);
+		Assertions.assertThat(encoder.decodeAll(passwords)).extracting(CryptoResult::getValue).containsExactly(
+				PLAIN_TEXT_PASSWORD, PLAIN_TEXT_PASSWORD_WITH_VARIABLES, KETTLE_PLAIN_TEXT_PASSWORD);
+	}
+
+	/**
+	 * Tests that passwords encrypted with a retired key pair are still decrypted
+	 * after the rotation, while new passwords use the active key pair.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testKeyRotation() throws KettleException, IOException {
+		String oldPassword = Encr.encryptPasswordIfNotUsingVariables(PLAIN_TEXT_PASSWORD);
+		Path ringPath = temporaryFolder.newFolder("ring").toPath();
+		KeyPairGenerator.writeToFile(ringPath.resolve("old.public.key").toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(ringPath.resolve("old.private.key").toString(), keyPair.getPrivateKey());
+		Base64EncodedKeyPair newKeyPair = CRYPTOUTIL.generateKeyPair();
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), newKeyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), newKeyPair.getPrivateKey());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_KEYRING_PATH", ringPath.toString());
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder(publicKeyFile.toString(), privateKeyFile.toString());
+		encoder.init();
+		Assertions.assertThat(encoder.decode(oldPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		String newPassword = encoder.encode(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(newPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThatThrownBy(() -> Encr.decryptPasswordOptionallyEncrypted(newPassword))
+				.isInstanceOf(RuntimeException.class);
+	}
+
+	/**
+	 * Tests the EC algorithm, including the decryption of passwords encrypted with
+	 * a retired RSA key pair.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testEcTranscryption() throws KettleException, IOException {
+		String rsaPassword = Encr.encryptPasswordIfNotUsingVariables(PLAIN_TEXT_PASSWORD);
+		Path ringPath = temporaryFolder.newFolder("ring").toPath();
+		KeyPairGenerator.writeToFile(ringPath.resolve("rsa.public.key").toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(ringPath.resolve("rsa.private.key").toString(), keyPair.getPrivateKey());
+		Base64EncodedKeyPair ecKeyPair = new EcCryptoUtil().generateKeyPair();
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), ecKeyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), ecKeyPair.getPrivateKey());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_ALGORITHM", "EC");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_KEYRING_PATH", ringPath.toString());
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder(publicKeyFile.toString(), privateKeyFile.toString());
+		encoder.init();
+		String ecPassword = encoder.encode(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(ecPassword.length()).isLessThan(rsaPassword.length());
+		Assertions.assertThat(encoder.decode(ecPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(rsaPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+	}
+
+	/**
+	 * Tests that the passwords without key identifier, encrypted without header or
+	 * with a version 1 header, are decrypted with a retired RSA key pair after the
+	 * switch to EC.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testEcRetiredRsaKeys() throws KettleException, IOException {
+		String headerlessPassword = StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX
+				+ CRYPTOUTIL.encrypt(PLAIN_TEXT_PASSWORD, keyPair.getPublicKey());
+		byte[] ciphertext = CRYPTOUTIL.encrypt(PLAIN_TEXT_PASSWORD.getBytes(StandardCharsets.UTF_8),
+				keyPair.getPublicKey());
+		byte[] data = new byte[6 + ciphertext.length];
+		data[0] = 'S';
+		data[1] = 'P';
+		data[2] = 'E';
+		data[3] = 1;
+		data[4] = CiphertextHeader.ALGORITHM_RSA;
+		data[5] = CiphertextHeader.MODE_DIRECT;
+		System.arraycopy(ciphertext, 0, data, 6, ciphertext.length);
+		String versionOnePassword = StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX
+				+ Base64.getEncoder().encodeToString(data);
+		Path ringPath = temporaryFolder.newFolder("ring").toPath();
+		KeyPairGenerator.writeToFile(ringPath.resolve("rsa.public.key").toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(ringPath.resolve("rsa.private.key").toString(), keyPair.getPrivateKey());
+		Base64EncodedKeyPair ecKeyPair = new EcCryptoUtil().generateKeyPair();
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), ecKeyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), ecKeyPair.getPrivateKey());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_ALGORITHM", "EC");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_KEYRING_PATH", ringPath.toString());
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder(publicKeyFile.toString(), privateKeyFile.toString());
+		encoder.init();
+		Assertions.assertThat(encoder.decode(headerlessPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(versionOnePassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+	}
+
+	/**
+	 * Tests the explicit and the automatic selection of the security provider.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 */
+	@Test
+	public void testProviderSelection() throws KettleException {
+		String password = Encr.encryptPasswordIfNotUsingVariables(PLAIN_TEXT_PASSWORD);
+		for (String provider : Arrays.asList("SunJCE", "auto")) {
+			System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PROVIDER", provider);
+			StrongPasswordEncoder encoder = new StrongPasswordEncoder();
+			encoder.init();
+			Assertions.assertThat(encoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+			Assertions.assertThat(encoder.decode(encoder.encode(PLAIN_TEXT_PASSWORD), true))
+					.isEqualTo(PLAIN_TEXT_PASSWORD);
+		}
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PROVIDER", "NotInstalled");
+		Assertions.assertThatThrownBy(StrongPasswordEncoder::new).isInstanceOf(RuntimeException.class);
+	}
+
+	/**
+	 * Tests that in lazy mode a node without public key can still decrypt, while
+	 * encryption fails only when it is attempted.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testLazyDecryptOnly() throws KettleException, IOException {
+		String password = Encr.encryptPasswordIfNotUsingVariables(PLAIN_TEXT_PASSWORD);
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), keyPair.getPrivateKey());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_LAZY", "Y");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_WARMUP", "Y");
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder(publicKeyFile.toString(), privateKeyFile.toString());
+		encoder.init();
+		Assertions.assertThat(encoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThatThrownBy(() -> encoder.encode(PLAIN_TEXT_PASSWORD)).isInstanceOf(RuntimeException.class);
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), keyPair.getPublicKey());
+		Assertions.assertThat(encoder.decode(encoder.encode(PLAIN_TEXT_PASSWORD), true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+	}
+
+	/**
+	 * Tests that the keys are reloaded when the key files change, that keys that
+	 * do not match are rejected and that closing the encoder stops the watcher.
+	 * 
+	 * @throws KettleException      in case of errors during the encoder
+	 *                              initialization.
+	 * @throws IOException          in case of errors writing the key files.
+	 * @throws InterruptedException if the test is interrupted.
+	 */
+	@Test
+	public void testKeyReload() throws KettleException, IOException, InterruptedException {
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), keyPair.getPrivateKey());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_WATCH_KEYS", "Y");
+		try (StrongPasswordEncoder encoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				privateKeyFile.toString())) {
+			encoder.init();
+			String oldPassword = encoder.encode(PLAIN_TEXT_PASSWORD);
+
+			Base64EncodedKeyPair newKeyPair = CRYPTOUTIL.generateKeyPair();
+			KeyPairGenerator.writeToFile(publicKeyFile.toString(), newKeyPair.getPublicKey());
+			Assertions.assertThatThrownBy(encoder::reloadKeys).isInstanceOf(RuntimeException.class);
+			Assertions.assertThat(encoder.decode(oldPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+			KeyPairGenerator.writeToFile(privateKeyFile.toString(), newKeyPair.getPrivateKey());
+
+			String newPassword = StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX
+					+ CRYPTOUTIL.encrypt(PLAIN_TEXT_PASSWORD, newKeyPair.getPublicKey());
+			long deadline = System.currentTimeMillis() + 30000L;
+			while (!PLAIN_TEXT_PASSWORD.equals(decodeQuietly(encoder, newPassword))
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(100L);
+			}
+			Assertions.assertThat(encoder.decode(newPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		}
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (isKeyWatcherRunning() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10L);
+		}
+		Assertions.assertThat(isKeyWatcherRunning()).isFalse();
+	}
+
+	/**
+	 * Checks whether a thread watching the key files is running.
+	 * 
+	 * @return <code>true</code> if a key watcher thread is alive.
+	 */
+	private static boolean isKeyWatcherRunning() {
+		return Thread.getAllStackTraces().keySet().stream()
+				.anyMatch(thread -> thread.isAlive() && "StrongPasswordEncoder key watcher".equals(thread.getName()));
+	}
+
+	/**
+	 * Tests that the encode cache returns the same encrypted password for an
+	 * unchanged password, or the one it was decrypted from, until the keys change.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 * @throws IOException     in case of errors writing the key files.
+	 */
+	@Test
+	public void testEncodeCache() throws KettleException, IOException {
+		Path publicKeyFile = temporaryFolder.getRoot().toPath().resolve("public.key");
+		Path privateKeyFile = temporaryFolder.getRoot().toPath().resolve("private.key");
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), keyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), keyPair.getPrivateKey());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_ENCODE_CACHE_SIZE", "10");
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder(publicKeyFile.toString(), privateKeyFile.toString());
+		encoder.init();
+		String password = encoder.encode(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.encode(PLAIN_TEXT_PASSWORD)).isEqualTo(password);
+		Assertions.assertThat(encoder.encode(PLAIN_TEXT_PASSWORD + "2")).isNotEqualTo(password);
+		Assertions.assertThat(encoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.getEncodeCache().getHitCount()).isEqualTo(1);
+
+		// After a restart the password read from a file is saved again as it was
+		StrongPasswordEncoder restartedEncoder = new StrongPasswordEncoder(publicKeyFile.toString(),
+				privateKeyFile.toString());
+		restartedEncoder.init();
+		Assertions.assertThat(restartedEncoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(restartedEncoder.encode(PLAIN_TEXT_PASSWORD)).isEqualTo(password);
+
+		Base64EncodedKeyPair newKeyPair = CRYPTOUTIL.generateKeyPair();
+		KeyPairGenerator.writeToFile(publicKeyFile.toString(), newKeyPair.getPublicKey());
+		KeyPairGenerator.writeToFile(privateKeyFile.toString(), newKeyPair.getPrivateKey());
+		encoder.reloadKeys();
+		String newPassword = encoder.encode(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(newPassword).isNotEqualTo(password);
+		Assertions.assertThat(encoder.decode(newPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+	}
+
+	/**
+	 * Tests that passwords are decoded asynchronously, with their errors.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 */
+	@Test
+	public void testDecodeAsync() throws KettleException {
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder();
+		encoder.init();
+		String password = encoder.encode(PLAIN_TEXT_PASSWORD);
+		List<CompletableFuture<String>> futures = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			futures.add(encoder.decodeAsync(password, true));
+		}
+		for (CompletableFuture<String> future : futures) {
+			Assertions.assertThat(future.join()).isEqualTo(PLAIN_TEXT_PASSWORD);
+		}
+		Assertions.assertThatThrownBy(
+				() -> encoder.decodeAsync(StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + "U1BFbroken", true).join())
+				.isInstanceOf(CompletionException.class);
+	}
+
+	/**
+	 * Tests that the metrics count the encodings and decodings by format, and
+	 * that they are published through JMX until the encoder is closed.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 * @throws JMException     in case of errors reading the MBean.
+	 */
+	@Test
+	public void testMetrics() throws KettleException, JMException {
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_JMX", "Y");
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder();
+		encoder.init();
+		StrongPasswordEncoderMetrics metrics = encoder.getMetrics();
+		String password = encoder.encode(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(password, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(KETTLE_OBFUSCATED_PASSWORD)).isEqualTo(KETTLE_PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(PLAIN_TEXT_PASSWORD, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		String brokenPassword = StrongPasswordEncoder.PASSWORD_ENCRYPTED_PREFIX + "U1BFbroken";
+		Assertions.assertThatThrownBy(() -> encoder.decode(brokenPassword, true)).isInstanceOf(RuntimeException.class);
+
+		Assertions.assertThat(metrics.getEncodeCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.getDecodeCount()).isEqualTo(3);
+		Assertions.assertThat(metrics.getStrongDecodeCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.getLegacyDecodeCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.getPlaintextDecodeCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.getFailureCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.getEncodeLatency().getCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.getKeyParseLatency().getCount()).isEqualTo(2);
+		Assertions.assertThat(metrics.getCipherOperationLatency().getCount()).isEqualTo(2);
+
+		Set<ObjectName> names = ManagementFactory.getPlatformMBeanServer()
+				.queryNames(new ObjectName("com.erkatta.pentaho.encryption:type=StrongPasswordEncoder,*"), null);
+		Assertions.assertThat(names).isNotEmpty();
+		metrics.reset();
+		Assertions.assertThat(metrics.getDecodeCount()).isZero();
+
+		encoder.close();
+		Set<ObjectName> remainingNames = ManagementFactory.getPlatformMBeanServer()
+				.queryNames(new ObjectName("com.erkatta.pentaho.encryption:type=StrongPasswordEncoder,*"), null);
+		Assertions.assertThat(remainingNames).hasSize(names.size() - 1);
+		Assertions.assertThat(names).containsAll(remainingNames);
+	}
+
+	/**
+	 * Tests that the passwords of kettle.properties and shared.xml are decrypted
+	 * into the cache by the initialization.
+	 * 
+	 * @throws KettleException in case of errors during the encoder initialization.
+	 * @throws IOException     in case of errors writing the Kettle files.
+	 */
+	@Test
+	public void testPreload() throws KettleException, IOException {
+		String propertyPassword = Encr.encryptPasswordIfNotUsingVariables(PLAIN_TEXT_PASSWORD);
+		String sharedPassword = Encr.encryptPasswordIfNotUsingVariables(KETTLE_PLAIN_TEXT_PASSWORD);
+		Path kettleDirectory = temporaryFolder.newFolder(".kettle").toPath();
+		Files.write(kettleDirectory.resolve("kettle.properties"), Arrays.asList("DB_PASSWORD=" + propertyPassword,
+				"OTHER_PASSWORD=" + propertyPassword, "BROKEN_PASSWORD=SPEncrypted U1BFbroken", "PLAIN=value"));
+		Files.write(kettleDirectory.resolve("shared.xml"),
+				Arrays.asList("<sharedobjects>", "  <connection>", "    <password>" + sharedPassword + "</password>",
+						"  </connection>", "</sharedobjects>"));
+		System.setProperty("KETTLE_HOME", temporaryFolder.getRoot().getPath());
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_CACHE_SIZE", "10");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PRELOAD", "Y");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PRELOAD_SHARED", "Y");
+		StrongPasswordEncoder encoder = new StrongPasswordEncoder();
+		encoder.init();
+		Assertions.assertThat(encoder.getSecretCache().size()).isEqualTo(2);
+		Assertions.assertThat(encoder.decode(propertyPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(sharedPassword, true)).isEqualTo(KETTLE_PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.getSecretCache().getHitCount()).isEqualTo(2);
+	}
+
+	/**
+	 * Decodes a password, ignoring the errors.
+	 * 
+	 * @param encoder         the encoder.
+	 * @param encodedPassword the encoded password.
+	 * @return the decoded password or <code>null</code> if it cannot be decoded.
+	 */
+	private static String decodeQuietly(StrongPasswordEncoder encoder, String encodedPassword) {
+		try {
+			return encoder.decode(encodedPassword, true);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Initializes the Kettle Encr class.
 	 * 
@@ -0,0 +1,148 @@
+package com.erkatta.pentaho.encryption;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.contrib.java.lang.system.RestoreSystemProperties;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.core.exception.KettleException;
+
+import com.erkatta.pentaho.encryption.util.KeyPairGenerator;
+
+/**
+ * Test for the {@link SymmetricPasswordEncoder}} class.
+ * 
+ * @author Marco Cattarin
+ *
+ */
+public class SymmetricPasswordEncoderTest {
+
+	private static final String KETTLE_OBFUSCATED_PASSWORD = "6a757374616e6f60d8eddcab0bd39780bb18bd63c99dbdde";
+	private static final String KETTLE_PLAIN_TEXT_PASSWORD = "justanobfuscatedpassword";
+	private static final String PLAIN_TEXT_PASSWORD = "justatestpassword\u00e8\u20ac";
+	private static final String PLAIN_TEXT_PASSWORD_WITH_VARIABLES = "justatestpasswordwith${VARIABLES}";
+
+	/** This rule restores the system properties changed by a single test. **/
+	@Rule
+	public final RestoreSystemProperties restoreSystemProperties = new RestoreSystemProperties();
+
+	/** The folder holding the keys. **/
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/** The encoder that uses the test master key. **/
+	private SymmetricPasswordEncoder encoder;
+
+	/**
+	 * Generates the test master key and an RSA key pair.
+	 * 
+	 * @throws IOException     if the key files cannot be written.
+	 * @throws KettleException if the encoder cannot be initialized.
+	 */
+	@Before
+	public void setUp() throws IOException, KettleException {
+		Path directory = folder.getRoot().toPath();
+		KeyPairGenerator.generateToFiles("AES", 0, 1, directory);
+		KeyPairGenerator.generateToFiles("RSA", 0, 1, directory);
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PUBKEY_PATH", directory + "/");
+		System.setProperty("KETTLE_STRONG_PASSWORD_ENCODER_PRIVKEY_PATH", directory + "/");
+		encoder = new SymmetricPasswordEncoder(directory.resolve("master.key").toString());
+		encoder.init();
+	}
+
+	/**
+	 * Tests password encryption and decryption, with and without prefix.
+	 */
+	@Test
+	public void testTranscryption() {
+		String encodedPassword = encoder.encode(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encodedPassword).startsWith(SymmetricPasswordEncoder.PASSWORD_SYMMETRIC_PREFIX);
+		Assertions.assertThat(encoder.encode(PLAIN_TEXT_PASSWORD)).isNotEqualTo(encodedPassword);
+		Assertions.assertThat(encoder.decode(encodedPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(encodedPassword)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(encoder.encode(PLAIN_TEXT_PASSWORD, false))).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.encode(PLAIN_TEXT_PASSWORD_WITH_VARIABLES))
+				.isEqualTo(PLAIN_TEXT_PASSWORD_WITH_VARIABLES);
+		Assertions.assertThat(encoder.decode(PLAIN_TEXT_PASSWORD, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+	}
+
+	/**
+	 * Tests that a tampered password or a different master key are detected.
+	 */
+	@Test
+	public void testTampering() throws IOException, KettleException {
+		String encodedPassword = encoder.encode(PLAIN_TEXT_PASSWORD);
+		char[] tamperedPassword = encodedPassword.toCharArray();
+		int index = SymmetricPasswordEncoder.PASSWORD_SYMMETRIC_PREFIX.length() + 20;
+		tamperedPassword[index] = tamperedPassword[index] == 'B' ? 'C' : 'B';
+		Assertions.assertThatThrownBy(() -> encoder.decode(new String(tamperedPassword), true))
+				.isInstanceOf(RuntimeException.class);
+
+		Path otherDirectory = folder.newFolder().toPath();
+		KeyPairGenerator.generateToFiles("AES", 0, 1, otherDirectory);
+		SymmetricPasswordEncoder otherEncoder = new SymmetricPasswordEncoder(
+				otherDirectory.resolve("master.key").toString());
+		otherEncoder.init();
+		Assertions.assertThatThrownBy(() -> otherEncoder.decode(encodedPassword, true))
+				.isInstanceOf(RuntimeException.class);
+	}
+
+	/**
+	 * Tests that the master key is never overwritten, and that a count or a key
+	 * size that the master key does not support are rejected.
+	 * 
+	 * @throws IOException if the master key cannot be read.
+	 */
+	@Test
+	public void testMasterKeyGeneration() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		byte[] masterKey = Files.readAllBytes(directory.resolve("master.key"));
+		Assertions.assertThatThrownBy(() -> KeyPairGenerator.generateToFiles("AES", 0, 1, directory))
+				.isInstanceOf(FileAlreadyExistsException.class);
+		Assertions.assertThat(Files.readAllBytes(directory.resolve("master.key"))).isEqualTo(masterKey);
+		Path otherDirectory = folder.newFolder().toPath();
+		Assertions.assertThatThrownBy(() -> KeyPairGenerator.generateToFiles("AES", 0, 2, otherDirectory))
+				.isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> KeyPairGenerator.generateToFiles("AES", 128, 1, otherDirectory))
+				.isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThat(otherDirectory.resolve("master.key")).doesNotExist();
+	}
+
+	/**
+	 * Tests that the passwords of the strong password encoder and of Kettle are
+	 * decoded, so that they can be migrated.
+	 */
+	@Test
+	public void testMigration() {
+		StrongPasswordEncoder strongEncoder = new StrongPasswordEncoder();
+		String strongPassword = strongEncoder.encode(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(strongPassword, true)).isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(strongEncoder.encode(PLAIN_TEXT_PASSWORD, false)))
+				.isEqualTo(PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode("Encrypted " + KETTLE_OBFUSCATED_PASSWORD, true))
+				.isEqualTo(KETTLE_PLAIN_TEXT_PASSWORD);
+		Assertions.assertThat(encoder.decode(KETTLE_OBFUSCATED_PASSWORD)).isEqualTo(KETTLE_PLAIN_TEXT_PASSWORD);
+	}
+}